@@ -0,0 +1,331 @@
+/*
+ * Copyright 2013 Florian Müller & Jay Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is based on the Apache Chemistry OpenCMIS FileShare project
+ * <http://chemistry.apache.org/java/developing/repositories/dev-repositories-fileshare.html>.
+ *
+ * It is part of a training exercise and not intended for production use!
+ *
+ */
+package org.example.cmis.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.chemistry.opencmis.commons.impl.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Content-addressed store for document content.
+ *
+ * Each distinct content is kept once in the blob directory, named after its
+ * SHA-256 hash. Documents are hard links to their blob, so the folder tree
+ * looks and behaves exactly as before and the link count of a blob is its
+ * reference count. Deleting a document just removes one link. A background
+ * thread deletes blobs that are only referenced by the store itself.
+ *
+ * Blobs must never be changed in place. Content is replaced by renaming a
+ * new file over the document, and appends to linked files copy the content
+ * first. All attributes live in the shared inode, so a linked document has
+ * the modification time of its blob, which may be older than the upload. The
+ * repository therefore reports the later status change time instead and
+ * leaves the Last-Modified header out of content responses.
+ *
+ * Other processes must not edit documents in place either: such an edit
+ * changes every document linked to the same blob and the blob itself. Blobs
+ * are not verified again, so later uploads of the original content are
+ * linked to the edited bytes.
+ *
+ * The blob directory must be on the same file system as the repository.
+ */
+public class FileBridgeBlobStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileBridgeBlobStore.class);
+
+    /** Default time between two garbage collection runs. */
+    public static final long DEFAULT_GC_INTERVAL = 10 * 60 * 1000L;
+
+    /** Delay that lets deletes pile up before a requested collection. */
+    private static final long GC_DELAY = 1000;
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    private static final int MAX_ATTEMPTS = 3;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Path dir;
+    private final long gcInterval;
+    private final Thread collector;
+    private final Object gcLock = new Object();
+    private boolean gcRequested;
+    private volatile boolean running;
+
+    private final AtomicLong stored = new AtomicLong();
+    private final AtomicLong deduplicated = new AtomicLong();
+    private final AtomicLong collected = new AtomicLong();
+
+    /**
+     * Opens or creates a blob store.
+     *
+     * @param root
+     *            the repository root, which must be on the same file system
+     */
+    public FileBridgeBlobStore(File dir, File root) {
+        this(dir, root, DEFAULT_GC_INTERVAL);
+    }
+
+    public FileBridgeBlobStore(File dir, File root, long gcInterval) {
+        this.dir = dir.getAbsoluteFile().toPath();
+        this.gcInterval = gcInterval;
+
+        try {
+            Files.createDirectories(this.dir);
+
+            if (!Files.getFileStore(this.dir).equals(Files.getFileStore(root.toPath()))) {
+                throw new IllegalArgumentException("Blob store " + dir
+                        + " must be on the same file system as the repository!");
+            }
+
+            // link counts are the reference counts
+            Files.getAttribute(this.dir, "unix:nlink");
+        } catch (UnsupportedOperationException e) {
+            throw new IllegalArgumentException("Blob stores are not supported on this platform!");
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not open blob store " + dir + ": " + e.getMessage(), e);
+        }
+
+        running = true;
+        collector = new Thread("FileBridge Blob Collector") {
+            @Override
+            public void run() {
+                runCollector();
+            }
+        };
+        collector.setDaemon(true);
+        collector.start();
+    }
+
+    /**
+     * Returns a new digest for content that is going to be stored.
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // every JRE has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Moves the content of a completely written file into the store. If the
+     * store already holds the same content, the file is replaced by a link
+     * to the existing blob and reports the modification time of the blob.
+     * Otherwise, the file becomes the blob.
+     *
+     * @param digest
+     *            the digest that has been computed while the file has been
+     *            written or <code>null</code> to read the file
+     */
+    public void intern(Path file, MessageDigest digest) throws IOException {
+        String hash = toHex(digest == null ? hash(file) : digest.digest());
+        Path blob = getBlobPath(hash);
+        Files.createDirectories(blob.getParent());
+
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            try {
+                Files.createLink(blob, file);
+                stored.incrementAndGet();
+                return;
+            } catch (FileAlreadyExistsException e) {
+                // we have this content already
+            }
+
+            Path link = file.resolveSibling(file.getFileName() + ".blob");
+            try {
+                Files.createLink(link, blob);
+            } catch (NoSuchFileException e) {
+                // the blob has just been collected -> store this one
+                continue;
+            }
+
+            // the document takes over the attributes of the blob; the inode
+            // is shared, so they must not be touched
+            Files.move(link, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            deduplicated.incrementAndGet();
+            return;
+        }
+
+        LOG.warn("Could not store {} in the blob store.", file);
+    }
+
+    /**
+     * Asks the background thread to look for unreferenced blobs.
+     */
+    public void requestCollection() {
+        synchronized (gcLock) {
+            gcRequested = true;
+            gcLock.notifyAll();
+        }
+    }
+
+    /**
+     * Deletes all blobs that are not referenced by a document.
+     *
+     * @return the number of deleted blobs
+     */
+    public int collect() {
+        final int[] count = new int[1];
+
+        try {
+            Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (!running) {
+                        return FileVisitResult.TERMINATE;
+                    }
+
+                    if (attrs.isRegularFile() && getLinkCount(file) == 1) {
+                        Files.deleteIfExists(file);
+                        count[0]++;
+                    }
+
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    // deleted in the meantime
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            LOG.warn("Blob collection failed: {}", e.toString());
+        }
+
+        collected.addAndGet(count[0]);
+
+        return count[0];
+    }
+
+    /**
+     * Stops the background thread.
+     */
+    public void shutdown() {
+        running = false;
+        collector.interrupt();
+    }
+
+    public Path getDirectory() {
+        return dir;
+    }
+
+    public long getStored() {
+        return stored.get();
+    }
+
+    public long getDeduplicated() {
+        return deduplicated.get();
+    }
+
+    public long getCollected() {
+        return collected.get();
+    }
+
+    @Override
+    public String toString() {
+        return "BlobStore [dir=" + dir + ", stored=" + stored.get() + ", deduplicated=" + deduplicated.get()
+                + ", collected=" + collected.get() + "]";
+    }
+
+    // --- internal ---
+
+    private void runCollector() {
+        while (running) {
+            try {
+                synchronized (gcLock) {
+                    if (!gcRequested) {
+                        gcLock.wait(gcInterval);
+                    }
+                    gcRequested = false;
+                }
+
+                if (running) {
+                    Thread.sleep(GC_DELAY);
+                    int n = collect();
+                    if (n > 0) {
+                        LOG.debug("Collected {} blobs.", n);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // shutdown
+            }
+        }
+    }
+
+    private Path getBlobPath(String hash) {
+        return dir.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(hash);
+    }
+
+    private static int getLinkCount(Path file) throws IOException {
+        return ((Number) Files.getAttribute(file, "unix:nlink")).intValue();
+    }
+
+    private static byte[] hash(Path file) throws IOException {
+        MessageDigest digest = newDigest();
+
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            while (channel.read(buffer) > -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            IOUtils.closeQuietly(channel);
+        }
+
+        return digest.digest();
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] result = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            result[i * 2] = HEX[(bytes[i] >> 4) & 0x0F];
+            result[i * 2 + 1] = HEX[bytes[i] & 0x0F];
+        }
+
+        return new String(result);
+    }
+}
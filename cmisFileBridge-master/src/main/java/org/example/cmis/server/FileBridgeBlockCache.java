@@ -0,0 +1,349 @@
+/*
+ * Copyright 2013 Florian Müller & Jay Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is based on the Apache Chemistry OpenCMIS FileShare project
+ * <http://chemistry.apache.org/java/developing/repositories/dev-repositories-fileshare.html>.
+ *
+ * It is part of a training exercise and not intended for production use!
+ *
+ */
+package org.example.cmis.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Off-heap cache of document content.
+ *
+ * Content is cached in blocks of {@link #BLOCK_SIZE} bytes, which live in
+ * direct byte buffer slabs allocated once when the cache is created. The heap
+ * only holds a small entry per cached document, so the cache doesn't add to
+ * the garbage collector's work no matter how much content it holds.
+ *
+ * Entries are keyed by repository path and tagged with the file key, size and
+ * modification time of the file. A changed file never matches its old entry.
+ * Documents are evicted in LRU order. Only documents up to a quarter of the
+ * budget are cached, so a single large download can't flush the cache.
+ *
+ * Readers copy a block without holding the lock and then check the
+ * generation of the block slot. If the slot has been reused in the
+ * meantime, the read counts as a miss.
+ */
+public class FileBridgeBlockCache {
+
+    /** Size of a cache block. */
+    public static final int BLOCK_SIZE = 64 * 1024;
+
+    private static final int BLOCKS_PER_SLAB = 256;
+
+    private final ByteBuffer[] slabs;
+    private final int blockCount;
+    private final long maxFileSize;
+
+    private final int[] freeSlots;
+    private int freeCount;
+    private final AtomicIntegerArray generations;
+    private final LinkedHashMap<String, Entry> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * A cached document.
+     */
+    private static final class Entry {
+        final Object fileKey;
+        final long size;
+        final long lastModified;
+        final int[] slots;
+
+        Entry(FileBridgeFileAttributes attrs) {
+            fileKey = attrs.getFileKey();
+            size = attrs.getSize();
+            lastModified = attrs.getLastModified();
+            slots = new int[(int) ((size + BLOCK_SIZE - 1) / BLOCK_SIZE)];
+            Arrays.fill(slots, -1);
+        }
+
+        boolean matches(FileBridgeFileAttributes attrs) {
+            return size == attrs.getSize() && lastModified == attrs.getLastModified()
+                    && (fileKey == null ? attrs.getFileKey() == null : fileKey.equals(attrs.getFileKey()));
+        }
+
+        int blockLength(int block) {
+            return (int) Math.min(BLOCK_SIZE, size - (long) block * BLOCK_SIZE);
+        }
+    }
+
+    /**
+     * Creates a cache with the given budget in bytes.
+     */
+    public FileBridgeBlockCache(long budget) {
+        long blocks = budget / BLOCK_SIZE;
+        if (blocks < 1 || blocks > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid cache budget: " + budget);
+        }
+
+        blockCount = (int) blocks;
+        maxFileSize = Math.max((long) blockCount * BLOCK_SIZE / 4, BLOCK_SIZE);
+
+        slabs = new ByteBuffer[(blockCount + BLOCKS_PER_SLAB - 1) / BLOCKS_PER_SLAB];
+        for (int i = 0; i < slabs.length; i++) {
+            int slabBlocks = Math.min(BLOCKS_PER_SLAB, blockCount - i * BLOCKS_PER_SLAB);
+            slabs[i] = ByteBuffer.allocateDirect(slabBlocks * BLOCK_SIZE);
+        }
+
+        freeSlots = new int[blockCount];
+        for (int i = 0; i < blockCount; i++) {
+            freeSlots[i] = blockCount - 1 - i;
+        }
+        freeCount = blockCount;
+
+        generations = new AtomicIntegerArray(blockCount);
+        entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+    }
+
+    /**
+     * Checks if a document can be cached.
+     */
+    public boolean isCacheable(FileBridgeFileAttributes attrs) {
+        return attrs.isFile() && attrs.getSize() > 0 && attrs.getSize() <= maxFileSize;
+    }
+
+    /**
+     * Copies cached content into the given array. Reads never cross a block
+     * boundary.
+     *
+     * @return the number of bytes copied or -1 if the block is not cached
+     */
+    public int read(String path, FileBridgeFileAttributes attrs, long position, byte[] b, int off, int len) {
+        int block = (int) (position / BLOCK_SIZE);
+        int slot;
+        int generation;
+        int n;
+
+        synchronized (this) {
+            Entry entry = entries.get(path);
+            if (entry == null || !entry.matches(attrs) || block >= entry.slots.length || entry.slots[block] < 0) {
+                misses.incrementAndGet();
+                return -1;
+            }
+
+            slot = entry.slots[block];
+            generation = generations.get(slot);
+            n = (int) Math.min(len, entry.blockLength(block) - (position - (long) block * BLOCK_SIZE));
+        }
+
+        ByteBuffer buffer = slot(slot);
+        buffer.position(buffer.position() + (int) (position % BLOCK_SIZE));
+        buffer.get(b, off, n);
+
+        if (generations.get(slot) != generation) {
+            // slot has been reused while we were reading
+            misses.incrementAndGet();
+            return -1;
+        }
+
+        hits.incrementAndGet();
+
+        return n;
+    }
+
+    /**
+     * Reads the block that contains the given position from the channel into
+     * the cache.
+     *
+     * @return <code>false</code> if the document can't be cached
+     */
+    public boolean load(String path, FileBridgeFileAttributes attrs, long position, FileChannel channel)
+            throws IOException {
+        if (!isCacheable(attrs)) {
+            return false;
+        }
+
+        int block = (int) (position / BLOCK_SIZE);
+        int slot;
+        int generation;
+        int length;
+
+        synchronized (this) {
+            Entry entry = entries.get(path);
+            if (entry == null || !entry.matches(attrs)) {
+                if (entry != null) {
+                    release(entry);
+                }
+                entry = new Entry(attrs);
+                entries.put(path, entry);
+            }
+
+            if (block >= entry.slots.length) {
+                return false;
+            }
+
+            if (entry.slots[block] >= 0) {
+                return true;
+            }
+
+            slot = allocate(entry);
+            if (slot < 0) {
+                return false;
+            }
+
+            generation = generations.get(slot);
+            length = entry.blockLength(block);
+        }
+
+        // read outside the lock, the slot is not visible to readers yet
+        ByteBuffer buffer = slot(slot);
+        buffer.limit(buffer.position() + length);
+        long filePosition = (long) block * BLOCK_SIZE;
+        try {
+            while (buffer.hasRemaining()) {
+                int n = channel.read(buffer, filePosition + (length - buffer.remaining()));
+                if (n < 0) {
+                    // file is shorter than expected
+                    free(slot);
+                    return false;
+                }
+            }
+        } catch (IOException e) {
+            free(slot);
+            throw e;
+        } catch (RuntimeException e) {
+            free(slot);
+            throw e;
+        }
+
+        synchronized (this) {
+            Entry entry = entries.get(path);
+            if (entry == null || !entry.matches(attrs) || generations.get(slot) != generation
+                    || entry.slots[block] >= 0) {
+                free(slot);
+                return (entry != null && entry.matches(attrs) && entry.slots[block] >= 0);
+            }
+
+            entry.slots[block] = slot;
+        }
+
+        return true;
+    }
+
+    /**
+     * Drops a document and, if requested, all documents below the given path.
+     */
+    public synchronized void invalidate(String path, boolean recursive) {
+        if (path == null) {
+            return;
+        }
+
+        Entry entry = entries.remove(path);
+        if (entry != null) {
+            release(entry);
+        }
+
+        if (recursive) {
+            String prefix = (path.endsWith("/") ? path : path + "/");
+            for (Iterator<Map.Entry<String, Entry>> iter = entries.entrySet().iterator(); iter.hasNext();) {
+                Map.Entry<String, Entry> e = iter.next();
+                if (e.getKey().startsWith(prefix)) {
+                    release(e.getValue());
+                    iter.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops all documents.
+     */
+    public synchronized void clear() {
+        for (Entry entry : entries.values()) {
+            release(entry);
+        }
+        entries.clear();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BlockCache [documents=" + entries.size() + ", blocks=" + (blockCount - freeCount) + "/" + blockCount
+                + ", hits=" + hits.get() + ", misses=" + misses.get() + "]";
+    }
+
+    // --- internal ---
+
+    /**
+     * Returns a view of a slot, positioned at the start of the block.
+     */
+    private ByteBuffer slot(int slot) {
+        ByteBuffer buffer = slabs[slot / BLOCKS_PER_SLAB].duplicate();
+        int start = (slot % BLOCKS_PER_SLAB) * BLOCK_SIZE;
+        buffer.limit(start + BLOCK_SIZE);
+        buffer.position(start);
+
+        return buffer;
+    }
+
+    /**
+     * Takes a free slot, evicting the least recently used documents if
+     * necessary. The document that needs the slot is never evicted.
+     */
+    private int allocate(Entry owner) {
+        if (freeCount == 0) {
+            for (Iterator<Entry> iter = entries.values().iterator(); iter.hasNext() && freeCount == 0;) {
+                Entry entry = iter.next();
+                if (entry != owner) {
+                    release(entry);
+                    iter.remove();
+                }
+            }
+        }
+
+        if (freeCount == 0) {
+            return -1;
+        }
+
+        return freeSlots[--freeCount];
+    }
+
+    private void release(Entry entry) {
+        for (int i = 0; i < entry.slots.length; i++) {
+            if (entry.slots[i] >= 0) {
+                free(entry.slots[i]);
+                entry.slots[i] = -1;
+            }
+        }
+    }
+
+    private synchronized void free(int slot) {
+        generations.incrementAndGet(slot);
+        freeSlots[freeCount++] = slot;
+    }
+}
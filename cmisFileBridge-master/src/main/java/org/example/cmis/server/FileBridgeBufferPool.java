@@ -0,0 +1,104 @@
+/*
+ * Copyright 2013 Florian Müller & Jay Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is based on the Apache Chemistry OpenCMIS FileShare project
+ * <http://chemistry.apache.org/java/developing/repositories/dev-repositories-fileshare.html>.
+ *
+ * It is part of a training exercise and not intended for production use!
+ *
+ */
+package org.example.cmis.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of large copy buffers.
+ *
+ * Content is copied through buffers that are much bigger than the usual 4 or
+ * 8 KB. Allocating such buffers for every request would put a lot of pressure
+ * on the garbage collector, so they are recycled. If the pool is empty, a new
+ * buffer is allocated; if it is full, returned buffers are dropped.
+ */
+public class FileBridgeBufferPool {
+
+    /** Default buffer size. */
+    public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+    /** Default number of pooled buffers. */
+    public static final int DEFAULT_MAX_BUFFERS = 32;
+
+    private final int bufferSize;
+    private final int maxBuffers;
+    private final Queue<byte[]> buffers;
+    private final AtomicInteger pooled;
+
+    public FileBridgeBufferPool() {
+        this(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_BUFFERS);
+    }
+
+    public FileBridgeBufferPool(int bufferSize, int maxBuffers) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("Buffer size must be positive!");
+        }
+
+        this.bufferSize = bufferSize;
+        this.maxBuffers = Math.max(maxBuffers, 0);
+        this.buffers = new ConcurrentLinkedQueue<byte[]>();
+        this.pooled = new AtomicInteger();
+    }
+
+    /**
+     * Takes a buffer from the pool. The buffer should be returned with
+     * {@link #release(byte[])} when it is not needed anymore.
+     */
+    public byte[] acquire() {
+        byte[] buffer = buffers.poll();
+        if (buffer == null) {
+            return new byte[bufferSize];
+        }
+
+        pooled.decrementAndGet();
+
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool.
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null || buffer.length != bufferSize) {
+            return;
+        }
+
+        if (pooled.incrementAndGet() > maxBuffers) {
+            pooled.decrementAndGet();
+            return;
+        }
+
+        buffers.offer(buffer);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool [size=" + bufferSize + ", pooled=" + pooled.get() + "/" + maxBuffers + "]";
+    }
+}
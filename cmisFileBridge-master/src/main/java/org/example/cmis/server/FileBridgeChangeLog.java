@@ -0,0 +1,589 @@
+/*
+ * Copyright 2013 Florian Müller & Jay Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is based on the Apache Chemistry OpenCMIS FileShare project
+ * <http://chemistry.apache.org/java/developing/repositories/dev-repositories-fileshare.html>.
+ *
+ * It is part of a training exercise and not intended for production use!
+ *
+ */
+package org.example.cmis.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32;
+
+import org.apache.chemistry.opencmis.commons.enums.ChangeType;
+import org.apache.chemistry.opencmis.commons.exceptions.CmisInvalidArgumentException;
+import org.apache.chemistry.opencmis.commons.exceptions.CmisStorageException;
+import org.apache.chemistry.opencmis.commons.impl.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persistent journal of object changes, the base of getContentChanges.
+ *
+ * Each change gets a sequence number, which is also its change log token.
+ * Changes are appended to segment files named after the sequence number of
+ * their first record. When a segment is full, a new one is started and the
+ * oldest segments beyond the retention limit are deleted. Each record carries
+ * a checksum, so a record that has been torn by a crash is detected and cut
+ * off when the log is opened. Records are not forced to disk one by one, so
+ * the latest changes may be lost in a crash.
+ */
+public class FileBridgeChangeLog {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileBridgeChangeLog.class);
+
+    /** Default size at which a new segment is started. */
+    public static final long DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    /** Default number of segments that are kept. */
+    public static final int DEFAULT_MAX_SEGMENTS = 16;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String SEGMENT_PREFIX = "changes-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    /** length (4) + checksum (4) */
+    private static final int HEADER_SIZE = 8;
+
+    /** seq (8) + time (8) + type (1) */
+    private static final int MIN_PAYLOAD_SIZE = 17;
+
+    private static final int MAX_PAYLOAD_SIZE = MIN_PAYLOAD_SIZE + 64 * 1024;
+
+    private static final byte TYPE_CREATED = 1;
+    private static final byte TYPE_UPDATED = 2;
+    private static final byte TYPE_DELETED = 3;
+    private static final byte TYPE_SECURITY = 4;
+
+    /**
+     * A change.
+     */
+    public static final class Entry {
+        private final long seq;
+        private final long time;
+        private final ChangeType type;
+        private final String objectId;
+
+        Entry(long seq, long time, ChangeType type, String objectId) {
+            this.seq = seq;
+            this.time = time;
+            this.type = type;
+            this.objectId = objectId;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public String getToken() {
+            return String.valueOf(seq);
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public ChangeType getType() {
+            return type;
+        }
+
+        public String getObjectId() {
+            return objectId;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry [seq=" + seq + ", type=" + type + ", objectId=" + objectId + "]";
+        }
+    }
+
+    /**
+     * The segment that is being written and its length that readers may see.
+     * Both change together on rotation, so they are published as one.
+     */
+    private static final class Tail {
+        final long segment;
+        final long committed;
+
+        Tail(long segment, long committed) {
+            this.segment = segment;
+            this.committed = committed;
+        }
+    }
+
+    private final Path dir;
+    private final long segmentSize;
+    private final int maxSegments;
+
+    /** Segment files by the sequence number of their first record. */
+    private final ConcurrentSkipListMap<Long, Path> segments;
+
+    private FileChannel channel;
+    private long nextSeq;
+    private volatile Tail tail;
+    private volatile long latestSeq;
+
+    /**
+     * Opens or creates a change log.
+     */
+    public FileBridgeChangeLog(File dir) {
+        this(dir, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS);
+    }
+
+    public FileBridgeChangeLog(File dir, long segmentSize, int maxSegments) {
+        if (dir == null) {
+            throw new IllegalArgumentException("Change log directory must be set!");
+        }
+        if (segmentSize < 1 || maxSegments < 1) {
+            throw new IllegalArgumentException("Invalid change log limits!");
+        }
+
+        this.dir = dir.getAbsoluteFile().toPath();
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        this.segments = new ConcurrentSkipListMap<Long, Path>();
+
+        try {
+            Files.createDirectories(this.dir);
+            recover();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not open change log " + dir + ": " + e.getMessage(), e);
+        }
+
+        LOG.info("Opened change log {} at token {}.", dir, latestSeq);
+    }
+
+    /**
+     * Appends a change.
+     *
+     * @return the change log token of the change
+     */
+    public String record(ChangeType type, String objectId) {
+        if (type == null || objectId == null) {
+            throw new IllegalArgumentException("Type and object id must be set!");
+        }
+
+        byte[] id = objectId.getBytes(UTF8);
+        if (id.length > MAX_PAYLOAD_SIZE - MIN_PAYLOAD_SIZE) {
+            throw new IllegalArgumentException("Object id is too long!");
+        }
+
+        synchronized (this) {
+            if (channel == null) {
+                throw new CmisStorageException("Change log is closed!");
+            }
+
+            long seq = nextSeq;
+
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + MIN_PAYLOAD_SIZE + id.length);
+            buffer.putInt(MIN_PAYLOAD_SIZE + id.length);
+            buffer.putInt(0);
+            buffer.putLong(seq);
+            buffer.putLong(System.currentTimeMillis());
+            buffer.put(encode(type));
+            buffer.put(id);
+
+            CRC32 crc = new CRC32();
+            crc.update(buffer.array(), HEADER_SIZE, buffer.capacity() - HEADER_SIZE);
+            buffer.putInt(4, (int) crc.getValue());
+            buffer.flip();
+
+            try {
+                Tail current = tail;
+                long position = current.committed;
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+
+                nextSeq = seq + 1;
+                tail = new Tail(current.segment, position);
+                latestSeq = seq;
+
+                if (position >= segmentSize) {
+                    rotate();
+                }
+            } catch (IOException e) {
+                throw new CmisStorageException("Could not write change log: " + e.getMessage(), e);
+            }
+
+            return String.valueOf(seq);
+        }
+    }
+
+    /**
+     * Returns the token of the latest change or <code>null</code> if the log
+     * is empty.
+     */
+    public String getLatestToken() {
+        long seq = latestSeq;
+        return (seq > 0 ? String.valueOf(seq) : null);
+    }
+
+    /**
+     * Reads changes, starting with the change of the given token or, if the
+     * token is <code>null</code>, with the oldest change that is still kept.
+     *
+     * @return <code>true</code> if there are more changes
+     */
+    public boolean getChanges(String token, int maxItems, List<Entry> result) {
+        long latest = latestSeq;
+        Long first = (segments.isEmpty() ? null : segments.firstKey());
+
+        long from;
+        if (token == null) {
+            from = (first == null ? 1 : first);
+        } else {
+            try {
+                from = Long.parseLong(token.trim());
+            } catch (NumberFormatException e) {
+                throw new CmisInvalidArgumentException("Invalid change log token: " + token);
+            }
+
+            if (from < 1 || from > latest + 1) {
+                throw new CmisInvalidArgumentException("Invalid change log token: " + token);
+            }
+            if (first == null || from < first) {
+                throw new CmisInvalidArgumentException("Change log token " + token
+                        + " is too old. The changes have been discarded.");
+            }
+        }
+
+        if (maxItems < 1 || from > latest) {
+            return from <= latest;
+        }
+
+        long seq = from;
+        while (result.size() < maxItems && seq <= latest) {
+            Map.Entry<Long, Path> segment = segments.floorEntry(seq);
+            if (segment == null) {
+                break;
+            }
+
+            Long nextSegment = segments.higherKey(segment.getKey());
+
+            // older segments are complete, a newer one has nothing yet
+            Tail current = tail;
+            long limit;
+            if (segment.getKey() < current.segment) {
+                limit = Long.MAX_VALUE;
+            } else if (segment.getKey() == current.segment) {
+                limit = current.committed;
+            } else {
+                limit = 0;
+            }
+
+            long last;
+            try {
+                last = read(segment.getValue(), seq, latest, limit, maxItems, result);
+            } catch (NoSuchFileException e) {
+                throw new CmisInvalidArgumentException("Change log token " + token
+                        + " is too old. The changes have been discarded.");
+            } catch (IOException e) {
+                throw new CmisStorageException("Could not read change log: " + e.getMessage(), e);
+            }
+
+            if (last < seq) {
+                // nothing found in this segment
+                if (nextSegment == null) {
+                    break;
+                }
+                seq = nextSegment;
+            } else {
+                seq = last + 1;
+            }
+        }
+
+        return seq <= latest;
+    }
+
+    /**
+     * Flushes and closes the log.
+     */
+    public synchronized void close() {
+        if (channel == null) {
+            return;
+        }
+
+        try {
+            channel.force(true);
+        } catch (IOException e) {
+            LOG.warn("Could not flush change log {}: {}", dir, e.getMessage());
+        } finally {
+            IOUtils.closeQuietly(channel);
+            channel = null;
+        }
+    }
+
+    public Path getDirectory() {
+        return dir;
+    }
+
+    @Override
+    public String toString() {
+        return "ChangeLog [dir=" + dir + ", latest=" + latestSeq + ", segments=" + segments.size() + "]";
+    }
+
+    // --- internal ---
+
+    /**
+     * Loads the segment list, cuts off a torn record at the end of the last
+     * segment and opens it for appending.
+     */
+    private void recover() throws IOException {
+        DirectoryStream<Path> stream = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX);
+        try {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    segments.put(
+                            Long.valueOf(name.substring(SEGMENT_PREFIX.length(),
+                                    name.length() - SEGMENT_SUFFIX.length())), path);
+                } catch (NumberFormatException e) {
+                    LOG.warn("Ignoring {} in change log {}.", name, dir);
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(stream);
+        }
+
+        if (segments.isEmpty()) {
+            nextSeq = 1;
+            latestSeq = 0;
+            openSegment(1);
+            return;
+        }
+
+        Map.Entry<Long, Path> last = segments.lastEntry();
+        Path path = last.getValue();
+
+        long[] state = scan(path);
+        long valid = state[0];
+        long lastSeq = state[1];
+
+        channel = FileChannel.open(path, StandardOpenOption.WRITE);
+        if (channel.size() > valid) {
+            LOG.warn("Truncating change log segment {} from {} to {} bytes.", path, channel.size(), valid);
+            channel.truncate(valid);
+        }
+
+        tail = new Tail(last.getKey(), valid);
+        latestSeq = (lastSeq > 0 ? lastSeq : last.getKey() - 1);
+        nextSeq = latestSeq + 1;
+    }
+
+    /**
+     * Returns the length of the valid part of a segment and the sequence
+     * number of its last record.
+     */
+    private static long[] scan(Path path) throws IOException {
+        FileChannel in = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long size = in.size();
+            long position = 0;
+            long lastSeq = 0;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+            while (position + HEADER_SIZE <= size) {
+                header.clear();
+                readFully(in, header, position);
+                int length = header.getInt(0);
+                if (length < MIN_PAYLOAD_SIZE || length > MAX_PAYLOAD_SIZE
+                        || position + HEADER_SIZE + length > size) {
+                    break;
+                }
+
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                readFully(in, payload, position + HEADER_SIZE);
+                if (!checksumMatches(header.getInt(4), payload)) {
+                    break;
+                }
+
+                lastSeq = payload.getLong(0);
+                position += HEADER_SIZE + length;
+            }
+
+            return new long[] { position, lastSeq };
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Reads the records of a segment from <code>from</code> to
+     * <code>to</code>.
+     *
+     * @return the sequence number of the last record read
+     */
+    private static long read(Path path, long from, long to, long limit, int maxItems, List<Entry> result)
+            throws IOException {
+        FileChannel in = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long size = Math.min(in.size(), limit);
+            long position = 0;
+            long last = -1;
+
+            // large enough for most records
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            buffer.limit(0);
+            long bufferStart = 0;
+
+            while (position + HEADER_SIZE <= size && result.size() < maxItems) {
+                if (position + HEADER_SIZE > bufferStart + buffer.limit()) {
+                    bufferStart = fill(in, buffer, position, size);
+                }
+
+                int offset = (int) (position - bufferStart);
+                int length = buffer.getInt(offset);
+                if (length < MIN_PAYLOAD_SIZE || length > MAX_PAYLOAD_SIZE
+                        || position + HEADER_SIZE + length > size) {
+                    break;
+                }
+
+                if (position + HEADER_SIZE + length > bufferStart + buffer.limit()) {
+                    if (HEADER_SIZE + length > buffer.capacity()) {
+                        buffer = ByteBuffer.allocate(HEADER_SIZE + length);
+                    }
+                    bufferStart = fill(in, buffer, position, size);
+                    offset = 0;
+                }
+
+                int checksum = buffer.getInt(offset + 4);
+                ByteBuffer payload = ByteBuffer.wrap(buffer.array(), offset + HEADER_SIZE, length).slice();
+                if (!checksumMatches(checksum, payload)) {
+                    break;
+                }
+
+                long seq = payload.getLong(0);
+                if (seq > to) {
+                    break;
+                }
+
+                if (seq >= from) {
+                    long time = payload.getLong(8);
+                    ChangeType type = decode(payload.get(16));
+                    String objectId = new String(payload.array(), payload.arrayOffset() + MIN_PAYLOAD_SIZE, length
+                            - MIN_PAYLOAD_SIZE, UTF8);
+                    if (type != null) {
+                        result.add(new Entry(seq, time, type, objectId));
+                    }
+                    last = seq;
+                }
+
+                position += HEADER_SIZE + length;
+            }
+
+            return last;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Fills the buffer with the bytes starting at <code>position</code>.
+     *
+     * @return the file position of the buffer start
+     */
+    private static long fill(FileChannel in, ByteBuffer buffer, long position, long size) throws IOException {
+        buffer.clear();
+        buffer.limit((int) Math.min(buffer.capacity(), size - position));
+        readFully(in, buffer, position);
+        buffer.flip();
+        return position;
+    }
+
+    private static void readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = in.read(buffer, position);
+            if (n < 0) {
+                break;
+            }
+            position += n;
+        }
+    }
+
+    private static boolean checksumMatches(int checksum, ByteBuffer payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload.array(), payload.arrayOffset(), payload.capacity());
+        return (int) crc.getValue() == checksum;
+    }
+
+    /**
+     * Starts a new segment and deletes the oldest segments.
+     */
+    private void rotate() throws IOException {
+        channel.force(false);
+        IOUtils.closeQuietly(channel);
+        channel = null;
+
+        openSegment(nextSeq);
+
+        while (segments.size() > maxSegments) {
+            Map.Entry<Long, Path> oldest = segments.pollFirstEntry();
+            Files.deleteIfExists(oldest.getValue());
+        }
+    }
+
+    private void openSegment(long firstSeq) throws IOException {
+        Path path = dir.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstSeq, SEGMENT_SUFFIX));
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        segments.put(firstSeq, path);
+        tail = new Tail(firstSeq, 0);
+    }
+
+    private static byte encode(ChangeType type) {
+        switch (type) {
+        case CREATED:
+            return TYPE_CREATED;
+        case UPDATED:
+            return TYPE_UPDATED;
+        case DELETED:
+            return TYPE_DELETED;
+        default:
+            return TYPE_SECURITY;
+        }
+    }
+
+    private static ChangeType decode(byte type) {
+        switch (type) {
+        case TYPE_CREATED:
+            return ChangeType.CREATED;
+        case TYPE_UPDATED:
+            return ChangeType.UPDATED;
+        case TYPE_DELETED:
+            return ChangeType.DELETED;
+        case TYPE_SECURITY:
+            return ChangeType.SECURITY;
+        default:
+            return null;
+        }
+    }
+}
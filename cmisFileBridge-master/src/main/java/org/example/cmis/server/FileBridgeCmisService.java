@@ -321,7 +321,7 @@ public class FileBridgeCmisService extends AbstractCmisService implements CallCo
 			Boolean overwriteFlag, Holder<String> changeToken,
 			ContentStream contentStream, ExtensionsData extension) {
 		getRepository().changeContentStream(getCallContext(), objectId,
-				overwriteFlag, contentStream, false);
+				overwriteFlag, changeToken, contentStream, false);
 	}
 
 	@Override
@@ -329,8 +329,8 @@ public class FileBridgeCmisService extends AbstractCmisService implements CallCo
 			Holder<String> objectId, Holder<String> changeToken,
 			ContentStream contentStream, boolean isLastChunk,
 			ExtensionsData extension) {
-		getRepository().changeContentStream(getCallContext(), objectId, true,
-				contentStream, true);
+		getRepository().appendContentStream(getCallContext(), objectId,
+				changeToken, contentStream, isLastChunk, extension);
 	}
 
 	@Override
@@ -338,7 +338,7 @@ public class FileBridgeCmisService extends AbstractCmisService implements CallCo
 			Holder<String> objectId, Holder<String> changeToken,
 			ExtensionsData extension) {
 		getRepository().changeContentStream(getCallContext(), objectId, true,
-				null, false);
+				changeToken, null, false);
 	}
 
 	@Override
@@ -346,7 +346,7 @@ public class FileBridgeCmisService extends AbstractCmisService implements CallCo
 			Holder<String> changeToken, Properties properties,
 			ExtensionsData extension) {
 		getRepository().updateProperties(getCallContext(), objectId,
-				properties, this);
+				changeToken, properties, this);
 	}
 
 	@Override
@@ -412,4 +412,13 @@ public class FileBridgeCmisService extends AbstractCmisService implements CallCo
 		return getRepository().query(getCallContext(), statement,
 				includeAllowableActions, maxItems, skipCount, this);
 	}
+
+	@Override
+	public ObjectList getContentChanges(String repositoryId,
+			Holder<String> changeLogToken, Boolean includeProperties,
+			String filter, Boolean includePolicyIds, Boolean includeAcl,
+			BigInteger maxItems, ExtensionsData extension) {
+		return getRepository().getContentChanges(getCallContext(),
+				changeLogToken, maxItems);
+	}
 }
@@ -22,6 +22,7 @@
  */
 package org.example.cmis.server;
 
+import java.io.File;
 import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -51,6 +52,24 @@ public class FileBridgeCmisServiceFactory extends AbstractServiceFactory {
     private static final String PREFIX_REPOSITORY = "repository.";
     private static final String SUFFIX_READWRITE = ".readwrite";
     private static final String SUFFIX_READONLY = ".readonly";
+    private static final String SUFFIX_ID_CACHE_SIZE = ".idcachesize";
+    private static final String SUFFIX_ID_INDEX = ".idindex";
+    private static final String SUFFIX_MIME_SNIFFING = ".mimesniffing";
+    private static final String SUFFIX_CONTENT_CACHE_SIZE = ".contentcachesize";
+    private static final String SUFFIX_LISTING_CACHE_SIZE = ".listingcachesize";
+    private static final String SUFFIX_DURABILITY = ".durability";
+    private static final String SUFFIX_UPLOAD_SESSIONS = ".uploadsessions";
+    private static final String SUFFIX_COPY_STRATEGIES = ".copystrategies";
+    private static final String SUFFIX_BLOB_STORE = ".blobstore";
+    private static final String SUFFIX_CHANGE_LOG = ".changelog";
+    private static final String SUFFIX_WATCH = ".watch";
+    private static final String SUFFIX_TREE_THREADS = ".treethreads";
+    private static final String SUFFIX_TREE_REQUEST_THREADS = ".treerequestthreads";
+    private static final String SUFFIX_DESCENDANTS_MAX_NODES = ".descendantsmaxnodes";
+    private static final String SUFFIX_DESCENDANTS_MAX_BYTES = ".descendantsmaxbytes";
+    private static final String SUFFIX_DELETE_THREADS = ".deletethreads";
+    private static final String SUFFIX_DELETE_RATE = ".deleterate";
+    private static final String SUFFIX_METADATA_INDEX = ".metadataindex";
 
     /** Default maxItems value for getTypeChildren()}. */
     private static final BigInteger DEFAULT_MAX_ITEMS_TYPES = BigInteger.valueOf(50);
@@ -99,6 +118,10 @@ public class FileBridgeCmisServiceFactory extends AbstractServiceFactory {
     @Override
     public void destroy() {
         threadLocalService = null;
+
+        for (FileBridgeRepository fsr : repositoryManager.getRepositories()) {
+            fsr.shutdown();
+        }
     }
 
     @Override
@@ -183,6 +206,102 @@ public class FileBridgeCmisServiceFactory extends AbstractServiceFactory {
                     for (String user : split(parameters.get(key))) {
                         fsr.setUserReadOnly(user);
                     }
+                } else if (key.endsWith(SUFFIX_ID_CACHE_SIZE)) {
+                    // id cache size
+                    FileBridgeRepository fsr = repositoryManager.getRepository(repositoryId);
+                    fsr.setIdCacheSize(parseInt(key, parameters.get(key)));
+                } else if (key.endsWith(SUFFIX_ID_INDEX)) {
+                    // compact ids kept in an index file
+                    FileBridgeRepository fsr = repositoryManager.getRepository(repositoryId);
+                    String indexFile = parameters.get(key).trim();
+
+                    LOG.info("Using id index for repository '{}': {}", repositoryId, indexFile);
+
+                    fsr.setIdIndex(new File(indexFile));
+                } else if (key.endsWith(SUFFIX_CONTENT_CACHE_SIZE)) {
+                    // off-heap content cache
+                    FileBridgeRepository fsr = repositoryManager.getRepository(repositoryId);
+                    fsr.setContentCacheSize(parseLong(key, parameters.get(key)));
+                } else if (key.endsWith(SUFFIX_LISTING_CACHE_SIZE)) {
+                    // folder listing cache
+                    FileBridgeRepository fsr = repositoryManager.getRepository(repositoryId);
+                    fsr.setListingCacheSize(parseLong(key, parameters.get(key)));
+                } else if (key.endsWith(SUFFIX_MIME_SNIFFING)) {
+                    // content sniffing for files without a known extension
+                    FileBridgeRepository fsr = repositoryManager.getRepository(repositoryId);
+                    fsr.setMimeSniffing(Boolean.parseBoolean(parameters.get(key).trim()));
+                } else if (key.endsWith(SUFFIX_DURABILITY)) {
+                    // when written content is forced to disk
+                    FileBridgeRepository fsr = repositoryManager.getRepository(repositoryId);
+                    try {
+                        fsr.setDurability(FileBridgeDurability.Mode.fromValue(parameters.get(key)));
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException("Invalid value for '" + key + "': " + parameters.get(key));
+                    }
+                } else if (key.endsWith(SUFFIX_UPLOAD_SESSIONS)) {
+                    // staged chunked uploads
+                    FileBridgeRepository fsr = repositoryManager.getRepository(repositoryId);
+                    fsr.setUploadSessions(Boolean.parseBoolean(parameters.get(key).trim()));
+                } else if (key.endsWith(SUFFIX_COPY_STRATEGIES)) {
+                    // how content is copied, in order of preference
+                    FileBridgeRepository fsr = repositoryManager.getRepository(repositoryId);
+                    List<FileBridgeCopier.Strategy> strategies = new ArrayList<FileBridgeCopier.Strategy>();
+                    try {
+                        for (String strategy : split(parameters.get(key))) {
+                            strategies.add(FileBridgeCopier.Strategy.fromValue(strategy));
+                        }
+                        fsr.setCopyStrategies(strategies);
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException("Invalid value for '" + key + "': " + parameters.get(key));
+                    }
+                } else if (key.endsWith(SUFFIX_BLOB_STORE)) {
+                    // deduplicated content
+                    FileBridgeRepository fsr = repositoryManager.getRepository(repositoryId);
+                    String blobDir = parameters.get(key).trim();
+
+                    LOG.info("Using blob store for repository '{}': {}", repositoryId, blobDir);
+
+                    fsr.setBlobStore(new File(blobDir));
+                } else if (key.endsWith(SUFFIX_CHANGE_LOG)) {
+                    // journal for getContentChanges
+                    FileBridgeRepository fsr = repositoryManager.getRepository(repositoryId);
+                    String logDir = parameters.get(key).trim();
+
+                    LOG.info("Using change log for repository '{}': {}", repositoryId, logDir);
+
+                    fsr.setChangeLog(new File(logDir));
+                } else if (key.endsWith(SUFFIX_WATCH)) {
+                    // changes made by other processes
+                    FileBridgeRepository fsr = repositoryManager.getRepository(repositoryId);
+                    fsr.setWatcher(Boolean.parseBoolean(parameters.get(key).trim()));
+                } else if (key.endsWith(SUFFIX_TREE_THREADS)) {
+                    // parallel getDescendants and getFolderTree
+                    FileBridgeRepository fsr = repositoryManager.getRepository(repositoryId);
+                    fsr.setTreeThreads(parseInt(key, parameters.get(key)));
+                } else if (key.endsWith(SUFFIX_TREE_REQUEST_THREADS)) {
+                    // share of the tree threads a single request may use
+                    FileBridgeRepository fsr = repositoryManager.getRepository(repositoryId);
+                    fsr.setTreeRequestThreads(parseInt(key, parameters.get(key)));
+                } else if (key.endsWith(SUFFIX_DESCENDANTS_MAX_NODES)) {
+                    // bounded getDescendants and getFolderTree
+                    FileBridgeRepository fsr = repositoryManager.getRepository(repositoryId);
+                    fsr.setDescendantsMaxNodes(parseLong(key, parameters.get(key)));
+                } else if (key.endsWith(SUFFIX_DESCENDANTS_MAX_BYTES)) {
+                    // bounded getDescendants and getFolderTree
+                    FileBridgeRepository fsr = repositoryManager.getRepository(repositoryId);
+                    fsr.setDescendantsMaxBytes(parseLong(key, parameters.get(key)));
+                } else if (key.endsWith(SUFFIX_DELETE_THREADS)) {
+                    // background deleteTree
+                    FileBridgeRepository fsr = repositoryManager.getRepository(repositoryId);
+                    fsr.setDeleteThreads(parseInt(key, parameters.get(key)));
+                } else if (key.endsWith(SUFFIX_DELETE_RATE)) {
+                    // throttled background deletions
+                    FileBridgeRepository fsr = repositoryManager.getRepository(repositoryId);
+                    fsr.setDeleteRate(parseLong(key, parameters.get(key)));
+                } else if (key.endsWith(SUFFIX_METADATA_INDEX)) {
+                    // queries beyond IN_FOLDER
+                    FileBridgeRepository fsr = repositoryManager.getRepository(repositoryId);
+                    fsr.setMetadataIndex(Boolean.parseBoolean(parameters.get(key).trim()));
                 } else {
                     // new repository
                     String root = parameters.get(key);
@@ -196,6 +315,28 @@ public class FileBridgeCmisServiceFactory extends AbstractServiceFactory {
         }
     }
 
+    /**
+     * Parses an integer configuration value.
+     */
+    private int parseInt(String key, String value) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Invalid value for '" + key + "': " + value);
+        }
+    }
+
+    /**
+     * Parses a long configuration value.
+     */
+    private long parseLong(String key, String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Invalid value for '" + key + "': " + value);
+        }
+    }
+
     /**
      * Splits a string by comma.
      */
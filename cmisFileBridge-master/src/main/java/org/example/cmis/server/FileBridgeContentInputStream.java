@@ -0,0 +1,375 @@
+/*
+ * Copyright 2013 Florian Müller & Jay Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is based on the Apache Chemistry OpenCMIS FileShare project
+ * <http://chemistry.apache.org/java/developing/repositories/dev-repositories-fileshare.html>.
+ *
+ * It is part of a training exercise and not intended for production use!
+ *
+ */
+package org.example.cmis.server;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Document content backed by a {@link FileChannel}.
+ *
+ * The stream reads directly from the channel without an intermediate buffer.
+ * Code that has access to a channel of the receiver, for example a servlet
+ * running in a container that exposes the socket channel, should call
+ * {@link #transferTo(WritableByteChannel)}, which lets the kernel move the
+ * bytes without copying them through the heap. {@link #transferTo(OutputStream)}
+ * copies through a large pooled buffer and is picked up by
+ * {@code InputStream.transferTo} callers on Java 9 and later. Everything else
+ * sees a plain {@link InputStream}.
+ *
+ * The stream can be restricted to one or more byte ranges of the file, which
+ * are delivered one after the other. Ranges are read positionally, so the
+ * cost of a range doesn't depend on its offset.
+ *
+ * If a block cache is attached, reads are served from the cache where
+ * possible and missing blocks are loaded into it. The file is only opened if
+ * a block is missing.
+ */
+public class FileBridgeContentInputStream extends InputStream {
+
+    /**
+     * A byte range of a file.
+     */
+    public static final class Range {
+        private final long offset;
+        private final long length;
+
+        /**
+         * Creates a range. A negative length means "up to the end of the file".
+         */
+        public Range(long offset, long length) {
+            this.offset = Math.max(offset, 0);
+            this.length = (length < 0 ? Long.MAX_VALUE : length);
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        @Override
+        public String toString() {
+            return "Range [" + offset + ", " + (length == Long.MAX_VALUE ? "*" : String.valueOf(length)) + "]";
+        }
+    }
+
+    private final File file;
+    private FileChannel channel;
+    private final FileBridgeBufferPool bufferPool;
+    private final FileBridgeBlockCache cache;
+    private final String cacheKey;
+    private final FileBridgeFileAttributes attrs;
+    private final long[] starts;
+    private final long[] ends;
+    private int range;
+    private long position;
+    private long end;
+    /** Buffer of {@link #read()}. */
+    private final byte[] single = new byte[1];
+
+    /**
+     * Creates a stream over the whole channel.
+     */
+    public FileBridgeContentInputStream(FileChannel channel, FileBridgeBufferPool bufferPool) throws IOException {
+        this(channel, bufferPool, Collections.singletonList(new Range(0, -1)));
+    }
+
+    /**
+     * Creates a stream over the given ranges of the channel. Ranges are
+     * clipped to the size of the file.
+     */
+    public FileBridgeContentInputStream(FileChannel channel, FileBridgeBufferPool bufferPool, List<Range> ranges)
+            throws IOException {
+        this(null, checkChannel(channel), channel.size(), bufferPool, ranges, null, null, null);
+    }
+
+    /**
+     * Creates a stream over the given ranges of a document that reads through
+     * a block cache. The file is opened when the first block is missing in the
+     * cache.
+     *
+     * @param cacheKey
+     *            the key of the document in the cache
+     */
+    public FileBridgeContentInputStream(FileBridgeFileAttributes attrs, FileBridgeBufferPool bufferPool,
+            List<Range> ranges, FileBridgeBlockCache cache, String cacheKey) {
+        this(attrs.getFile(), null, attrs.getSize(), bufferPool, ranges, cache, cacheKey, attrs);
+    }
+
+    private FileBridgeContentInputStream(File file, FileChannel channel, long size, FileBridgeBufferPool bufferPool,
+            List<Range> ranges, FileBridgeBlockCache cache, String cacheKey, FileBridgeFileAttributes attrs) {
+        if (ranges == null || ranges.isEmpty()) {
+            throw new IllegalArgumentException("Ranges must be set!");
+        }
+
+        this.file = file;
+        this.channel = channel;
+        this.bufferPool = bufferPool;
+        this.cache = cache;
+        this.cacheKey = cacheKey;
+        this.attrs = attrs;
+
+        List<Range> clipped = new ArrayList<Range>(ranges.size());
+        for (Range r : ranges) {
+            if (r.getOffset() < size) {
+                clipped.add(r);
+            }
+        }
+
+        starts = new long[clipped.size()];
+        ends = new long[clipped.size()];
+        for (int i = 0; i < starts.length; i++) {
+            Range r = clipped.get(i);
+            starts[i] = r.getOffset();
+            ends[i] = r.getOffset() + Math.min(r.getLength(), size - r.getOffset());
+        }
+
+        range = -1;
+        nextRange();
+    }
+
+    private static FileChannel checkChannel(FileChannel channel) {
+        if (channel == null) {
+            throw new IllegalArgumentException("Channel must be set!");
+        }
+
+        return channel;
+    }
+
+    /**
+     * Returns the underlying channel. The file is opened if necessary.
+     */
+    public FileChannel getChannel() throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+
+        return channel;
+    }
+
+    /**
+     * Returns the position of the next byte in the file.
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Returns the number of bytes left in this stream.
+     */
+    public long getRemaining() {
+        long remaining = Math.max(end - position, 0);
+        for (int i = range + 1; i < starts.length; i++) {
+            remaining += ends[i] - starts[i];
+        }
+
+        return remaining;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int n = read(single, 0, 1);
+
+        return (n == -1 ? -1 : single[0] & 0xFF);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        if (!nextRange()) {
+            return -1;
+        }
+
+        int max = (int) Math.min(len, end - position);
+
+        if (cache != null) {
+            int n = cache.read(cacheKey, attrs, position, b, off, max);
+            if (n < 0 && cache.load(cacheKey, attrs, position, getChannel())) {
+                n = cache.read(cacheKey, attrs, position, b, off, max);
+            }
+
+            if (n >= 0) {
+                position += n;
+                return n;
+            }
+        }
+
+        int n = getChannel().read(ByteBuffer.wrap(b, off, max), position);
+        if (n == -1) {
+            // file has been truncated
+            exhaust();
+            return -1;
+        }
+
+        position += n;
+
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+
+        long skipped = 0;
+        while (skipped < n && nextRange()) {
+            long step = Math.min(n - skipped, end - position);
+            position += step;
+            skipped += step;
+        }
+
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(getRemaining(), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Transfers the rest of the stream to the given channel.
+     *
+     * @return the number of bytes transferred
+     */
+    public long transferTo(WritableByteChannel target) throws IOException {
+        if (cache != null) {
+            // cached blocks have to go through read()
+            return copy(target);
+        }
+
+        long total = 0;
+
+        while (nextRange()) {
+            long n = getChannel().transferTo(position, end - position, target);
+            if (n <= 0) {
+                if (position >= getChannel().size()) {
+                    // file has been truncated
+                    exhaust();
+                    break;
+                }
+
+                // the target doesn't take bytes this way; retrying would
+                // spin, copying blocks or fails
+                return total + copy(target);
+            }
+
+            position += n;
+            total += n;
+        }
+
+        return total;
+    }
+
+    /**
+     * Copies the rest of the stream to the given output stream.
+     *
+     * @return the number of bytes copied
+     */
+    public long transferTo(OutputStream out) throws IOException {
+        if (out instanceof FileOutputStream) {
+            return transferTo(((FileOutputStream) out).getChannel());
+        }
+
+        return copy(out);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    /**
+     * Copies the rest of the stream through a pooled buffer. The target is
+     * either an {@link OutputStream} or a {@link WritableByteChannel}.
+     */
+    private long copy(Object target) throws IOException {
+        byte[] buffer = (bufferPool == null ? new byte[FileBridgeBufferPool.DEFAULT_BUFFER_SIZE] : bufferPool
+                .acquire());
+        try {
+            long total = 0;
+            int n;
+            while ((n = read(buffer, 0, buffer.length)) > -1) {
+                if (target instanceof OutputStream) {
+                    ((OutputStream) target).write(buffer, 0, n);
+                } else {
+                    ByteBuffer bb = ByteBuffer.wrap(buffer, 0, n);
+                    while (bb.hasRemaining()) {
+                        // only a non-blocking channel writes nothing
+                        if (((WritableByteChannel) target).write(bb) == 0) {
+                            throw new IOException("Target channel doesn't accept more bytes!");
+                        }
+                    }
+                }
+                total += n;
+            }
+
+            return total;
+        } finally {
+            if (bufferPool != null) {
+                bufferPool.release(buffer);
+            }
+        }
+    }
+
+    /**
+     * Moves to the next range if the current range is exhausted. Returns
+     * <code>false</code> if there are no more bytes.
+     */
+    private boolean nextRange() {
+        while (position >= end) {
+            if (range + 1 >= starts.length) {
+                return false;
+            }
+
+            range++;
+            position = starts[range];
+            end = ends[range];
+        }
+
+        return true;
+    }
+
+    private void exhaust() {
+        range = starts.length;
+        position = end;
+    }
+}
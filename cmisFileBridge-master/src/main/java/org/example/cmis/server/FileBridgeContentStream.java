@@ -0,0 +1,80 @@
+/*
+ * Copyright 2013 Florian Müller & Jay Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is based on the Apache Chemistry OpenCMIS FileShare project
+ * <http://chemistry.apache.org/java/developing/repositories/dev-repositories-fileshare.html>.
+ *
+ * It is part of a training exercise and not intended for production use!
+ *
+ */
+package org.example.cmis.server;
+
+import java.util.GregorianCalendar;
+
+import org.apache.chemistry.opencmis.commons.data.CacheHeaderContentStream;
+import org.apache.chemistry.opencmis.commons.data.LastModifiedContentStream;
+import org.apache.chemistry.opencmis.commons.data.PartialContentStream;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.ContentStreamImpl;
+
+/**
+ * Content stream that carries the change token of the document as ETag and
+ * its modification date. The OpenCMIS bindings send both as HTTP headers and
+ * answer conditional requests (<code>If-None-Match</code>,
+ * <code>If-Modified-Since</code>) with 304 Not Modified.
+ */
+public class FileBridgeContentStream extends ContentStreamImpl implements CacheHeaderContentStream,
+        LastModifiedContentStream {
+
+    private static final long serialVersionUID = 1L;
+
+    private String eTag;
+    private GregorianCalendar lastModified;
+
+    /**
+     * A range of the content.
+     */
+    public static class Partial extends FileBridgeContentStream implements PartialContentStream {
+        private static final long serialVersionUID = 1L;
+    }
+
+    @Override
+    public String getETag() {
+        return eTag;
+    }
+
+    public void setETag(String eTag) {
+        this.eTag = eTag;
+    }
+
+    @Override
+    public GregorianCalendar getLastModified() {
+        return lastModified;
+    }
+
+    public void setLastModified(GregorianCalendar lastModified) {
+        this.lastModified = lastModified;
+    }
+
+    @Override
+    public String getCacheControl() {
+        return null;
+    }
+
+    @Override
+    public GregorianCalendar getExpires() {
+        return null;
+    }
+}
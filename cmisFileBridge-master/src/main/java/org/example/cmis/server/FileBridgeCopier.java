@@ -0,0 +1,440 @@
+/*
+ * Copyright 2013 Florian Müller & Jay Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is based on the Apache Chemistry OpenCMIS FileShare project
+ * <http://chemistry.apache.org/java/developing/repositories/dev-repositories-fileshare.html>.
+ *
+ * It is part of a training exercise and not intended for production use!
+ *
+ */
+package org.example.cmis.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.chemistry.opencmis.commons.impl.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Copies document content.
+ *
+ * The configured strategies are tried in order until one succeeds:
+ * <ul>
+ * <li>{@link Strategy#REFLINK}: the file system clones the file and shares
+ * its blocks until one of the copies is changed (Btrfs, XFS, ...). Java
+ * can't issue the clone call itself, so this runs
+ * <code>cp --reflink=always</code> and is only used for large files on
+ * Linux. Each file store is probed once with a small file; stores that
+ * don't support it are skipped from then on. A clone that fails or takes
+ * too long falls through to the next strategy.</li>
+ * <li>{@link Strategy#HARDLINK}: the copy is a hard link to the source. This
+ * is safe because content is replaced by renaming a new file over the
+ * document, and appends to linked documents copy the content first.</li>
+ * <li>{@link Strategy#KERNEL}: the kernel copies the bytes without moving
+ * them through the heap.</li>
+ * <li>{@link Strategy#BUFFERED}: a copy through a pooled buffer.</li>
+ * </ul>
+ * The number of copies and bytes per strategy are counted.
+ */
+public class FileBridgeCopier {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileBridgeCopier.class);
+
+    /** Files smaller than this are not worth starting a process for. */
+    private static final long REFLINK_THRESHOLD = 1024 * 1024;
+
+    /** Time a clone may take before it is killed. */
+    private static final long REFLINK_TIMEOUT = 30 * 1000;
+
+    /** Size of the probe file, large enough not to be stored inline. */
+    private static final int REFLINK_PROBE_SIZE = 64 * 1024;
+
+    /** Result of a clone that has been killed. */
+    private static final int TIMED_OUT = -1;
+
+    private static final boolean IS_LINUX = System.getProperty("os.name", "").toLowerCase(Locale.ENGLISH)
+            .contains("linux");
+
+    /**
+     * Copy strategies.
+     */
+    public enum Strategy {
+        REFLINK, HARDLINK, KERNEL, BUFFERED;
+
+        public static Strategy fromValue(String value) {
+            try {
+                return valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+            } catch (Exception e) {
+                throw new IllegalArgumentException("Unknown copy strategy: " + value);
+            }
+        }
+    }
+
+    /** Default strategies. */
+    public static final List<Strategy> DEFAULT_STRATEGIES = Collections.unmodifiableList(Arrays.asList(
+            Strategy.REFLINK, Strategy.KERNEL, Strategy.BUFFERED));
+
+    private final List<Strategy> strategies;
+    private final FileBridgeBufferPool bufferPool;
+    /** Probe results by file store. */
+    private final Map<FileStore, Boolean> reflinkSupport;
+    private final AtomicLongArray copies;
+    private final AtomicLongArray bytes;
+
+    public FileBridgeCopier(List<Strategy> strategies, FileBridgeBufferPool bufferPool) {
+        if (strategies == null || strategies.isEmpty()) {
+            throw new IllegalArgumentException("No copy strategy!");
+        }
+
+        this.strategies = Collections.unmodifiableList(new ArrayList<Strategy>(strategies));
+        this.bufferPool = bufferPool;
+        this.reflinkSupport = new ConcurrentHashMap<FileStore, Boolean>();
+        this.copies = new AtomicLongArray(Strategy.values().length);
+        this.bytes = new AtomicLongArray(Strategy.values().length);
+    }
+
+    public List<Strategy> getStrategies() {
+        return strategies;
+    }
+
+    /**
+     * Copies a file into an existing, empty target file.
+     *
+     * @return the strategy that has been used
+     */
+    public Strategy copy(Path source, Path target) throws IOException {
+        long size = Files.size(source);
+
+        Strategy used = null;
+        for (Strategy strategy : strategies) {
+            if (strategy == Strategy.REFLINK) {
+                if (reflink(source, target, size)) {
+                    used = strategy;
+                    break;
+                }
+            } else if (strategy == Strategy.HARDLINK) {
+                if (hardlink(source, target)) {
+                    used = strategy;
+                    break;
+                }
+            } else {
+                used = copyData(source, target, strategy == Strategy.KERNEL);
+                break;
+            }
+        }
+
+        if (used == null) {
+            // none of the configured strategies worked -> plain copy
+            used = copyData(source, target, false);
+        }
+
+        copies.incrementAndGet(used.ordinal());
+        bytes.addAndGet(used.ordinal(), size);
+
+        return used;
+    }
+
+    /**
+     * Replaces an existing, empty target file with a hard link to the
+     * source, regardless of the configured strategies.
+     *
+     * @return <code>false</code> if the file system doesn't support it
+     */
+    public boolean link(Path source, Path target) throws IOException {
+        long size = Files.size(source);
+        if (!hardlink(source, target)) {
+            return false;
+        }
+
+        copies.incrementAndGet(Strategy.HARDLINK.ordinal());
+        bytes.addAndGet(Strategy.HARDLINK.ordinal(), size);
+
+        return true;
+    }
+
+    /**
+     * Copies the bytes of a file into an existing target file. The result is
+     * never linked to the source.
+     */
+    public void copyData(Path source, Path target) throws IOException {
+        copyData(source, target, true);
+    }
+
+    /**
+     * Returns the number of copies made with the given strategy.
+     */
+    public long getCopies(Strategy strategy) {
+        return copies.get(strategy.ordinal());
+    }
+
+    /**
+     * Returns the number of bytes copied with the given strategy.
+     */
+    public long getBytes(Strategy strategy) {
+        return bytes.get(strategy.ordinal());
+    }
+
+    /**
+     * Checks if a file has more than one hard link, which means that other
+     * documents share its content.
+     */
+    public static boolean isLinked(Path file) {
+        try {
+            Object nlink = Files.getAttribute(file, "unix:nlink");
+            return (nlink instanceof Number) && ((Number) nlink).intValue() > 1;
+        } catch (UnsupportedOperationException e) {
+            return false;
+        } catch (IllegalArgumentException e) {
+            return false;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("Copier [");
+        for (Strategy strategy : Strategy.values()) {
+            if (strategy.ordinal() > 0) {
+                sb.append(", ");
+            }
+            sb.append(strategy.name().toLowerCase(Locale.ENGLISH)).append('=').append(getCopies(strategy)).append('/')
+                    .append(getBytes(strategy));
+        }
+        sb.append(']');
+
+        return sb.toString();
+    }
+
+    // --- strategies ---
+
+    private boolean reflink(Path source, Path target, long size) {
+        if (!IS_LINUX || size < REFLINK_THRESHOLD) {
+            return false;
+        }
+
+        FileStore store;
+        try {
+            store = Files.getFileStore(target);
+        } catch (IOException e) {
+            return false;
+        }
+
+        Boolean supported = reflinkSupport.get(store);
+        if (supported == null) {
+            supported = probeReflink(target.getParent());
+            if (supported == null) {
+                // inconclusive, try again next time
+                return false;
+            }
+
+            reflinkSupport.put(store, supported);
+            LOG.info("File store {} {} reflinks.", store, (supported ? "supports" : "doesn't support"));
+        }
+
+        if (!supported) {
+            return false;
+        }
+
+        try {
+            return runReflink(source, target) == 0;
+        } catch (IOException e) {
+            // cp has gone
+            return false;
+        }
+    }
+
+    /**
+     * Clones a small file in a directory to find out if its file store
+     * supports reflinks.
+     *
+     * @return <code>null</code> if the probe didn't come to a result
+     */
+    private Boolean probeReflink(Path dir) {
+        Path probe = null;
+        Path clone = null;
+        try {
+            probe = Files.createTempFile(dir, ".reflink", ".tmp");
+            clone = Files.createTempFile(dir, ".reflink", ".tmp");
+            Files.write(probe, new byte[REFLINK_PROBE_SIZE]);
+
+            int exitCode;
+            try {
+                exitCode = runReflink(probe, clone);
+            } catch (IOException e) {
+                // no cp
+                return Boolean.FALSE;
+            }
+
+            return (exitCode == TIMED_OUT ? null : Boolean.valueOf(exitCode == 0));
+        } catch (IOException e) {
+            // no space, no permission, ...
+            return null;
+        } finally {
+            deleteQuietly(probe);
+            deleteQuietly(clone);
+        }
+    }
+
+    /**
+     * Runs <code>cp --reflink=always</code> and waits for it at most
+     * {@link #REFLINK_TIMEOUT} milliseconds.
+     *
+     * @return the exit code or {@link #TIMED_OUT}
+     * @throws IOException
+     *             if cp can't be started
+     */
+    private static int runReflink(Path source, Path target) throws IOException {
+        Process process = new ProcessBuilder("cp", "--reflink=always", source.toString(), target.toString())
+                .redirectErrorStream(true).start();
+        try {
+            process.getOutputStream().close();
+
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(REFLINK_TIMEOUT);
+            while (true) {
+                try {
+                    return process.exitValue();
+                } catch (IllegalThreadStateException e) {
+                    // still running
+                }
+
+                if (System.nanoTime() - deadline >= 0) {
+                    LOG.warn("Cloning {} took too long, giving up.", source);
+                    return TIMED_OUT;
+                }
+
+                Thread.sleep(5);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return TIMED_OUT;
+        } finally {
+            process.destroy();
+            IOUtils.consumeAndClose(process.getInputStream());
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        if (path == null) {
+            return;
+        }
+
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private boolean hardlink(Path source, Path target) {
+        try {
+            Files.delete(target);
+        } catch (IOException e) {
+            return false;
+        }
+
+        try {
+            Files.createLink(target, source);
+            return true;
+        } catch (Exception e) {
+            // not supported by the file system
+            LOG.debug("Could not link {}: {}", source, e.toString());
+        }
+
+        // restore the empty target
+        try {
+            Files.createFile(target);
+        } catch (IOException e) {
+            // the next strategy will report it
+        }
+
+        return false;
+    }
+
+    /**
+     * Copies the bytes, in the kernel if requested. Returns the strategy that
+     * has actually been used.
+     */
+    private Strategy copyData(Path source, Path target, boolean kernel) throws IOException {
+        FileChannel in = null;
+        FileChannel out = null;
+        try {
+            in = FileChannel.open(source, StandardOpenOption.READ);
+            out = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+            long size = in.size();
+            long position = 0;
+
+            if (kernel) {
+                while (position < size) {
+                    long n = in.transferTo(position, size - position, out);
+                    if (n <= 0) {
+                        break;
+                    }
+                    position += n;
+                }
+
+                if (position >= size) {
+                    return Strategy.KERNEL;
+                }
+            }
+
+            // copy the rest through the heap
+            byte[] buffer = (bufferPool == null ? new byte[FileBridgeBufferPool.DEFAULT_BUFFER_SIZE] : bufferPool
+                    .acquire());
+            try {
+                ByteBuffer bb = ByteBuffer.wrap(buffer);
+                out.position(position);
+                while (true) {
+                    bb.clear();
+                    int n = in.read(bb, position);
+                    if (n < 0) {
+                        break;
+                    }
+                    bb.flip();
+                    while (bb.hasRemaining()) {
+                        out.write(bb);
+                    }
+                    position += n;
+                }
+            } finally {
+                if (bufferPool != null) {
+                    bufferPool.release(buffer);
+                }
+            }
+
+            return Strategy.BUFFERED;
+        } finally {
+            IOUtils.closeQuietly(out);
+            IOUtils.closeQuietly(in);
+        }
+    }
+}
@@ -0,0 +1,432 @@
+/*
+ * Copyright 2013 Florian Müller & Jay Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is based on the Apache Chemistry OpenCMIS FileShare project
+ * <http://chemistry.apache.org/java/developing/repositories/dev-repositories-fileshare.html>.
+ *
+ * It is part of a training exercise and not intended for production use!
+ *
+ */
+package org.example.cmis.server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.chemistry.opencmis.commons.impl.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Publishes written content according to a durability mode.
+ *
+ * New content is written to a temporary file, which is atomically renamed to
+ * the target when it is complete. Readers either see the old or the new
+ * content, never a partial file. New documents are linked to their name, so
+ * they never replace an object that has taken the name in the meantime. The
+ * durability mode decides when the data reaches the disk:
+ * <ul>
+ * <li>{@link Mode#NONE}: the operating system decides.</li>
+ * <li>{@link Mode#FSYNC}: each writer forces its file and the directory
+ * before it returns.</li>
+ * <li>{@link Mode#GROUP}: writers hand their files to a background thread,
+ * which forces all files that have queued up, renames them and forces each
+ * affected directory once. Writers wait until their batch is done.</li>
+ * </ul>
+ * Once a group commit instance has been shut down, writers that still use it
+ * commit their files themselves, so a mode change doesn't fail writes that
+ * are in progress.
+ */
+public class FileBridgeDurability {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileBridgeDurability.class);
+
+    /** Maximum number of writes committed in one batch. */
+    private static final int MAX_BATCH = 256;
+
+    /**
+     * Durability modes.
+     */
+    public enum Mode {
+        NONE, FSYNC, GROUP;
+
+        public static Mode fromValue(String value) {
+            try {
+                return valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+            } catch (Exception e) {
+                throw new IllegalArgumentException("Unknown durability mode: " + value);
+            }
+        }
+    }
+
+    /**
+     * A write waiting for the group commit.
+     */
+    private static final class Commit {
+        final FileChannel channel;
+        final Path temp;
+        final Path target;
+        final boolean replace;
+        final CountDownLatch done = new CountDownLatch(1);
+        /** Set by whoever owns the commit: the committer or an interrupted writer. */
+        final AtomicBoolean claimed = new AtomicBoolean();
+        IOException error;
+
+        Commit(FileChannel channel, Path temp, Path target, boolean replace) {
+            this.channel = channel;
+            this.temp = temp;
+            this.target = target;
+            this.replace = replace;
+        }
+    }
+
+    private final Mode mode;
+    private final BlockingQueue<Commit> queue;
+    private final Thread committer;
+    /** Guards {@link #running} against writers that are about to enqueue. */
+    private final Object queueLock = new Object();
+    private volatile boolean running;
+
+    public FileBridgeDurability(Mode mode) {
+        this.mode = (mode == null ? Mode.NONE : mode);
+
+        if (this.mode == Mode.GROUP) {
+            queue = new LinkedBlockingQueue<Commit>();
+            running = true;
+            committer = new Thread("FileBridge Group Commit") {
+                @Override
+                public void run() {
+                    runGroupCommit();
+                }
+            };
+            committer.setDaemon(true);
+            committer.start();
+        } else {
+            queue = null;
+            committer = null;
+        }
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Publishes a completely written temporary file: makes it durable
+     * according to the mode and atomically renames it to the target. The
+     * channel is closed in any case.
+     */
+    public void commit(FileChannel channel, Path temp, Path target) throws IOException {
+        publish(channel, temp, target, true);
+    }
+
+    /**
+     * Publishes a completely written temporary file as a new file, like
+     * {@link #commit(FileChannel, Path, Path)}.
+     *
+     * @throws java.nio.file.FileAlreadyExistsException
+     *             if the target exists; the temporary file is left alone
+     */
+    public void create(FileChannel channel, Path temp, Path target) throws IOException {
+        publish(channel, temp, target, false);
+    }
+
+    /**
+     * Makes content that has been written in place durable according to the
+     * mode. The channel stays open.
+     */
+    public void sync(FileChannel channel) throws IOException {
+        if (mode == Mode.FSYNC) {
+            channel.force(false);
+        } else if (mode == Mode.GROUP) {
+            await(new Commit(channel, null, null, true));
+        }
+    }
+
+    /**
+     * Stops the background thread. Pending writes are still committed, later
+     * writes are committed by their writers.
+     */
+    public void shutdown() {
+        if (committer == null) {
+            return;
+        }
+
+        synchronized (queueLock) {
+            running = false;
+        }
+        committer.interrupt();
+        try {
+            committer.join(10000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Durability [" + mode + "]";
+    }
+
+    // --- internal ---
+
+    private void publish(FileChannel channel, Path temp, Path target, boolean replace) throws IOException {
+        if (mode == Mode.GROUP) {
+            await(new Commit(channel, temp, target, replace));
+            return;
+        }
+
+        try {
+            if (mode == Mode.FSYNC) {
+                channel.force(false);
+            }
+        } finally {
+            IOUtils.closeQuietly(channel);
+        }
+
+        move(temp, target, replace);
+
+        if (mode == Mode.FSYNC) {
+            forceDirectory(target.getParent());
+        }
+    }
+
+    private void await(Commit commit) throws IOException {
+        boolean queued = false;
+        synchronized (queueLock) {
+            if (running) {
+                queue.add(commit);
+                queued = true;
+            }
+        }
+
+        if (!queued) {
+            // the committer has stopped
+            List<Commit> batch = new ArrayList<Commit>(1);
+            batch.add(commit);
+            commitBatch(batch);
+        } else {
+            try {
+                commit.done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+
+                if (commit.claimed.compareAndSet(false, true)) {
+                    // the committer hasn't seen it yet
+                    if (commit.target != null) {
+                        IOUtils.closeQuietly(commit.channel);
+                    }
+                    throw new InterruptedIOException("Interrupted while waiting for the commit!");
+                }
+
+                // the committer is on it, which doesn't take long
+                awaitUninterruptibly(commit.done);
+            }
+        }
+
+        if (commit.error != null) {
+            throw commit.error;
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runGroupCommit() {
+        List<Commit> batch = new ArrayList<Commit>();
+
+        try {
+            while (running || !queue.isEmpty()) {
+                try {
+                    Commit first = queue.take();
+                    batch.add(first);
+                } catch (InterruptedException e) {
+                    if (!running) {
+                        // drain what is left
+                        queue.drainTo(batch);
+                        if (batch.isEmpty()) {
+                            break;
+                        }
+                    } else {
+                        continue;
+                    }
+                }
+
+                // everything that has queued up while the last batch was
+                // written goes into this batch
+                queue.drainTo(batch, MAX_BATCH - batch.size());
+
+                try {
+                    commitBatch(batch);
+                } catch (Throwable t) {
+                    LOG.error("Group commit failed: {}", t.toString(), t);
+                    fail(batch, t);
+                }
+                batch.clear();
+            }
+        } finally {
+            // writers from now on commit themselves; nothing that is still
+            // queued must wait forever
+            synchronized (queueLock) {
+                running = false;
+            }
+            queue.drainTo(batch);
+            fail(batch, null);
+        }
+    }
+
+    /**
+     * Releases the writers of commits that have not been completed.
+     */
+    private static void fail(List<Commit> batch, Throwable cause) {
+        for (Commit commit : batch) {
+            if (commit.done.getCount() == 0) {
+                continue;
+            }
+
+            if (commit.target != null) {
+                IOUtils.closeQuietly(commit.channel);
+            }
+            if (commit.error == null) {
+                commit.error = (cause == null ? new IOException("Group commit has stopped!") : new IOException(
+                        "Group commit failed: " + cause.getMessage(), cause));
+            }
+            commit.done.countDown();
+        }
+    }
+
+    private void commitBatch(List<Commit> batch) {
+        Set<Path> directories = new LinkedHashSet<Path>();
+
+        for (Iterator<Commit> iterator = batch.iterator(); iterator.hasNext();) {
+            Commit commit = iterator.next();
+            if (!commit.claimed.compareAndSet(false, true)) {
+                // abandoned by an interrupted writer
+                iterator.remove();
+                continue;
+            }
+
+            try {
+                commit.channel.force(false);
+
+                if (commit.target != null) {
+                    IOUtils.closeQuietly(commit.channel);
+                    move(commit.temp, commit.target, commit.replace);
+                    directories.add(commit.target.getParent());
+                }
+            } catch (IOException e) {
+                commit.error = e;
+                if (commit.target != null) {
+                    IOUtils.closeQuietly(commit.channel);
+                }
+            }
+        }
+
+        for (Path directory : directories) {
+            try {
+                forceDirectory(directory);
+            } catch (IOException e) {
+                for (Commit commit : batch) {
+                    if (commit.error == null && commit.target != null && directory.equals(commit.target.getParent())) {
+                        commit.error = e;
+                    }
+                }
+            }
+        }
+
+        for (Commit commit : batch) {
+            commit.done.countDown();
+        }
+
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("Committed {} writes in {} directories.", batch.size(), directories.size());
+        }
+    }
+
+    private static void move(Path temp, Path target, boolean replace) throws IOException {
+        if (replace) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return;
+        }
+
+        // a rename would replace an object that has taken the name, a link
+        // fails instead
+        try {
+            Files.createLink(target, temp);
+        } catch (UnsupportedOperationException e) {
+            Files.move(temp, target);
+            return;
+        }
+
+        try {
+            Files.delete(temp);
+        } catch (IOException e) {
+            // the document is there, a leftover is removed at startup
+            LOG.warn("Could not delete {}: {}", temp, e.toString());
+        }
+    }
+
+    /**
+     * Forces a directory, which makes renames in this directory durable. Not
+     * all platforms support this; there is nothing else we can do then.
+     */
+    private static void forceDirectory(Path directory) throws IOException {
+        if (directory == null) {
+            return;
+        }
+
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(directory, StandardOpenOption.READ);
+        } catch (IOException e) {
+            // e.g. Windows can't open directories
+            return;
+        }
+
+        try {
+            channel.force(true);
+        } finally {
+            IOUtils.closeQuietly(channel);
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2013 Florian Müller & Jay Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is based on the Apache Chemistry OpenCMIS FileShare project
+ * <http://chemistry.apache.org/java/developing/repositories/dev-repositories-fileshare.html>.
+ *
+ * It is part of a training exercise and not intended for production use!
+ *
+ */
+package org.example.cmis.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.DosFileAttributes;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Snapshot of the file system attributes of a file or folder.
+ *
+ * All attributes are read with a single call when the snapshot is created.
+ * Properties, allowable actions and ACLs of an object are compiled from the
+ * same snapshot, so an object costs one stat call instead of one per
+ * attribute.
+ */
+public final class FileBridgeFileAttributes {
+
+    /** Windows keeps the hidden flag in the DOS attributes. */
+    private static final boolean DOS_ATTRIBUTES = (File.separatorChar == '\\');
+
+    /**
+     * <code>true</code> if the hidden flag can be derived from the name alone,
+     * without reading any attributes.
+     */
+    public static final boolean HIDDEN_BY_NAME = !DOS_ATTRIBUTES;
+
+    private final File file;
+    private final boolean exists;
+    private final boolean directory;
+    private final boolean regularFile;
+    private final boolean hidden;
+    private final long size;
+    private final long lastModified;
+    private final long lastModifiedNanos;
+    private final Object fileKey;
+
+    /** Write access is checked lazily, only ACLs and allowable actions need it. */
+    private Boolean writable;
+
+    private FileBridgeFileAttributes(File file, BasicFileAttributes attrs) {
+        this.file = file;
+
+        if (attrs == null) {
+            exists = false;
+            directory = false;
+            regularFile = false;
+            hidden = false;
+            size = 0;
+            lastModified = 0;
+            lastModifiedNanos = 0;
+            fileKey = null;
+        } else {
+            exists = true;
+            directory = attrs.isDirectory();
+            regularFile = attrs.isRegularFile();
+            size = attrs.size();
+            lastModified = attrs.lastModifiedTime().toMillis();
+            lastModifiedNanos = attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+            fileKey = attrs.fileKey();
+
+            if (attrs instanceof DosFileAttributes) {
+                hidden = ((DosFileAttributes) attrs).isHidden();
+            } else {
+                hidden = isHiddenName(file.getName());
+            }
+        }
+    }
+
+    /**
+     * Reads the attributes of the given file or folder. If the object doesn't
+     * exist or can't be accessed, the snapshot reports it as not existing.
+     */
+    public static FileBridgeFileAttributes read(File file) {
+        if (file == null) {
+            throw new IllegalArgumentException("File must not be null!");
+        }
+
+        BasicFileAttributes attrs;
+        try {
+            if (DOS_ATTRIBUTES) {
+                attrs = Files.readAttributes(file.toPath(), DosFileAttributes.class);
+            } else {
+                attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            }
+        } catch (IOException e) {
+            // same behavior as File.exists()
+            attrs = null;
+        }
+
+        return new FileBridgeFileAttributes(file, attrs);
+    }
+
+    /**
+     * Reads the attributes of the given path.
+     *
+     * @see #read(File)
+     */
+    public static FileBridgeFileAttributes read(Path path) {
+        if (path == null) {
+            throw new IllegalArgumentException("Path must not be null!");
+        }
+
+        return read(path.toFile());
+    }
+
+    /**
+     * Checks if a name denotes a hidden file on file systems that mark hidden
+     * files by name.
+     *
+     * @see #HIDDEN_BY_NAME
+     */
+    public static boolean isHiddenName(String name) {
+        return name.startsWith(".");
+    }
+
+    /**
+     * Returns the file or folder.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the name of the file or folder.
+     */
+    public String getName() {
+        return file.getName();
+    }
+
+    public boolean exists() {
+        return exists;
+    }
+
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    public boolean isFile() {
+        return regularFile;
+    }
+
+    public boolean isHidden() {
+        return hidden;
+    }
+
+    /**
+     * Returns the size in bytes.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the last modification time in milliseconds.
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Returns the file key or <code>null</code> if the file system doesn't
+     * provide one.
+     */
+    public Object getFileKey() {
+        return fileKey;
+    }
+
+    /**
+     * Returns a change token derived from the file key, name, size and
+     * modification time (with the precision of the file system). The token
+     * changes whenever the content is replaced, appended to or the object is
+     * renamed.
+     */
+    public String getChangeToken() {
+        return getToken(true);
+    }
+
+    /**
+     * Returns a token like the change token that ignores the name. It only
+     * changes when the content is replaced or appended to.
+     */
+    public String getContentToken() {
+        return getToken(false);
+    }
+
+    private String getToken(boolean withName) {
+        if (!exists) {
+            return null;
+        }
+
+        long h = 1125899906842597L;
+        h = 31 * h + (fileKey == null ? 0 : fileKey.hashCode());
+        if (withName) {
+            h = 31 * h + file.getName().hashCode();
+        }
+        h = 31 * h + size;
+
+        return Long.toString(lastModifiedNanos, 36) + "-" + Long.toString(h & Long.MAX_VALUE, 36);
+    }
+
+    /**
+     * Returns whether the application may write to the file or folder. The
+     * check is done on the first call and then remembered.
+     */
+    public boolean canWrite() {
+        if (writable == null) {
+            writable = Boolean.valueOf(exists && file.canWrite());
+        }
+
+        return writable.booleanValue();
+    }
+
+    @Override
+    public String toString() {
+        return file.getPath() + (exists ? (directory ? " (folder)" : " (" + size + " bytes)") : " (missing)");
+    }
+}
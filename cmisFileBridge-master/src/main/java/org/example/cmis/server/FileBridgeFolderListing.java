@@ -0,0 +1,296 @@
+/*
+ * Copyright 2013 Florian Müller & Jay Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is based on the Apache Chemistry OpenCMIS FileShare project
+ * <http://chemistry.apache.org/java/developing/repositories/dev-repositories-fileshare.html>.
+ *
+ * It is part of a training exercise and not intended for production use!
+ *
+ */
+package org.example.cmis.server;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.apache.chemistry.opencmis.commons.exceptions.CmisStorageException;
+import org.apache.chemistry.opencmis.commons.impl.IOUtils;
+
+/**
+ * Streams the visible entries of a folder together with their attributes.
+ *
+ * Entries are read one by one from a {@link DirectoryStream}, so a folder is
+ * never materialized as a whole. Hidden entries and entries that vanish while
+ * the folder is read are skipped.
+ */
+public final class FileBridgeFolderListing implements Closeable, Iterable<FileBridgeFileAttributes> {
+
+    /**
+     * Kinds of entries a listing returns.
+     */
+    public enum Kind {
+        ALL, FOLDERS, DOCUMENTS
+    }
+
+    /**
+     * One page of a listing.
+     */
+    public static final class Page {
+        private final List<FileBridgeFileAttributes> entries;
+        private final int[] positions;
+        private final int numItems;
+        private final boolean hasMoreItems;
+
+        Page(List<FileBridgeFileAttributes> entries, int[] positions, int numItems, boolean hasMoreItems) {
+            this.entries = entries;
+            this.positions = positions;
+            this.numItems = numItems;
+            this.hasMoreItems = hasMoreItems;
+        }
+
+        /**
+         * Returns the entries of the page.
+         */
+        public List<FileBridgeFileAttributes> getEntries() {
+            return entries;
+        }
+
+        /**
+         * Returns the number of visible children of any kind up to and
+         * including an entry of the page. That is the skip count of a
+         * {@link Kind#ALL} page that starts behind the entry.
+         */
+        public int getPosition(int index) {
+            return positions[index];
+        }
+
+        /**
+         * Returns the number of matching entries in the whole folder.
+         */
+        public int getNumItems() {
+            return numItems;
+        }
+
+        public boolean hasMoreItems() {
+            return hasMoreItems;
+        }
+    }
+
+    private final File folder;
+    private final Kind kind;
+    private final DirectoryStream<Path> stream;
+    private boolean consumed;
+
+    private FileBridgeFolderListing(File folder, Kind kind, DirectoryStream<Path> stream) {
+        this.folder = folder;
+        this.kind = kind;
+        this.stream = stream;
+    }
+
+    /**
+     * Opens a listing of a folder. The listing must be closed by the caller.
+     */
+    public static FileBridgeFolderListing open(File folder, Kind kind) {
+        if (folder == null) {
+            throw new IllegalArgumentException("Folder must not be null!");
+        }
+
+        try {
+            return new FileBridgeFolderListing(folder, (kind == null ? Kind.ALL : kind),
+                    Files.newDirectoryStream(folder.toPath()));
+        } catch (IOException e) {
+            throw new CmisStorageException("Could not list folder: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Reads one page of a folder.
+     */
+    public static Page page(File folder, Kind kind, int skipCount, int maxItems) {
+        FileBridgeFolderListing listing = open(folder, kind);
+        try {
+            return listing.page(skipCount, maxItems);
+        } finally {
+            IOUtils.closeQuietly(listing);
+        }
+    }
+
+    /**
+     * Reads one page of this listing. Attributes are only read for the entries
+     * of the page; the remaining entries are just counted, which doesn't
+     * require any attributes if only hidden entries have to be skipped. In
+     * that case, the entries of the page are counted by name as well, so an
+     * entry that vanishes or is a broken link takes its place in every page
+     * and pages neither overlap nor leave gaps.
+     */
+    public Page page(int skipCount, int maxItems) {
+        int skip = Math.max(skipCount, 0);
+        int max = (maxItems < 0 ? Integer.MAX_VALUE : maxItems);
+
+        List<FileBridgeFileAttributes> entries = new ArrayList<FileBridgeFileAttributes>(Math.min(max, 100));
+        int[] positions = new int[Math.min(max, 100)];
+        boolean hasMoreItems = false;
+        int count = 0;
+        int visible = 0;
+
+        boolean countByName = (kind == Kind.ALL) && FileBridgeFileAttributes.HIDDEN_BY_NAME;
+
+        for (Iterator<Path> iter = paths(); iter.hasNext();) {
+            Path path = iter.next();
+
+            boolean inPage = (count >= skip) && (count - skip < max);
+
+            if (countByName) {
+                if (FileBridgeFileAttributes.isHiddenName(path.getFileName().toString())) {
+                    continue;
+                }
+
+                visible++;
+                count++;
+
+                if (inPage) {
+                    FileBridgeFileAttributes attrs = FileBridgeFileAttributes.read(path);
+                    if (accept(attrs)) {
+                        if (entries.size() == positions.length) {
+                            positions = Arrays.copyOf(positions, positions.length * 2);
+                        }
+                        positions[entries.size()] = visible;
+                        entries.add(attrs);
+                    }
+                } else if (count > skip) {
+                    hasMoreItems = true;
+                }
+                continue;
+            }
+
+            FileBridgeFileAttributes attrs = FileBridgeFileAttributes.read(path);
+            if (attrs.exists() && !attrs.isHidden()) {
+                visible++;
+            }
+            if (!accept(attrs)) {
+                continue;
+            }
+
+            count++;
+
+            if (inPage) {
+                if (entries.size() == positions.length) {
+                    positions = Arrays.copyOf(positions, positions.length * 2);
+                }
+                positions[entries.size()] = visible;
+                entries.add(attrs);
+            } else if (count > skip) {
+                hasMoreItems = true;
+            }
+        }
+
+        return new Page(entries, positions, count, hasMoreItems);
+    }
+
+    public Iterator<FileBridgeFileAttributes> iterator() {
+        final Iterator<Path> paths = paths();
+
+        return new Iterator<FileBridgeFileAttributes>() {
+            private FileBridgeFileAttributes next;
+
+            public boolean hasNext() {
+                while (next == null && paths.hasNext()) {
+                    FileBridgeFileAttributes attrs = FileBridgeFileAttributes.read(paths.next());
+                    if (accept(attrs)) {
+                        next = attrs;
+                    }
+                }
+
+                return next != null;
+            }
+
+            public FileBridgeFileAttributes next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                FileBridgeFileAttributes result = next;
+                next = null;
+
+                return result;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    public void close() throws IOException {
+        stream.close();
+    }
+
+    /**
+     * Returns the raw entries of the directory stream. A listing can only be
+     * iterated once.
+     */
+    private Iterator<Path> paths() {
+        if (consumed) {
+            throw new IllegalStateException("Listing has already been read!");
+        }
+        consumed = true;
+
+        final Iterator<Path> iter = stream.iterator();
+
+        return new Iterator<Path>() {
+            public boolean hasNext() {
+                try {
+                    return iter.hasNext();
+                } catch (DirectoryIteratorException e) {
+                    throw new CmisStorageException("Could not list folder " + folder + ": "
+                            + e.getCause().getMessage(), e.getCause());
+                }
+            }
+
+            public Path next() {
+                return iter.next();
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private boolean accept(FileBridgeFileAttributes attrs) {
+        if (!attrs.exists() || attrs.isHidden()) {
+            return false;
+        }
+
+        switch (kind) {
+        case FOLDERS:
+            return attrs.isDirectory();
+        case DOCUMENTS:
+            return attrs.isFile();
+        default:
+            return true;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2013 Florian Müller & Jay Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is based on the Apache Chemistry OpenCMIS FileShare project
+ * <http://chemistry.apache.org/java/developing/repositories/dev-repositories-fileshare.html>.
+ *
+ * It is part of a training exercise and not intended for production use!
+ *
+ */
+package org.example.cmis.server;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded two-way cache of object ids and repository paths.
+ *
+ * Lookups don't lock; they only stamp the entry with the access time. Changes
+ * are serialized, so both directions always hold the same entries. When the
+ * cache is full, the least recently used part of it is evicted at once, which
+ * keeps eviction cheap but only approximates the LRU order. All methods are
+ * thread-safe.
+ */
+public class FileBridgeIdCache {
+
+    /** Default number of cached entries. */
+    public static final int DEFAULT_SIZE = 10000;
+
+    /** Share of the entries that is evicted when the cache is full. */
+    private static final int EVICTION_DIVISOR = 8;
+
+    private static final class Entry {
+        final String path;
+        final String id;
+        volatile long lastAccess;
+
+        Entry(String path, String id) {
+            this.path = path;
+            this.id = id;
+            this.lastAccess = System.nanoTime();
+        }
+    }
+
+    private final int maxSize;
+    private final ConcurrentMap<String, Entry> pathToId = new ConcurrentHashMap<String, Entry>();
+    private final ConcurrentMap<String, Entry> idToPath = new ConcurrentHashMap<String, Entry>();
+    private final Object writeLock = new Object();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public FileBridgeIdCache(final int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Cache size must be positive!");
+        }
+
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the cached id of a repository path or <code>null</code>.
+     */
+    public String getId(String path) {
+        Entry entry = touch(pathToId.get(path));
+
+        return (entry == null ? null : entry.id);
+    }
+
+    /**
+     * Returns the cached repository path of an id or <code>null</code>.
+     */
+    public String getPath(String id) {
+        Entry entry = touch(idToPath.get(id));
+
+        return (entry == null ? null : entry.path);
+    }
+
+    /**
+     * Adds a mapping.
+     */
+    public void put(String path, String id) {
+        if (path == null || id == null) {
+            return;
+        }
+
+        Entry entry = new Entry(path, id);
+
+        synchronized (writeLock) {
+            Entry old = pathToId.put(path, entry);
+            if (old != null) {
+                idToPath.remove(old.id, old);
+            }
+
+            old = idToPath.put(id, entry);
+            if (old != null) {
+                pathToId.remove(old.path, old);
+            }
+
+            if (pathToId.size() > maxSize) {
+                evict();
+            }
+        }
+    }
+
+    /**
+     * Removes a repository path and, if requested, all paths below it.
+     */
+    public void invalidate(String path, boolean recursive) {
+        if (path == null) {
+            return;
+        }
+
+        synchronized (writeLock) {
+            Entry entry = pathToId.remove(path);
+            if (entry != null) {
+                idToPath.remove(entry.id, entry);
+            }
+
+            if (recursive) {
+                String prefix = (path.endsWith("/") ? path : path + "/");
+                for (Iterator<Entry> iter = pathToId.values().iterator(); iter.hasNext();) {
+                    entry = iter.next();
+                    if (entry.path.startsWith(prefix)) {
+                        idToPath.remove(entry.id, entry);
+                        iter.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public void clear() {
+        synchronized (writeLock) {
+            pathToId.clear();
+            idToPath.clear();
+        }
+    }
+
+    public int size() {
+        return pathToId.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private Entry touch(Entry entry) {
+        if (entry == null) {
+            misses.incrementAndGet();
+        } else {
+            entry.lastAccess = System.nanoTime();
+            hits.incrementAndGet();
+        }
+
+        return entry;
+    }
+
+    /**
+     * Removes the least recently used entries. Must be called with the write
+     * lock held.
+     */
+    private void evict() {
+        long[] times = new long[pathToId.size()];
+        int n = 0;
+        for (Entry entry : pathToId.values()) {
+            if (n == times.length) {
+                break;
+            }
+            times[n++] = entry.lastAccess;
+        }
+        Arrays.sort(times, 0, n);
+
+        int count = Math.max(1, n - maxSize + maxSize / EVICTION_DIVISOR);
+        long threshold = times[Math.min(count, n) - 1];
+
+        for (Iterator<Entry> iter = pathToId.values().iterator(); iter.hasNext() && count > 0;) {
+            Entry entry = iter.next();
+            if (entry.lastAccess <= threshold) {
+                idToPath.remove(entry.id, entry);
+                iter.remove();
+                count--;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "IdCache [size=" + size() + "/" + maxSize + ", hits=" + hits.get() + ", misses=" + misses.get() + "]";
+    }
+}
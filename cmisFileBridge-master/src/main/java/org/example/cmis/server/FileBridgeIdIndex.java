@@ -0,0 +1,535 @@
+/*
+ * Copyright 2013 Florian Müller & Jay Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is based on the Apache Chemistry OpenCMIS FileShare project
+ * <http://chemistry.apache.org/java/developing/repositories/dev-repositories-fileshare.html>.
+ *
+ * It is part of a training exercise and not intended for production use!
+ *
+ */
+package org.example.cmis.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.apache.chemistry.opencmis.commons.exceptions.CmisStorageException;
+import org.apache.chemistry.opencmis.commons.impl.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persistent index of compact object ids.
+ *
+ * Each repository path gets a numeric id from a sequence when it is seen for
+ * the first time. The id sticks to the object when it is moved or renamed
+ * through the repository. The index is kept in memory and persisted in an
+ * append-only file, which is memory-mapped and replayed when the index is
+ * opened and compacted if it contains too many outdated records.
+ *
+ * To make sure that ids are never handed out twice, even after a crash of the
+ * operating system, ids are reserved in blocks: the end of a block is recorded
+ * and forced before the first id of the block is used. After a crash, the
+ * sequence continues behind the last reserved block.
+ *
+ * A new id is forced to disk before it is returned, so a client never holds
+ * an id that a crash could lose. Threads that mint ids at the same time share
+ * one force, and {@link #assign(Collection)} mints the ids of a whole listing
+ * with a single force.
+ */
+public class FileBridgeIdIndex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileBridgeIdIndex.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+    /** Ids below the id of this record may have been used. */
+    private static final byte OP_RESERVE = 3;
+
+    /** Number of ids reserved at once. */
+    private static final int ID_BLOCK = 1024;
+
+    /** op (1) + id (8) + path length (4) */
+    private static final int HEADER_SIZE = 13;
+
+    private final File indexFile;
+    private final Map<Long, String> idToPath;
+    /** Sorted, so the paths below a folder are a range. */
+    private final ConcurrentNavigableMap<String, Long> pathToId;
+
+    private FileChannel channel;
+    private long nextId;
+    /** End of the reserved block of ids, exclusive. */
+    private long reservedId;
+
+    private final Object forceLock = new Object();
+    /** Bytes appended to the index file. */
+    private volatile long written;
+    /** Bytes known to be on disk. */
+    private volatile long forced;
+
+    /**
+     * Opens or creates an index file.
+     */
+    public FileBridgeIdIndex(File indexFile) {
+        if (indexFile == null) {
+            throw new IllegalArgumentException("Index file must be set!");
+        }
+
+        this.indexFile = indexFile;
+        this.idToPath = new ConcurrentHashMap<Long, String>();
+        this.pathToId = new ConcurrentSkipListMap<String, Long>();
+        this.nextId = 1;
+
+        try {
+            File parent = indexFile.getAbsoluteFile().getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Could not create " + parent);
+            }
+
+            int records = load();
+
+            if (records > 2 * idToPath.size() + 1000) {
+                compact();
+            }
+
+            channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            channel.position(channel.size());
+            written = forced = channel.position();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not open id index " + indexFile + ": " + e.getMessage(), e);
+        }
+
+        LOG.info("Opened id index {} with {} entries.", indexFile, idToPath.size());
+    }
+
+    /**
+     * Returns the id of a repository path. Unknown paths get a new id, which
+     * is on disk when this method returns.
+     */
+    public String getId(String path) {
+        Long id = pathToId.get(path);
+        if (id == null) {
+            synchronized (this) {
+                id = mint(path);
+            }
+        }
+
+        // the id may have been minted by another thread just now
+        force();
+
+        return format(id);
+    }
+
+    /**
+     * Makes sure that all given repository paths have an id on disk. Unknown
+     * paths get a new id; all of them are forced at once.
+     */
+    public void assign(Collection<String> paths) {
+        boolean minted = false;
+        for (String path : paths) {
+            if (!pathToId.containsKey(path)) {
+                minted = true;
+                break;
+            }
+        }
+
+        if (minted) {
+            synchronized (this) {
+                for (String path : paths) {
+                    mint(path);
+                }
+            }
+        }
+
+        force();
+    }
+
+    /**
+     * Returns the id of a repository path or <code>null</code> if the path
+     * has never been given an id.
+     */
+    public String findId(String path) {
+        Long id = pathToId.get(path);
+        return (id == null ? null : format(id));
+    }
+
+    /**
+     * Returns the ids of a path and, if requested, of everything below it.
+     * Paths that have never been given an id are skipped.
+     */
+    public List<String> findIds(String path, boolean recursive) {
+        List<String> result = new ArrayList<String>();
+
+        Long id = pathToId.get(path);
+        if (id != null) {
+            result.add(format(id));
+        }
+
+        if (recursive) {
+            for (Map.Entry<String, Long> entry : findBelow(path)) {
+                result.add(format(entry.getValue()));
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the repository path of an id or <code>null</code> if the id is
+     * unknown.
+     */
+    public String getPath(String id) {
+        Long key = parse(id);
+        if (key == null) {
+            return null;
+        }
+
+        return idToPath.get(key);
+    }
+
+    /**
+     * Moves a path and, if requested, everything below it to a new path. The
+     * ids are kept.
+     */
+    public synchronized void move(String oldPath, String newPath, boolean recursive) {
+        Long id = pathToId.remove(oldPath);
+        if (id != null) {
+            put(id, newPath);
+        }
+
+        if (recursive) {
+            for (Map.Entry<String, Long> entry : findBelow(oldPath)) {
+                pathToId.remove(entry.getKey());
+                put(entry.getValue(), newPath + entry.getKey().substring(oldPath.length()));
+            }
+        }
+    }
+
+    /**
+     * Removes a path and, if requested, everything below it.
+     */
+    public synchronized void remove(String path, boolean recursive) {
+        Long id = pathToId.remove(path);
+        if (id != null) {
+            remove(id);
+        }
+
+        if (recursive) {
+            for (Map.Entry<String, Long> entry : findBelow(path)) {
+                pathToId.remove(entry.getKey());
+                remove(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Returns the number of entries.
+     */
+    public int size() {
+        return idToPath.size();
+    }
+
+    /**
+     * Flushes and closes the index file.
+     */
+    public synchronized void close() {
+        if (channel == null) {
+            return;
+        }
+
+        try {
+            channel.force(true);
+        } catch (IOException e) {
+            LOG.warn("Could not flush id index {}: {}", indexFile, e.getMessage());
+        } finally {
+            IOUtils.closeQuietly(channel);
+            channel = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "IdIndex [" + indexFile + ", entries=" + idToPath.size() + "]";
+    }
+
+    // --- internal ---
+
+    private static String format(Long id) {
+        return Long.toString(id.longValue(), Character.MAX_RADIX);
+    }
+
+    private static Long parse(String id) {
+        if (id == null || id.length() == 0 || id.length() > 13) {
+            return null;
+        }
+
+        try {
+            return Long.valueOf(Long.parseLong(id, Character.MAX_RADIX));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns a copy of the entries below a path.
+     */
+    /**
+     * Returns the id of a path and assigns a new one if the path has none.
+     * Callers must hold the lock.
+     */
+    private Long mint(String path) {
+        Long id = pathToId.get(path);
+        if (id == null) {
+            if (nextId >= reservedId) {
+                reserve();
+            }
+            id = Long.valueOf(nextId++);
+            put(id, path);
+        }
+
+        return id;
+    }
+
+    /**
+     * Forces all records that have been appended so far, unless another thread
+     * has done that already.
+     */
+    private void force() {
+        long end = written;
+        if (forced >= end) {
+            return;
+        }
+
+        synchronized (forceLock) {
+            if (forced >= end) {
+                return;
+            }
+
+            FileChannel out;
+            synchronized (this) {
+                out = channel;
+                end = written;
+            }
+            if (out == null) {
+                throw new CmisStorageException("Id index is closed!");
+            }
+
+            try {
+                out.force(false);
+            } catch (IOException e) {
+                throw new CmisStorageException("Could not update id index: " + e.getMessage(), e);
+            }
+
+            forced = end;
+        }
+    }
+
+    private List<Map.Entry<String, Long>> findBelow(String path) {
+        Map<String, Long> range;
+        if (path.equals("/")) {
+            range = pathToId.tailMap(path, false);
+        } else {
+            range = pathToId.subMap(path + "/", true, path + "0", false);
+        }
+
+        return new ArrayList<Map.Entry<String, Long>>(range.entrySet());
+    }
+
+    private void put(Long id, String path) {
+        bind(id, path);
+        append(OP_PUT, id.longValue(), path);
+    }
+
+    /**
+     * Binds an id to a path and unbinds the previous path of the id and the
+     * previous id of the path.
+     */
+    private void bind(Long id, String path) {
+        String oldPath = idToPath.put(id, path);
+        if (oldPath != null && !oldPath.equals(path)) {
+            pathToId.remove(oldPath);
+        }
+
+        Long oldId = pathToId.put(path, id);
+        if (oldId != null && !oldId.equals(id)) {
+            idToPath.remove(oldId);
+        }
+    }
+
+    /**
+     * Reserves the next block of ids and forces the reservation to disk.
+     */
+    private void reserve() {
+        long end = nextId + ID_BLOCK;
+        append(OP_RESERVE, end, "");
+
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            throw new CmisStorageException("Could not update id index: " + e.getMessage(), e);
+        }
+
+        reservedId = end;
+    }
+
+    private void remove(Long id) {
+        if (idToPath.remove(id) != null) {
+            append(OP_REMOVE, id.longValue(), "");
+        }
+    }
+
+    private void append(byte op, long id, String path) {
+        if (channel == null) {
+            throw new CmisStorageException("Id index is closed!");
+        }
+
+        byte[] pathBytes = path.getBytes(UTF8);
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + pathBytes.length);
+        buffer.put(op);
+        buffer.putLong(id);
+        buffer.putInt(pathBytes.length);
+        buffer.put(pathBytes);
+        buffer.flip();
+
+        try {
+            while (buffer.hasRemaining()) {
+                written += channel.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new CmisStorageException("Could not update id index: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Replays the index file. Returns the number of records read.
+     */
+    private int load() throws IOException {
+        if (!indexFile.isFile()) {
+            return 0;
+        }
+
+        FileChannel in = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ);
+        try {
+            long size = in.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Index file is too big!");
+            }
+
+            MappedByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            int records = 0;
+            long maxId = 0;
+            while (buffer.remaining() >= HEADER_SIZE) {
+                int start = buffer.position();
+
+                byte op = buffer.get();
+                long id = buffer.getLong();
+                int length = buffer.getInt();
+
+                if ((op != OP_PUT && op != OP_REMOVE && op != OP_RESERVE) || length < 0
+                        || length > buffer.remaining()) {
+                    // torn write at the end of the file
+                    buffer.position(start);
+                    break;
+                }
+
+                byte[] pathBytes = new byte[length];
+                buffer.get(pathBytes);
+
+                Long key = Long.valueOf(id);
+                if (op == OP_PUT) {
+                    bind(key, new String(pathBytes, UTF8));
+                    maxId = Math.max(maxId, id);
+                } else if (op == OP_REMOVE) {
+                    String oldPath = idToPath.remove(key);
+                    if (oldPath != null) {
+                        pathToId.remove(oldPath);
+                    }
+                    maxId = Math.max(maxId, id);
+                } else {
+                    // the rest of the block may have been used before a crash
+                    maxId = Math.max(maxId, id - 1);
+                }
+
+                records++;
+            }
+
+            nextId = maxId + 1;
+
+            if (buffer.hasRemaining()) {
+                LOG.warn("Ignoring {} bytes of incomplete records in id index {}.", buffer.remaining(), indexFile);
+                in.close();
+                truncate(buffer.position());
+            }
+
+            return records;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private void truncate(long size) throws IOException {
+        FileChannel out = FileChannel.open(indexFile.toPath(), StandardOpenOption.WRITE);
+        try {
+            out.truncate(size);
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    /**
+     * Rewrites the index file with the live entries only.
+     */
+    private void compact() throws IOException {
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+
+        channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            for (Map.Entry<Long, String> entry : idToPath.entrySet()) {
+                append(OP_PUT, entry.getKey().longValue(), entry.getValue());
+            }
+            // keep the sequence, ids must never be reused
+            append(OP_RESERVE, nextId, "");
+            channel.force(true);
+        } finally {
+            IOUtils.closeQuietly(channel);
+            channel = null;
+        }
+
+        Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        LOG.info("Compacted id index {}.", indexFile);
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright 2013 Florian Müller & Jay Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is based on the Apache Chemistry OpenCMIS FileShare project
+ * <http://chemistry.apache.org/java/developing/repositories/dev-repositories-fileshare.html>.
+ *
+ * It is part of a training exercise and not intended for production use!
+ *
+ */
+package org.example.cmis.server;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.chemistry.opencmis.commons.data.AllowableActions;
+import org.apache.chemistry.opencmis.commons.data.CmisExtensionElement;
+import org.apache.chemistry.opencmis.commons.data.ObjectData;
+import org.apache.chemistry.opencmis.commons.data.ObjectInFolderContainer;
+import org.apache.chemistry.opencmis.commons.data.ObjectInFolderData;
+import org.apache.chemistry.opencmis.commons.data.PropertyData;
+import org.apache.chemistry.opencmis.commons.exceptions.CmisBaseException;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.CmisExtensionElementImpl;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.ObjectInFolderContainerImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Descendant tree that is built while it is serialized.
+ *
+ * The children of a folder are only listed and compiled when the binding
+ * asks for them, so the response is written while the tree is walked. The
+ * tree is limited by a node and a byte budget. When the budget runs out, the
+ * remaining objects are left out and a {@value #TRUNCATED} extension element
+ * tells the client where to continue:
+ *
+ * <ul>
+ * <li>on the last container of a cut list of children, with the id of the
+ * parent folder and a skip count</li>
+ * <li>on a folder container whose children have been left out completely or
+ * couldn't be listed anymore, with the id of the folder and a skip count of
+ * 0</li>
+ * </ul>
+ *
+ * Clients continue with getChildren or getDescendants of the folder. Children
+ * are sorted by name, the left out children are the ones a getChildren call
+ * with the given skip count returns. The skip count always counts children of
+ * all kinds, also in a folder tree; clients continuing a folder tree ignore
+ * the documents getChildren returns.
+ *
+ * The tree is not thread-safe; bindings serialize it on the request thread.
+ */
+public class FileBridgeLazyTree {
+
+    /** Namespace of the extension elements. */
+    public static final String NAMESPACE = "http://chemistry.apache.org/opencmis/fileshare";
+
+    /** Name of the continuation marker. */
+    public static final String TRUNCATED = "descendantsTruncated";
+
+    /** Estimated heap size of an object, without its properties. */
+    private static final int OBJECT_OVERHEAD = 256;
+
+    /** Estimated heap size of a property, without its id and values. */
+    private static final int PROPERTY_OVERHEAD = 64;
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileBridgeLazyTree.class);
+
+    private static final Comparator<ObjectInFolderContainer> BY_NAME = new Comparator<ObjectInFolderContainer>() {
+        public int compare(ObjectInFolderContainer a, ObjectInFolderContainer b) {
+            return ((LazyContainer) a).name.compareTo(((LazyContainer) b).name);
+        }
+    };
+
+    private final FileBridgeTreeWalker.Callback callback;
+    private final long maxNodes;
+    private final long maxBytes;
+
+    private long nodes;
+    private long bytes;
+    /** Set when an object didn't fit into the byte budget. */
+    private boolean bytesExhausted;
+
+    /**
+     * Creates a tree.
+     *
+     * @param maxNodes
+     *            the maximum number of objects or 0 for no limit
+     * @param maxBytes
+     *            the maximum estimated heap size of the objects or 0 for no
+     *            limit
+     */
+    public FileBridgeLazyTree(FileBridgeTreeWalker.Callback callback, long maxNodes, long maxBytes) {
+        if (maxNodes < 0 || maxBytes < 0) {
+            throw new IllegalArgumentException("Invalid descendants budget!");
+        }
+
+        this.callback = callback;
+        this.maxNodes = maxNodes;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the tree below a folder. Only the first level is built right
+     * away.
+     *
+     * @param folderId
+     *            the id of the folder, used by continuation markers
+     * @param depth
+     *            the number of levels or -1 for all levels
+     */
+    public List<ObjectInFolderContainer> build(File folder, String folderId, int depth) {
+        return list(folder, folderId, depth);
+    }
+
+    /**
+     * Returns the number of objects built so far.
+     */
+    public long getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Returns the estimated heap size of the objects built so far.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    public boolean isExhausted() {
+        return (maxNodes > 0 && nodes >= maxNodes) || bytesExhausted;
+    }
+
+    @Override
+    public String toString() {
+        return "LazyTree [nodes=" + nodes + "/" + maxNodes + ", bytes=" + bytes + "/" + maxBytes + "]";
+    }
+
+    // --- internal ---
+
+    /**
+     * Lists and compiles the children of a folder within the budget.
+     */
+    private List<ObjectInFolderContainer> list(File folder, String folderId, int depth) {
+        List<ObjectInFolderContainer> result = new ArrayList<ObjectInFolderContainer>();
+
+        int maxItems = -1;
+        if (maxNodes > 0) {
+            maxItems = (int) Math.min(maxNodes - nodes, Integer.MAX_VALUE);
+        }
+
+        FileBridgeFolderListing.Page page = callback.getChildren(folder, maxItems);
+        boolean truncated = page.hasMoreItems();
+        int skipCount = 0;
+
+        for (int i = 0; i < page.getEntries().size(); i++) {
+            FileBridgeFileAttributes child = page.getEntries().get(i);
+            ObjectInFolderData object = callback.compile(child);
+            long size = estimateSize(object);
+
+            // a list gets at least one object, otherwise there would be no
+            // container to carry the marker
+            if (maxBytes > 0 && bytes + size > maxBytes && !result.isEmpty()) {
+                truncated = true;
+                bytesExhausted = true;
+                break;
+            }
+
+            nodes++;
+            bytes += size;
+            skipCount = page.getPosition(i);
+
+            result.add(new LazyContainer(object, child.getName(),
+                    (depth != 1 && child.isDirectory() ? child.getFile() : null), depth - 1));
+        }
+
+        Collections.sort(result, BY_NAME);
+
+        if (truncated && !result.isEmpty()) {
+            addMarker((LazyContainer) result.get(result.size() - 1), folderId, skipCount);
+        }
+
+        return result;
+    }
+
+    private static void addMarker(LazyContainer container, String folderId, int skipCount) {
+        List<CmisExtensionElement> children = new ArrayList<CmisExtensionElement>();
+        children.add(new CmisExtensionElementImpl(NAMESPACE, "folderId", null, folderId));
+        children.add(new CmisExtensionElementImpl(NAMESPACE, "skipCount", null, String.valueOf(skipCount)));
+
+        List<CmisExtensionElement> extensions = container.getExtensions();
+        if (extensions == null) {
+            extensions = new ArrayList<CmisExtensionElement>();
+            container.setExtensions(extensions);
+        }
+        extensions.add(new CmisExtensionElementImpl(NAMESPACE, TRUNCATED, null, children));
+    }
+
+    /**
+     * Estimates the heap size of an object.
+     */
+    static long estimateSize(ObjectInFolderData objectInFolder) {
+        long size = OBJECT_OVERHEAD;
+
+        if (objectInFolder.getPathSegment() != null) {
+            size += 2L * objectInFolder.getPathSegment().length();
+        }
+
+        ObjectData object = objectInFolder.getObject();
+        if (object == null) {
+            return size;
+        }
+
+        if (object.getProperties() != null && object.getProperties().getPropertyList() != null) {
+            for (PropertyData<?> property : object.getProperties().getPropertyList()) {
+                size += PROPERTY_OVERHEAD + 2L * property.getId().length();
+                if (property.getValues() != null) {
+                    for (Object value : property.getValues()) {
+                        size += (value instanceof String ? 40 + 2L * ((String) value).length() : 24);
+                    }
+                }
+            }
+        }
+
+        AllowableActions actions = object.getAllowableActions();
+        if (actions != null && actions.getAllowableActions() != null) {
+            size += 16L * actions.getAllowableActions().size();
+        }
+
+        return size;
+    }
+
+    /**
+     * Container that lists the children of its folder on first access.
+     */
+    private final class LazyContainer extends ObjectInFolderContainerImpl {
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+        private File folder;
+        private final int depth;
+
+        LazyContainer(ObjectInFolderData object, String name, File folder, int depth) {
+            super(object);
+            this.name = name;
+            this.folder = folder;
+            this.depth = depth;
+        }
+
+        @Override
+        public List<ObjectInFolderContainer> getChildren() {
+            if (folder != null) {
+                File f = folder;
+                folder = null;
+
+                String id = getObject().getObject().getId();
+                if (isExhausted()) {
+                    addMarker(this, id, 0);
+                } else {
+                    try {
+                        setChildren(list(f, id, depth));
+                    } catch (CmisBaseException e) {
+                        // the response has already been started, the client
+                        // has to ask for this folder again
+                        LOG.debug("Could not list {}: {}", f, e.toString());
+                        addMarker(this, id, 0);
+                    }
+                }
+            }
+
+            return super.getChildren();
+        }
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright 2013 Florian Müller & Jay Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is based on the Apache Chemistry OpenCMIS FileShare project
+ * <http://chemistry.apache.org/java/developing/repositories/dev-repositories-fileshare.html>.
+ *
+ * It is part of a training exercise and not intended for production use!
+ *
+ */
+package org.example.cmis.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.chemistry.opencmis.commons.exceptions.CmisObjectNotFoundException;
+import org.apache.chemistry.opencmis.commons.impl.IOUtils;
+
+/**
+ * Cache of folder listings.
+ *
+ * A listing holds the names of the visible children of a folder, sorted by
+ * name, and whether they are folders or documents. It is tagged with the
+ * modification time and file key of the folder, so a repeated request costs
+ * one stat call of the folder plus one per child on the requested page.
+ * Adding, removing or renaming a child changes the modification time of the
+ * folder and thus invalidates the listing. Changes of the children
+ * themselves don't, which is why their attributes are never cached: sizes
+ * and change tokens are always read fresh, even without a watcher.
+ *
+ * Listings of folders that have been modified just before they were read
+ * are not cached, because a further change in the same clock tick of the
+ * file system would go unnoticed.
+ *
+ * Listings are evicted in LRU order when the memory budget is exceeded.
+ * Listings larger than a quarter of the budget are not cached.
+ */
+public class FileBridgeListingCache {
+
+    /** Estimated heap size of a child entry, without its name. */
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private static final byte FOLDER = 0;
+    private static final byte DOCUMENT = 1;
+    private static final byte OTHER = 2;
+
+    /** Modification times closer to the listing time than this are racy. */
+    private static final long RACY_WINDOW = TimeUnit.SECONDS.toNanos(2);
+
+    /**
+     * A cached listing.
+     */
+    private static final class Listing {
+        final long lastModified;
+        final Object fileKey;
+        /** Child names, sorted. */
+        final String[] names;
+        /** Child types, in the order of the names. */
+        final byte[] types;
+        final long bytes;
+
+        Listing(long lastModified, Object fileKey, String[] names, byte[] types, long bytes) {
+            this.lastModified = lastModified;
+            this.fileKey = fileKey;
+            this.names = names;
+            this.types = types;
+            this.bytes = bytes;
+        }
+
+        boolean accept(int index, FileBridgeFolderListing.Kind kind) {
+            if (kind == FileBridgeFolderListing.Kind.FOLDERS) {
+                return types[index] == FOLDER;
+            } else if (kind == FileBridgeFolderListing.Kind.DOCUMENTS) {
+                return types[index] == DOCUMENT;
+            }
+            return true;
+        }
+
+        boolean matches(BasicFileAttributes attrs) {
+            return lastModified == attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS)
+                    && (fileKey == null ? attrs.fileKey() == null : fileKey.equals(attrs.fileKey()));
+        }
+    }
+
+    private final long budget;
+    private final LinkedHashMap<String, Listing> listings;
+    private long bytes;
+    /** Incremented by every invalidation. */
+    private long generation;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a cache with the given budget in bytes.
+     */
+    public FileBridgeListingCache(long budget) {
+        if (budget < 1) {
+            throw new IllegalArgumentException("Invalid cache budget: " + budget);
+        }
+
+        this.budget = budget;
+        this.listings = new LinkedHashMap<String, Listing>(64, 0.75f, true);
+    }
+
+    /**
+     * Reads one page of the visible children of a folder, sorted by name.
+     * The attributes of the children on the page are read from the file
+     * system.
+     *
+     * @param path
+     *            the repository path of the folder
+     */
+    public FileBridgeFolderListing.Page getPage(String path, File folder, FileBridgeFolderListing.Kind kind,
+            int skipCount, int maxItems) {
+        Listing listing = getListing(path, folder);
+
+        int skip = Math.max(skipCount, 0);
+        int max = (maxItems < 0 ? Integer.MAX_VALUE : maxItems);
+
+        List<FileBridgeFileAttributes> entries = new ArrayList<FileBridgeFileAttributes>(Math.min(max, 100));
+        int[] positions = new int[Math.min(max, 100)];
+        boolean hasMoreItems = false;
+        boolean vanished = false;
+        int count = 0;
+
+        for (int i = 0; i < listing.names.length; i++) {
+            if (!listing.accept(i, kind)) {
+                continue;
+            }
+
+            // vanished entries keep their place, so pages don't overlap
+            count++;
+
+            if (count > skip) {
+                if (count - skip <= max) {
+                    FileBridgeFileAttributes attrs = FileBridgeFileAttributes.read(new File(folder,
+                            listing.names[i]));
+                    if (attrs.exists()) {
+                        if (entries.size() == positions.length) {
+                            positions = Arrays.copyOf(positions, positions.length * 2);
+                        }
+                        // all cached children are visible
+                        positions[entries.size()] = i + 1;
+                        entries.add(attrs);
+                    } else {
+                        vanished = true;
+                    }
+                } else {
+                    hasMoreItems = true;
+                }
+            }
+        }
+
+        if (vanished) {
+            // the folder has changed in the same clock tick
+            invalidate(path, false);
+        }
+
+        return new FileBridgeFolderListing.Page(entries, positions, count, hasMoreItems);
+    }
+
+    /**
+     * Returns the cached listing of a folder or reads it.
+     */
+    private Listing getListing(String path, File folder) {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(folder.toPath(), BasicFileAttributes.class);
+        } catch (IOException e) {
+            invalidate(path, false);
+            throw new CmisObjectNotFoundException("Folder not found!", e);
+        }
+
+        long startGeneration;
+        synchronized (this) {
+            Listing listing = listings.get(path);
+            if (listing != null && listing.matches(attrs)) {
+                hits.incrementAndGet();
+                return listing;
+            }
+            startGeneration = generation;
+        }
+
+        misses.incrementAndGet();
+
+        TreeMap<String, Byte> children = new TreeMap<String, Byte>();
+        long size = 0;
+
+        FileBridgeFolderListing folderListing = FileBridgeFolderListing.open(folder,
+                FileBridgeFolderListing.Kind.ALL);
+        try {
+            for (FileBridgeFileAttributes child : folderListing) {
+                children.put(child.getName(), (child.isDirectory() ? FOLDER : (child.isFile() ? DOCUMENT : OTHER)));
+                size += ENTRY_OVERHEAD + 2L * child.getName().length();
+            }
+        } finally {
+            IOUtils.closeQuietly(folderListing);
+        }
+
+        String[] names = new String[children.size()];
+        byte[] types = new byte[children.size()];
+        int i = 0;
+        for (Map.Entry<String, Byte> child : children.entrySet()) {
+            names[i] = child.getKey();
+            types[i] = child.getValue();
+            i++;
+        }
+
+        long lastModified = attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        Listing listing = new Listing(lastModified, attrs.fileKey(), names, types, size);
+
+        long now = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+        if (now - lastModified > RACY_WINDOW && size <= budget / 4) {
+            put(path, listing, startGeneration);
+        }
+
+        return listing;
+    }
+
+    /**
+     * Drops the listing of a folder and, if requested, the listings of all
+     * folders below it.
+     */
+    public synchronized void invalidate(String path, boolean recursive) {
+        if (path == null) {
+            return;
+        }
+
+        generation++;
+
+        Listing listing = listings.remove(path);
+        if (listing != null) {
+            bytes -= listing.bytes;
+        }
+
+        if (recursive) {
+            String prefix = (path.endsWith("/") ? path : path + "/");
+            for (Iterator<Map.Entry<String, Listing>> iter = listings.entrySet().iterator(); iter.hasNext();) {
+                Map.Entry<String, Listing> e = iter.next();
+                if (e.getKey().startsWith(prefix)) {
+                    bytes -= e.getValue().bytes;
+                    iter.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops all listings.
+     */
+    public synchronized void clear() {
+        generation++;
+        listings.clear();
+        bytes = 0;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Returns the estimated heap size of the cached listings.
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int size() {
+        return listings.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the share of requests that have been served from the cache.
+     */
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return (total == 0 ? 0.0 : (double) h / total);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ListingCache [listings=" + listings.size() + ", bytes=" + bytes + "/" + budget + ", hits="
+                + hits.get() + ", misses=" + misses.get() + "]";
+    }
+
+    // --- internal ---
+
+    /**
+     * Adds a listing unless the folder has been invalidated while it was
+     * read.
+     */
+    private synchronized void put(String path, Listing listing, long startGeneration) {
+        if (generation != startGeneration) {
+            return;
+        }
+
+        Listing old = listings.put(path, listing);
+        if (old != null) {
+            bytes -= old.bytes;
+        }
+        bytes += listing.bytes;
+
+        for (Iterator<Listing> iter = listings.values().iterator(); iter.hasNext() && bytes > budget;) {
+            Listing eldest = iter.next();
+            if (eldest != listing) {
+                bytes -= eldest.bytes;
+                iter.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,577 @@
+/*
+ * Copyright 2013 Florian Müller & Jay Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is based on the Apache Chemistry OpenCMIS FileShare project
+ * <http://chemistry.apache.org/java/developing/repositories/dev-repositories-fileshare.html>.
+ *
+ * It is part of a training exercise and not intended for production use!
+ *
+ */
+package org.example.cmis.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-memory index of the metadata of all visible files and folders.
+ *
+ * The index holds name, size, modification time, MIME type, parent and depth
+ * of each object, keyed by repository path. It is built by a background
+ * thread when it is opened and kept current by the repository, which reports
+ * its own changes and the changes seen by the watcher. Without a watcher,
+ * changes made by other processes are missed until the index is rebuilt.
+ *
+ * Documents and folders are kept in separate maps sorted by path. All
+ * objects below a folder <code>/a</code> have paths from <code>/a/</code>
+ * (inclusive) to <code>/a0</code> (exclusive), because '0' is the character
+ * after '/'. A subtree is therefore a contiguous range of a map that can be
+ * iterated and paged without walking the folders in between.
+ *
+ * The root folder itself is not indexed.
+ */
+public class FileBridgeMetadataIndex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileBridgeMetadataIndex.class);
+
+    /**
+     * Metadata of a file or folder.
+     */
+    public static final class Entry {
+        private final String path;
+        private final String name;
+        private final String parentPath;
+        private final int depth;
+        private final boolean folder;
+        private final long length;
+        private final long lastModified;
+        private final String mimeType;
+
+        Entry(String path, String parentPath, boolean folder, long length, long lastModified, String mimeType) {
+            this.path = path;
+            this.name = path.substring(path.lastIndexOf('/') + 1);
+            this.parentPath = parentPath;
+            this.depth = countSegments(path);
+            this.folder = folder;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.mimeType = mimeType;
+        }
+
+        /**
+         * Returns the repository path.
+         */
+        public String getPath() {
+            return path;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the repository path of the parent folder.
+         */
+        public String getParentPath() {
+            return parentPath;
+        }
+
+        /**
+         * Returns the number of path segments, 1 for the children of the
+         * root.
+         */
+        public int getDepth() {
+            return depth;
+        }
+
+        public boolean isFolder() {
+            return folder;
+        }
+
+        /**
+         * Returns the content length of a document or -1 for a folder.
+         */
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * Returns the modification time in milliseconds.
+         */
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Returns the MIME type of a document, derived from its file name, or
+         * <code>null</code> for a folder.
+         */
+        public String getMimeType() {
+            return mimeType;
+        }
+
+        private Entry moveTo(String newPath, String newParentPath) {
+            return new Entry(newPath, newParentPath, folder, length, lastModified, mimeType);
+        }
+
+        @Override
+        public String toString() {
+            return path + (folder ? "/" : " (" + length + " bytes, " + mimeType + ")");
+        }
+    }
+
+    private final File root;
+    private final FileBridgeMimeTypes mimeTypes;
+
+    private final ConcurrentNavigableMap<String, Entry> documents;
+    private final ConcurrentNavigableMap<String, Entry> folders;
+    /** Paths of the children of each folder, sorted. */
+    private final ConcurrentNavigableMap<String, NavigableSet<String>> children;
+
+    /**
+     * Paths removed while the index is built. The builder must not bring
+     * them back.
+     */
+    private Set<String> removedDuringBuild;
+
+    private final CountDownLatch ready;
+    private final Thread builder;
+    private volatile boolean running;
+
+    /**
+     * Opens an index of a repository and starts building it.
+     */
+    public FileBridgeMetadataIndex(File root, FileBridgeMimeTypes mimeTypes) {
+        this.root = root.getAbsoluteFile();
+        this.mimeTypes = mimeTypes;
+        this.documents = new ConcurrentSkipListMap<String, Entry>();
+        this.folders = new ConcurrentSkipListMap<String, Entry>();
+        this.children = new ConcurrentSkipListMap<String, NavigableSet<String>>();
+        this.removedDuringBuild = new HashSet<String>();
+        this.ready = new CountDownLatch(1);
+
+        running = true;
+        builder = new Thread("FileBridge Metadata Index") {
+            @Override
+            public void run() {
+                build();
+            }
+        };
+        builder.setDaemon(true);
+        builder.start();
+    }
+
+    /**
+     * Waits until the index has been built.
+     *
+     * @return <code>true</code> if the index is ready
+     */
+    public boolean awaitReady(long timeout) {
+        try {
+            return ready.await(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    public boolean isReady() {
+        return ready.getCount() == 0;
+    }
+
+    /**
+     * Returns the entry of a path or <code>null</code> if the path is not
+     * indexed.
+     */
+    public Entry get(String path) {
+        Entry entry = documents.get(path);
+        return (entry != null ? entry : folders.get(path));
+    }
+
+    /**
+     * Returns all documents or all folders in path order. The collection is
+     * a live view.
+     */
+    public Collection<Entry> getAll(boolean folder) {
+        return Collections.unmodifiableCollection(getMap(folder).values());
+    }
+
+    /**
+     * Returns the documents or folders in a folder in path order.
+     */
+    public List<Entry> getChildren(String path, boolean folder) {
+        List<Entry> result = new ArrayList<Entry>();
+
+        NavigableSet<String> paths = children.get(path);
+        if (paths != null) {
+            NavigableMap<String, Entry> map = getMap(folder);
+            for (String child : paths) {
+                Entry entry = map.get(child);
+                if (entry != null) {
+                    result.add(entry);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the documents or folders below a folder in path order. The
+     * collection is a live view of a range of the index; iterating it only
+     * touches the objects in the range.
+     */
+    public Collection<Entry> getDescendants(String path, boolean folder) {
+        return Collections.unmodifiableCollection(getRange(getMap(folder), path).values());
+    }
+
+    /**
+     * Reads the current metadata of a file or folder. Objects that don't
+     * exist anymore are removed together with their content.
+     */
+    public void update(File file) {
+        String path = getRepositoryPath(file);
+        if (path == null) {
+            return;
+        }
+
+        FileBridgeFileAttributes attrs = FileBridgeFileAttributes.read(file);
+        if (!attrs.exists() || attrs.isHidden()) {
+            remove(path, true);
+            return;
+        }
+
+        synchronized (this) {
+            // keep the path that the children share
+            Entry existing = get(path);
+            put(createEntry((existing != null ? existing.getPath() : path), attrs.isDirectory(), attrs.getSize(),
+                    attrs.getLastModified()));
+        }
+    }
+
+    /**
+     * Reads the current metadata of a folder and everything below it.
+     * Entries below the folder that don't exist anymore are removed.
+     */
+    public void updateTree(File folder) {
+        String path = getRepositoryPath(folder);
+        if (path == null) {
+            return;
+        }
+
+        if (!path.equals("/")) {
+            remove(path, true);
+        } else {
+            clear();
+        }
+
+        scan(folder.getAbsoluteFile().toPath(), false);
+    }
+
+    /**
+     * Removes a path and, if requested, everything below it.
+     */
+    public synchronized void remove(String path, boolean recursive) {
+        if (removedDuringBuild != null) {
+            removedDuringBuild.add(path);
+        }
+
+        if (recursive) {
+            getRange(documents, path).clear();
+            getRange(folders, path).clear();
+            getRange(children, path).clear();
+            children.remove(path);
+        }
+
+        Entry entry = documents.remove(path);
+        if (entry == null) {
+            entry = folders.remove(path);
+        }
+        if (entry != null) {
+            Set<String> siblings = children.get(entry.getParentPath());
+            if (siblings != null) {
+                siblings.remove(path);
+            }
+        }
+    }
+
+    /**
+     * Moves a path and everything below it to a new path. The metadata of
+     * the moved object itself is read again.
+     */
+    public void move(String oldPath, File newFile) {
+        String newPath = getRepositoryPath(newFile);
+        if (newPath == null) {
+            remove(oldPath, true);
+            return;
+        }
+
+        synchronized (this) {
+            // folders first, so that the children can share the parent paths
+            List<Entry> moved = new ArrayList<Entry>();
+            Entry entry = get(oldPath);
+            if (entry != null) {
+                moved.add(entry);
+            }
+            moved.addAll(getRange(folders, oldPath).values());
+            moved.addAll(getRange(documents, oldPath).values());
+            remove(oldPath, true);
+
+            for (Entry e : moved) {
+                String path = newPath + e.getPath().substring(oldPath.length());
+                put(e.moveTo(path, getParentPath(path)));
+            }
+        }
+
+        update(newFile);
+    }
+
+    /**
+     * Drops all entries and builds the index again in the calling thread.
+     */
+    public void rebuild() {
+        updateTree(root);
+    }
+
+    /**
+     * Returns the number of entries. Takes time linear in the size of the
+     * index.
+     */
+    public int size() {
+        return documents.size() + folders.size();
+    }
+
+    /**
+     * Stops building the index.
+     */
+    public void shutdown() {
+        running = false;
+        builder.interrupt();
+    }
+
+    @Override
+    public String toString() {
+        return "MetadataIndex [root=" + root + ", entries=" + size() + (isReady() ? "" : ", building") + "]";
+    }
+
+    // --- internal ---
+
+    private void build() {
+        long start = System.currentTimeMillis();
+
+        scan(root.toPath(), true);
+
+        synchronized (this) {
+            removedDuringBuild = null;
+        }
+        ready.countDown();
+
+        if (running) {
+            LOG.info("Indexed {} objects below {} in {} ms.", size(), root, System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Adds a folder tree. The initial build doesn't override entries that
+     * have been updated or removed in the meantime.
+     */
+    private void scan(final Path start, final boolean initial) {
+        try {
+            Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    if (!running) {
+                        return FileVisitResult.TERMINATE;
+                    }
+
+                    if (!dir.equals(start) && FileBridgeFileAttributes.isHiddenName(dir.getFileName().toString())) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+
+                    add(dir, attrs);
+
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (!FileBridgeFileAttributes.isHiddenName(file.getFileName().toString())) {
+                        add(file, attrs);
+                    }
+
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    // deleted in the meantime
+                    return FileVisitResult.CONTINUE;
+                }
+
+                private void add(Path file, BasicFileAttributes attrs) {
+                    String path = getRepositoryPath(file.toFile());
+                    if (path == null || path.equals("/")) {
+                        return;
+                    }
+
+                    synchronized (FileBridgeMetadataIndex.this) {
+                        if (initial && (get(path) != null || isRemovedDuringBuild(path))) {
+                            return;
+                        }
+                        put(createEntry(path, attrs.isDirectory(), attrs.size(), attrs.lastModifiedTime().toMillis()));
+                    }
+                }
+            });
+        } catch (IOException e) {
+            LOG.warn("Could not index {}: {}", start, e.toString());
+        }
+    }
+
+    private boolean isRemovedDuringBuild(String path) {
+        if (removedDuringBuild == null || removedDuringBuild.isEmpty()) {
+            return false;
+        }
+
+        for (String p = path; p.length() > 1; p = p.substring(0, Math.max(p.lastIndexOf('/'), 1))) {
+            if (removedDuringBuild.contains(p)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private Entry createEntry(String path, boolean folder, long length, long lastModified) {
+        if (folder) {
+            return new Entry(path, getParentPath(path), true, -1, lastModified, null);
+        }
+
+        return new Entry(path, getParentPath(path), false, length, lastModified,
+                mimeTypes.getMimeType(path.substring(path.lastIndexOf('/') + 1)));
+    }
+
+    /**
+     * Returns the parent path of a path, shared with the entry of the parent
+     * folder if there is one.
+     */
+    private String getParentPath(String path) {
+        int x = path.lastIndexOf('/');
+        if (x == 0) {
+            return "/";
+        }
+
+        String parentPath = path.substring(0, x);
+        Entry parent = folders.get(parentPath);
+
+        return (parent != null ? parent.getPath() : parentPath);
+    }
+
+    private ConcurrentNavigableMap<String, Entry> getMap(boolean folder) {
+        return (folder ? folders : documents);
+    }
+
+    /**
+     * Returns the range of a map that holds the paths below a folder.
+     */
+    private static <V> ConcurrentNavigableMap<String, V> getRange(ConcurrentNavigableMap<String, V> map,
+            String path) {
+        if (path.equals("/")) {
+            return map;
+        }
+
+        return map.subMap(path + "/", true, path + "0", false);
+    }
+
+    /**
+     * Adds or replaces an entry. Callers must hold the lock.
+     */
+    private void put(Entry entry) {
+        getMap(entry.isFolder()).put(entry.getPath(), entry);
+        if (getMap(!entry.isFolder()).remove(entry.getPath()) != null) {
+            // a folder has replaced a document or vice versa
+            getRange(documents, entry.getPath()).clear();
+            getRange(folders, entry.getPath()).clear();
+            getRange(children, entry.getPath()).clear();
+            children.remove(entry.getPath());
+        }
+
+        NavigableSet<String> siblings = children.get(entry.getParentPath());
+        if (siblings == null) {
+            siblings = new ConcurrentSkipListSet<String>();
+            children.put(entry.getParentPath(), siblings);
+        }
+        siblings.add(entry.getPath());
+    }
+
+    private synchronized void clear() {
+        documents.clear();
+        folders.clear();
+        children.clear();
+    }
+
+    /**
+     * Returns the repository path of a file or <code>null</code> if the file
+     * is not inside the root.
+     */
+    private String getRepositoryPath(File file) {
+        String absolute = file.getAbsolutePath();
+        String rootPath = root.getPath();
+        if (!absolute.startsWith(rootPath)) {
+            return null;
+        }
+
+        String path = absolute.substring(rootPath.length()).replace(File.separatorChar, '/');
+        if (path.length() == 0) {
+            return "/";
+        }
+        if (path.charAt(0) != '/') {
+            return null;
+        }
+
+        return path;
+    }
+
+    private static int countSegments(String path) {
+        int count = 0;
+        for (int i = 0; i < path.length(); i++) {
+            if (path.charAt(i) == '/') {
+                count++;
+            }
+        }
+
+        return count;
+    }
+}
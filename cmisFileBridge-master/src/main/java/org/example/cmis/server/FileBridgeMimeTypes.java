@@ -0,0 +1,253 @@
+/*
+ * Copyright 2013 Florian Müller & Jay Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is based on the Apache Chemistry OpenCMIS FileShare project
+ * <http://chemistry.apache.org/java/developing/repositories/dev-repositories-fileshare.html>.
+ *
+ * It is part of a training exercise and not intended for production use!
+ *
+ */
+package org.example.cmis.server;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.chemistry.opencmis.commons.impl.IOUtils;
+import org.apache.chemistry.opencmis.commons.impl.MimeTypes;
+
+/**
+ * Resolves the MIME types of documents.
+ *
+ * MIME types are resolved by the lowercased file extension through the
+ * OpenCMIS MIME type table and remembered per extension. Optionally, the first
+ * bytes of files without a known extension are checked for a few well-known
+ * signatures. Sniffed types are cached by file key and modification time.
+ */
+public class FileBridgeMimeTypes {
+
+    /** MIME type of unknown content. */
+    public static final String DEFAULT_MIME_TYPE = "application/octet-stream";
+
+    /** Extensions are user input, so the memo must not grow unbounded. */
+    private static final int MAX_EXTENSIONS = 1000;
+
+    private static final int SNIFF_CACHE_SIZE = 1000;
+
+    private static final int SNIFF_LENGTH = 8;
+
+    /** Content signatures and the extensions they stand for. */
+    private static final byte[][] SIGNATURES = {
+            { '%', 'P', 'D', 'F' },
+            { (byte) 0x89, 'P', 'N', 'G' },
+            { (byte) 0xFF, (byte) 0xD8, (byte) 0xFF },
+            { 'G', 'I', 'F', '8' },
+            { 'P', 'K', 3, 4 },
+            { 0x1F, (byte) 0x8B },
+            { '<', '?', 'x', 'm', 'l' },
+            { '%', '!', 'P', 'S' } };
+    private static final String[] SIGNATURE_EXTENSIONS = { "pdf", "png", "jpg", "gif", "zip", "gz", "xml", "ps" };
+
+    private final Map<String, String> byExtension;
+    private final Map<SniffKey, String> sniffCache;
+    private volatile boolean sniffing;
+
+    public FileBridgeMimeTypes() {
+        byExtension = new ConcurrentHashMap<String, String>();
+        sniffCache = new LinkedHashMap<SniffKey, String>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<SniffKey, String> eldest) {
+                return size() > SNIFF_CACHE_SIZE;
+            }
+        };
+    }
+
+    /**
+     * Enables or disables content sniffing for files without a known
+     * extension.
+     */
+    public void setSniffing(boolean sniffing) {
+        this.sniffing = sniffing;
+    }
+
+    public boolean isSniffing() {
+        return sniffing;
+    }
+
+    /**
+     * Returns the MIME type of a document.
+     */
+    public String getMimeType(FileBridgeFileAttributes attrs) {
+        String mimeType = getMimeType(attrs.getName());
+
+        if (sniffing && DEFAULT_MIME_TYPE.equals(mimeType) && attrs.isFile() && attrs.getSize() > 0) {
+            mimeType = sniff(attrs);
+        }
+
+        return mimeType;
+    }
+
+    /**
+     * Returns the MIME type of a file name. Only the extension is taken into
+     * account.
+     */
+    public String getMimeType(String fileName) {
+        String ext = getExtension(fileName);
+        if (ext == null) {
+            return DEFAULT_MIME_TYPE;
+        }
+
+        String mimeType = byExtension.get(ext);
+        if (mimeType == null) {
+            mimeType = MimeTypes.getMIMEType(ext);
+
+            if (byExtension.size() >= MAX_EXTENSIONS) {
+                byExtension.clear();
+            }
+            byExtension.put(ext, mimeType);
+        }
+
+        return mimeType;
+    }
+
+    /**
+     * Returns the lowercased extension of a file name or <code>null</code> if
+     * the name has no extension.
+     */
+    private static String getExtension(String fileName) {
+        if (fileName == null) {
+            return null;
+        }
+
+        int x = fileName.lastIndexOf('.');
+        if (x < 0 || x == fileName.length() - 1) {
+            return null;
+        }
+
+        return fileName.substring(x + 1).toLowerCase(Locale.ENGLISH);
+    }
+
+    @Override
+    public String toString() {
+        return "MimeTypes [extensions=" + byExtension.size() + ", sniffing=" + sniffing + "]";
+    }
+
+    // --- sniffing ---
+
+    private String sniff(FileBridgeFileAttributes attrs) {
+        SniffKey key = new SniffKey(attrs);
+
+        synchronized (sniffCache) {
+            String mimeType = sniffCache.get(key);
+            if (mimeType != null) {
+                return mimeType;
+            }
+        }
+
+        String mimeType = DEFAULT_MIME_TYPE;
+        String ext = sniffExtension(attrs);
+        if (ext != null) {
+            mimeType = getMimeType("x." + ext);
+        }
+
+        synchronized (sniffCache) {
+            sniffCache.put(key, mimeType);
+        }
+
+        return mimeType;
+    }
+
+    private static String sniffExtension(FileBridgeFileAttributes attrs) {
+        byte[] head = new byte[SNIFF_LENGTH];
+        int len = 0;
+
+        InputStream stream = null;
+        try {
+            stream = new FileInputStream(attrs.getFile());
+            int b;
+            while (len < head.length && (b = stream.read(head, len, head.length - len)) > -1) {
+                len += b;
+            }
+        } catch (IOException e) {
+            // can't read it -> unknown type
+            return null;
+        } finally {
+            IOUtils.closeQuietly(stream);
+        }
+
+        for (int i = 0; i < SIGNATURES.length; i++) {
+            if (startsWith(head, len, SIGNATURES[i])) {
+                return SIGNATURE_EXTENSIONS[i];
+            }
+        }
+
+        return null;
+    }
+
+    private static boolean startsWith(byte[] head, int len, byte[] signature) {
+        if (len < signature.length) {
+            return false;
+        }
+
+        for (int i = 0; i < signature.length; i++) {
+            if (head[i] != signature[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Identifies a version of a file.
+     */
+    private static final class SniffKey {
+        private final Object fileKey;
+        private final long lastModified;
+        private final long size;
+
+        SniffKey(FileBridgeFileAttributes attrs) {
+            this.fileKey = (attrs.getFileKey() != null ? attrs.getFileKey() : attrs.getFile().getAbsolutePath());
+            this.lastModified = attrs.getLastModified();
+            this.size = attrs.getSize();
+        }
+
+        @Override
+        public int hashCode() {
+            return fileKey.hashCode() * 31 + (int) (lastModified ^ (lastModified >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+
+            if (!(obj instanceof SniffKey)) {
+                return false;
+            }
+
+            SniffKey other = (SniffKey) obj;
+            return lastModified == other.lastModified && size == other.size && fileKey.equals(other.fileKey);
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2013 Florian Müller & Jay Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is based on the Apache Chemistry OpenCMIS FileShare project
+ * <http://chemistry.apache.org/java/developing/repositories/dev-repositories-fileshare.html>.
+ *
+ * It is part of a training exercise and not intended for production use!
+ *
+ */
+package org.example.cmis.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.chemistry.opencmis.commons.data.Ace;
+import org.apache.chemistry.opencmis.commons.data.Acl;
+import org.apache.chemistry.opencmis.commons.data.AllowableActions;
+import org.apache.chemistry.opencmis.commons.data.CmisExtensionElement;
+import org.apache.chemistry.opencmis.commons.data.Principal;
+import org.apache.chemistry.opencmis.commons.enums.Action;
+
+/**
+ * Precompiled allowable actions and ACLs.
+ *
+ * Allowable actions and ACLs of an object only depend on a few flags, so all
+ * possible combinations are compiled up front. The returned instances are
+ * immutable and shared by all objects. A table is bound to a snapshot of the
+ * user map and has to be replaced when the users change.
+ */
+public final class FileBridgePermissionTable {
+
+    private static final String CMIS_READ = "cmis:read";
+    private static final String CMIS_WRITE = "cmis:write";
+    private static final String CMIS_ALL = "cmis:all";
+
+    private static final int FOLDER = 1;
+    private static final int ROOT = 2;
+    private static final int WRITABLE = 4;
+    private static final int CONTENT = 8;
+    private static final int USER_READ_ONLY = 16;
+
+    /** Allowable actions don't depend on the users, they are shared by all tables. */
+    private static final AllowableActions[] ALLOWABLE_ACTIONS = compileAllowableActions();
+
+    private final Acl readOnlyAcl;
+    private final Acl writableAcl;
+
+    /**
+     * Compiles the ACLs for the given users. The map holds the read-only flag
+     * of each user.
+     */
+    public FileBridgePermissionTable(Map<String, Boolean> readWriteUserMap) {
+        readOnlyAcl = compileAcl(readWriteUserMap, false);
+        writableAcl = compileAcl(readWriteUserMap, true);
+    }
+
+    /**
+     * Returns the allowable actions for an object.
+     */
+    public AllowableActions getAllowableActions(boolean isFolder, boolean isRoot, boolean isWritable,
+            boolean hasContent, boolean userReadOnly) {
+        int key = (isFolder ? FOLDER : 0) | (isRoot ? ROOT : 0) | (isWritable ? WRITABLE : 0)
+                | (hasContent ? CONTENT : 0) | (userReadOnly ? USER_READ_ONLY : 0);
+
+        return ALLOWABLE_ACTIONS[key];
+    }
+
+    /**
+     * Returns the ACL for an object.
+     */
+    public Acl getAcl(boolean isWritable) {
+        return (isWritable ? writableAcl : readOnlyAcl);
+    }
+
+    // --- compile ---
+
+    private static AllowableActions[] compileAllowableActions() {
+        AllowableActions[] result = new AllowableActions[32];
+
+        for (int key = 0; key < result.length; key++) {
+            boolean isFolder = (key & FOLDER) != 0;
+            boolean isRoot = (key & ROOT) != 0;
+            boolean isReadOnly = (key & WRITABLE) == 0;
+            boolean hasContent = (key & CONTENT) != 0;
+            boolean userReadOnly = (key & USER_READ_ONLY) != 0;
+
+            Set<Action> aas = EnumSet.noneOf(Action.class);
+
+            addAction(aas, Action.CAN_GET_OBJECT_PARENTS, !isRoot);
+            addAction(aas, Action.CAN_GET_PROPERTIES, true);
+            addAction(aas, Action.CAN_UPDATE_PROPERTIES, !userReadOnly && !isReadOnly);
+            addAction(aas, Action.CAN_MOVE_OBJECT, !userReadOnly && !isRoot);
+            addAction(aas, Action.CAN_DELETE_OBJECT, !userReadOnly && !isReadOnly && !isRoot);
+            addAction(aas, Action.CAN_GET_ACL, true);
+
+            if (isFolder) {
+                addAction(aas, Action.CAN_GET_DESCENDANTS, true);
+                addAction(aas, Action.CAN_GET_CHILDREN, true);
+                addAction(aas, Action.CAN_GET_FOLDER_PARENT, !isRoot);
+                addAction(aas, Action.CAN_GET_FOLDER_TREE, true);
+                addAction(aas, Action.CAN_CREATE_DOCUMENT, !userReadOnly);
+                addAction(aas, Action.CAN_CREATE_FOLDER, !userReadOnly);
+                addAction(aas, Action.CAN_DELETE_TREE, !userReadOnly && !isReadOnly);
+            } else {
+                addAction(aas, Action.CAN_GET_CONTENT_STREAM, hasContent);
+                addAction(aas, Action.CAN_SET_CONTENT_STREAM, !userReadOnly && !isReadOnly);
+                addAction(aas, Action.CAN_DELETE_CONTENT_STREAM, !userReadOnly && !isReadOnly);
+                addAction(aas, Action.CAN_GET_ALL_VERSIONS, true);
+            }
+
+            result[key] = new SharedAllowableActions(Collections.unmodifiableSet(aas));
+        }
+
+        return result;
+    }
+
+    private static void addAction(Set<Action> aas, Action action, boolean condition) {
+        if (condition) {
+            aas.add(action);
+        }
+    }
+
+    private static Acl compileAcl(Map<String, Boolean> readWriteUserMap, boolean isWritable) {
+        List<Ace> aces = new ArrayList<Ace>(readWriteUserMap.size());
+
+        for (Map.Entry<String, Boolean> ue : readWriteUserMap.entrySet()) {
+            List<String> permissions = new ArrayList<String>(3);
+            permissions.add(CMIS_READ);
+            if (!ue.getValue().booleanValue() && isWritable) {
+                permissions.add(CMIS_WRITE);
+                permissions.add(CMIS_ALL);
+            }
+
+            aces.add(new SharedAce(new SharedPrincipal(ue.getKey()), Collections.unmodifiableList(permissions)));
+        }
+
+        return new SharedAcl(Collections.unmodifiableList(aces));
+    }
+
+    // --- immutable data objects ---
+
+    /**
+     * Base class of the shared data objects. Extensions are not supported.
+     */
+    private abstract static class Shared {
+        public List<CmisExtensionElement> getExtensions() {
+            return null;
+        }
+
+        public void setExtensions(List<CmisExtensionElement> extensions) {
+            throw new UnsupportedOperationException("Shared object is immutable!");
+        }
+    }
+
+    private static final class SharedAllowableActions extends Shared implements AllowableActions {
+        private final Set<Action> actions;
+
+        SharedAllowableActions(Set<Action> actions) {
+            this.actions = actions;
+        }
+
+        public Set<Action> getAllowableActions() {
+            return actions;
+        }
+
+        @Override
+        public String toString() {
+            return "Allowable Actions " + actions;
+        }
+    }
+
+    private static final class SharedAcl extends Shared implements Acl {
+        private final List<Ace> aces;
+
+        SharedAcl(List<Ace> aces) {
+            this.aces = aces;
+        }
+
+        public List<Ace> getAces() {
+            return aces;
+        }
+
+        public Boolean isExact() {
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return "ACL " + aces;
+        }
+    }
+
+    private static final class SharedAce extends Shared implements Ace {
+        private final Principal principal;
+        private final List<String> permissions;
+
+        SharedAce(Principal principal, List<String> permissions) {
+            this.principal = principal;
+            this.permissions = permissions;
+        }
+
+        public Principal getPrincipal() {
+            return principal;
+        }
+
+        public String getPrincipalId() {
+            return principal.getId();
+        }
+
+        public List<String> getPermissions() {
+            return permissions;
+        }
+
+        public boolean isDirect() {
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return "ACE " + principal.getId() + " " + permissions;
+        }
+    }
+
+    private static final class SharedPrincipal extends Shared implements Principal {
+        private final String id;
+
+        SharedPrincipal(String id) {
+            this.id = id;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        @Override
+        public String toString() {
+            return "Principal " + id;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2013 Florian Müller & Jay Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is based on the Apache Chemistry OpenCMIS FileShare project
+ * <http://chemistry.apache.org/java/developing/repositories/dev-repositories-fileshare.html>.
+ *
+ * It is part of a training exercise and not intended for production use!
+ *
+ */
+package org.example.cmis.server;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.chemistry.opencmis.commons.definitions.PropertyDefinition;
+import org.apache.chemistry.opencmis.commons.definitions.TypeDefinition;
+
+/**
+ * A property filter compiled against the known type definitions.
+ *
+ * For each type, the filter holds a bit set over the property definitions of
+ * the type. A compiled filter is immutable and can be shared by all requests
+ * that use the same filter string.
+ */
+public final class FileBridgePropertyFilter {
+
+    /** Filter that accepts all properties. */
+    public static final FileBridgePropertyFilter ALL = new FileBridgePropertyFilter(null,
+            new HashMap<String, PropertyMask>());
+
+    private final Set<String> queryNames;
+    private final Map<String, PropertyMask> masks;
+
+    /**
+     * The accepted properties of one type.
+     */
+    private static final class PropertyMask {
+        private final Map<String, Integer> index;
+        private final BitSet bits;
+
+        PropertyMask(TypeDefinition type, Set<String> queryNames) {
+            index = new HashMap<String, Integer>();
+            bits = new BitSet();
+
+            for (PropertyDefinition<?> propDef : type.getPropertyDefinitions().values()) {
+                int i = index.size();
+                index.put(propDef.getId(), Integer.valueOf(i));
+
+                String queryName = propDef.getQueryName();
+                if (queryName == null || queryNames.contains(queryName)) {
+                    bits.set(i);
+                }
+            }
+        }
+
+        boolean accepts(String propertyId) {
+            Integer i = index.get(propertyId);
+            return (i != null) && bits.get(i.intValue());
+        }
+    }
+
+    private FileBridgePropertyFilter(Set<String> queryNames, Map<String, PropertyMask> masks) {
+        this.queryNames = queryNames;
+        this.masks = masks;
+    }
+
+    /**
+     * Compiles a filter string against the type definitions of the given type
+     * manager.
+     */
+    public static FileBridgePropertyFilter compile(String filter, FileBridgeTypeManager typeManager) {
+        Set<String> queryNames = FileBridgeUtils.splitFilter(filter);
+        if (queryNames == null) {
+            return ALL;
+        }
+
+        Map<String, PropertyMask> masks = new HashMap<String, PropertyMask>();
+        for (TypeDefinition type : typeManager.getInternalTypeDefinitions()) {
+            masks.put(type.getId(), new PropertyMask(type, queryNames));
+        }
+
+        return new FileBridgePropertyFilter(queryNames, masks);
+    }
+
+    /**
+     * Returns <code>true</code> if this filter accepts all properties.
+     */
+    public boolean acceptsAll() {
+        return queryNames == null;
+    }
+
+    /**
+     * Checks if a property of the given type passes this filter.
+     */
+    public boolean accepts(TypeDefinition type, String propertyId) {
+        if (queryNames == null) {
+            return true;
+        }
+
+        PropertyMask mask = masks.get(type.getId());
+        if (mask != null) {
+            return mask.accepts(propertyId);
+        }
+
+        // type has been added after the filter has been compiled
+        PropertyDefinition<?> propDef = type.getPropertyDefinitions().get(propertyId);
+        if (propDef == null) {
+            return false;
+        }
+
+        return (propDef.getQueryName() == null) || queryNames.contains(propDef.getQueryName());
+    }
+
+    @Override
+    public String toString() {
+        return "PropertyFilter " + (queryNames == null ? "[*]" : queryNames.toString());
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2013 Florian Müller & Jay Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is based on the Apache Chemistry OpenCMIS FileShare project
+ * <http://chemistry.apache.org/java/developing/repositories/dev-repositories-fileshare.html>.
+ *
+ * It is part of a training exercise and not intended for production use!
+ *
+ */
+package org.example.cmis.server;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.GregorianCalendar;
+import java.util.List;
+
+import org.apache.chemistry.opencmis.commons.data.CmisExtensionElement;
+import org.apache.chemistry.opencmis.commons.data.PropertyBoolean;
+import org.apache.chemistry.opencmis.commons.data.PropertyData;
+import org.apache.chemistry.opencmis.commons.data.PropertyId;
+import org.apache.chemistry.opencmis.commons.data.PropertyString;
+import org.apache.chemistry.opencmis.commons.definitions.PropertyDefinition;
+import org.apache.chemistry.opencmis.commons.definitions.TypeDefinition;
+import org.apache.chemistry.opencmis.commons.enums.CmisVersion;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.AbstractPropertyData;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertiesImpl;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertyDateTimeImpl;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertyIdImpl;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertyIntegerImpl;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertyStringImpl;
+
+/**
+ * Precompiled properties of one type and CMIS version.
+ *
+ * Properties that have the same value for all objects of the type are created
+ * once and shared by all property sets; these instances are immutable. The
+ * template also creates the per-object properties, with query names set if
+ * the template is used for query results.
+ */
+public final class FileBridgePropertyTemplate {
+
+    private final TypeDefinition type;
+    private final CmisVersion cmisVersion;
+    private final boolean queryNames;
+    private final List<PropertyData<?>> constants;
+
+    public FileBridgePropertyTemplate(TypeDefinition type, CmisVersion cmisVersion, boolean queryNames) {
+        if (type == null) {
+            throw new IllegalArgumentException("Type must not be null!");
+        }
+
+        this.type = type;
+        this.cmisVersion = cmisVersion;
+        this.queryNames = queryNames;
+        this.constants = new ArrayList<PropertyData<?>>();
+    }
+
+    public TypeDefinition getType() {
+        return type;
+    }
+
+    public CmisVersion getCmisVersion() {
+        return cmisVersion;
+    }
+
+    // --- constants ---
+
+    public void addConstantId(String id, String value) {
+        constants.add(new ConstantId(checkDefined(id), getQueryName(id), singleton(value)));
+    }
+
+    public void addConstantIdList(String id, List<String> value) {
+        constants.add(new ConstantId(checkDefined(id), getQueryName(id), copy(value)));
+    }
+
+    public void addConstantString(String id, String value) {
+        constants.add(new ConstantString(checkDefined(id), getQueryName(id), singleton(value)));
+    }
+
+    public void addConstantBoolean(String id, boolean value) {
+        constants.add(new ConstantBoolean(checkDefined(id), getQueryName(id), singleton(Boolean.valueOf(value))));
+    }
+
+    /**
+     * Adds the shared constant properties that pass the filter.
+     */
+    public void addConstants(PropertiesImpl props, FileBridgePropertyFilter filter) {
+        boolean all = filter.acceptsAll();
+        for (PropertyData<?> prop : constants) {
+            if (all || filter.accepts(type, prop.getId())) {
+                props.addProperty(prop);
+            }
+        }
+    }
+
+    // --- per-object properties ---
+
+    /**
+     * Checks if a property is defined by the type and passes the filter.
+     */
+    public boolean accepts(FileBridgePropertyFilter filter, String id) {
+        checkDefined(id);
+        return filter.accepts(type, id);
+    }
+
+    public PropertyIdImpl newId(String id, String value) {
+        return init(new PropertyIdImpl(id, value));
+    }
+
+    public PropertyStringImpl newString(String id, String value) {
+        return init(new PropertyStringImpl(id, value));
+    }
+
+    public PropertyIntegerImpl newInteger(String id, BigInteger value) {
+        return init(new PropertyIntegerImpl(id, value));
+    }
+
+    public PropertyDateTimeImpl newDateTime(String id, GregorianCalendar value) {
+        return init(new PropertyDateTimeImpl(id, value));
+    }
+
+    @Override
+    public String toString() {
+        return "PropertyTemplate [" + type.getId() + ", " + cmisVersion + ", " + constants.size() + " constants]";
+    }
+
+    // --- internal ---
+
+    private <T extends AbstractPropertyData<?>> T init(T prop) {
+        if (queryNames) {
+            prop.setQueryName(getQueryName(prop.getId()));
+        }
+
+        return prop;
+    }
+
+    private String checkDefined(String id) {
+        if (id == null) {
+            throw new IllegalArgumentException("Id must not be null!");
+        }
+
+        if (!type.getPropertyDefinitions().containsKey(id)) {
+            throw new IllegalArgumentException("Unknown property: " + id);
+        }
+
+        return id;
+    }
+
+    private String getQueryName(String id) {
+        if (!queryNames) {
+            return null;
+        }
+
+        PropertyDefinition<?> propDef = type.getPropertyDefinitions().get(id);
+        return (propDef == null ? null : propDef.getQueryName());
+    }
+
+    private static <T> List<T> singleton(T value) {
+        if (value == null) {
+            return Collections.emptyList();
+        }
+
+        return Collections.singletonList(value);
+    }
+
+    private static <T> List<T> copy(List<T> value) {
+        if (value == null) {
+            return Collections.emptyList();
+        }
+
+        return Collections.unmodifiableList(new ArrayList<T>(value));
+    }
+
+    /**
+     * Immutable property that is shared by many property sets.
+     */
+    private abstract static class Constant<T> implements PropertyData<T> {
+        private final String id;
+        private final String queryName;
+        private final List<T> values;
+
+        Constant(String id, String queryName, List<T> values) {
+            this.id = id;
+            this.queryName = queryName;
+            this.values = values;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getLocalName() {
+            return null;
+        }
+
+        public String getDisplayName() {
+            return null;
+        }
+
+        public String getQueryName() {
+            return queryName;
+        }
+
+        public List<T> getValues() {
+            return values;
+        }
+
+        public T getFirstValue() {
+            return (values.isEmpty() ? null : values.get(0));
+        }
+
+        public List<CmisExtensionElement> getExtensions() {
+            return null;
+        }
+
+        public void setExtensions(List<CmisExtensionElement> extensions) {
+            throw new UnsupportedOperationException("Shared property " + id + " is immutable!");
+        }
+
+        @Override
+        public String toString() {
+            return "Constant Property [id=" + id + ", query name=" + queryName + ", values=" + values + "]";
+        }
+    }
+
+    private static final class ConstantId extends Constant<String> implements PropertyId {
+        ConstantId(String id, String queryName, List<String> values) {
+            super(id, queryName, values);
+        }
+    }
+
+    private static final class ConstantString extends Constant<String> implements PropertyString {
+        ConstantString(String id, String queryName, List<String> values) {
+            super(id, queryName, values);
+        }
+    }
+
+    private static final class ConstantBoolean extends Constant<Boolean> implements PropertyBoolean {
+        ConstantBoolean(String id, String queryName, List<Boolean> values) {
+            super(id, queryName, values);
+        }
+    }
+}
@@ -0,0 +1,940 @@
+/*
+ * Copyright 2013 Florian Müller & Jay Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is based on the Apache Chemistry OpenCMIS FileShare project
+ * <http://chemistry.apache.org/java/developing/repositories/dev-repositories-fileshare.html>.
+ *
+ * It is part of a training exercise and not intended for production use!
+ *
+ */
+package org.example.cmis.server;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.GregorianCalendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.apache.chemistry.opencmis.commons.PropertyIds;
+import org.apache.chemistry.opencmis.commons.exceptions.CmisInvalidArgumentException;
+import org.apache.chemistry.opencmis.commons.impl.DateTimeHelper;
+
+/**
+ * A query in the CMIS-SQL subset that the metadata index can answer.
+ *
+ * <pre>
+ * SELECT * | property [, property ...]
+ * FROM cmis:document | cmis:folder [[AS] alias]
+ * [WHERE condition]
+ * [ORDER BY property [ASC | DESC] [, ...]]
+ * </pre>
+ *
+ * Conditions combine comparisons (=, &lt;&gt;, &lt;, &gt;, &lt;=, &gt;=),
+ * LIKE, IN, IS NULL, IN_FOLDER and IN_TREE with AND, OR, NOT and
+ * parentheses. Queryable properties are cmis:name,
+ * cmis:contentStreamFileName, cmis:contentStreamMimeType,
+ * cmis:contentStreamLength and cmis:lastModificationDate. Dates are given as
+ * TIMESTAMP literals.
+ *
+ * A parsed query has to be bound to folder paths with
+ * {@link #resolve(FolderResolver)} before it can be executed.
+ */
+public class FileBridgeQuery {
+
+    /**
+     * Types of queryable properties.
+     */
+    private enum Kind {
+        STRING, INTEGER, DATETIME
+    }
+
+    private static final Map<String, Kind> PROPERTIES = new LinkedHashMap<String, Kind>();
+    static {
+        PROPERTIES.put(PropertyIds.NAME, Kind.STRING);
+        PROPERTIES.put(PropertyIds.CONTENT_STREAM_FILE_NAME, Kind.STRING);
+        PROPERTIES.put(PropertyIds.CONTENT_STREAM_MIME_TYPE, Kind.STRING);
+        PROPERTIES.put(PropertyIds.CONTENT_STREAM_LENGTH, Kind.INTEGER);
+        PROPERTIES.put(PropertyIds.LAST_MODIFICATION_DATE, Kind.DATETIME);
+    }
+
+    /**
+     * Resolves the folder ids of IN_FOLDER and IN_TREE.
+     */
+    public interface FolderResolver {
+        /**
+         * Returns the repository path of a folder.
+         *
+         * @throws CmisInvalidArgumentException
+         *             if the id doesn't denote a folder
+         */
+        String getFolderPath(String folderId);
+    }
+
+    /**
+     * One page of the matching objects.
+     */
+    public static final class Result {
+        private final List<FileBridgeMetadataIndex.Entry> entries;
+        private final int numItems;
+        private final boolean hasMoreItems;
+
+        Result(List<FileBridgeMetadataIndex.Entry> entries, int numItems, boolean hasMoreItems) {
+            this.entries = entries;
+            this.numItems = numItems;
+            this.hasMoreItems = hasMoreItems;
+        }
+
+        public List<FileBridgeMetadataIndex.Entry> getEntries() {
+            return entries;
+        }
+
+        /**
+         * Returns the number of matching objects or -1 if it is unknown.
+         */
+        public int getNumItems() {
+            return numItems;
+        }
+
+        public boolean hasMoreItems() {
+            return hasMoreItems;
+        }
+    }
+
+    private final String typeId;
+    private final List<String> selectList;
+    private final Condition where;
+    private final List<Order> orderBy;
+    /** IN_FOLDER and IN_TREE conditions of the query. */
+    private final List<Scope> scopes;
+
+    private FileBridgeQuery(String typeId, List<String> selectList, Condition where, List<Order> orderBy,
+            List<Scope> scopes) {
+        this.typeId = typeId;
+        this.selectList = selectList;
+        this.where = where;
+        this.orderBy = orderBy;
+        this.scopes = scopes;
+    }
+
+    /**
+     * Parses a query statement.
+     *
+     * @throws CmisInvalidArgumentException
+     *             if the statement is invalid or not supported
+     */
+    public static FileBridgeQuery parse(String statement) {
+        if (statement == null) {
+            throw new CmisInvalidArgumentException("Statement must be set!");
+        }
+
+        return new Parser(statement).parse();
+    }
+
+    /**
+     * Returns the ids of the properties that can be used in conditions and
+     * ORDER BY clauses.
+     */
+    public static Set<String> getQueryableProperties() {
+        return Collections.unmodifiableSet(PROPERTIES.keySet());
+    }
+
+    /**
+     * Returns the type in the FROM clause.
+     */
+    public String getTypeId() {
+        return typeId;
+    }
+
+    /**
+     * Returns the selected properties or <code>null</code> for all
+     * properties.
+     */
+    public List<String> getSelectList() {
+        return selectList;
+    }
+
+    /**
+     * Binds the IN_FOLDER and IN_TREE conditions to folder paths.
+     */
+    public void resolve(FolderResolver resolver) {
+        for (Scope scope : scopes) {
+            scope.path = resolver.getFolderPath(scope.folderId);
+        }
+    }
+
+    /**
+     * Finds the matching objects in the index.
+     *
+     * Without ORDER BY, results are returned in path order and the
+     * candidates are streamed from the index: only the requested page is
+     * collected and the search stops at the first match behind it. The
+     * number of matches is then unknown.
+     *
+     * @param folders
+     *            <code>true</code> to look for folders, <code>false</code>
+     *            to look for documents
+     */
+    public Result execute(FileBridgeMetadataIndex index, boolean folders, int skipCount, int maxItems) {
+        int skip = Math.max(skipCount, 0);
+        int max = (maxItems < 0 ? Integer.MAX_VALUE : maxItems);
+
+        if (orderBy.isEmpty()) {
+            List<FileBridgeMetadataIndex.Entry> page = new ArrayList<FileBridgeMetadataIndex.Entry>();
+            int numItems = 0;
+            for (FileBridgeMetadataIndex.Entry entry : getCandidates(index, folders)) {
+                if (where == null || where.matches(entry)) {
+                    if (numItems >= skip) {
+                        if (page.size() == max) {
+                            // there is more, the rest is not counted
+                            return new Result(page, -1, true);
+                        }
+                        page.add(entry);
+                    }
+                    numItems++;
+                }
+            }
+
+            return new Result(page, numItems, false);
+        }
+
+        List<FileBridgeMetadataIndex.Entry> matches = new ArrayList<FileBridgeMetadataIndex.Entry>();
+        for (FileBridgeMetadataIndex.Entry entry : getCandidates(index, folders)) {
+            if (where == null || where.matches(entry)) {
+                matches.add(entry);
+            }
+        }
+
+        Collections.sort(matches, new Comparator<FileBridgeMetadataIndex.Entry>() {
+            public int compare(FileBridgeMetadataIndex.Entry a, FileBridgeMetadataIndex.Entry b) {
+                for (Order order : orderBy) {
+                    int c = compareNullsFirst(getValue(a, order.property), getValue(b, order.property));
+                    if (c != 0) {
+                        return (order.ascending ? c : -c);
+                    }
+                }
+
+                return a.getPath().compareTo(b.getPath());
+            }
+        });
+
+        int from = Math.min(skip, matches.size());
+        int to = (int) Math.min((long) from + max, matches.size());
+
+        return new Result(new ArrayList<FileBridgeMetadataIndex.Entry>(matches.subList(from, to)), matches.size(),
+                to < matches.size());
+    }
+
+    @Override
+    public String toString() {
+        return "Query [type=" + typeId + ", select=" + selectList + ", where=" + where + ", orderBy=" + orderBy
+                + "]";
+    }
+
+    // --- internal ---
+
+    /**
+     * Returns the documents or folders the query has to look at, in path
+     * order. An IN_FOLDER or IN_TREE condition that has to hold for all
+     * results limits the search to the folder or to the range of the
+     * subtree.
+     */
+    private Collection<FileBridgeMetadataIndex.Entry> getCandidates(FileBridgeMetadataIndex index, boolean folders) {
+        Scope scope = null;
+        if (where instanceof Scope) {
+            scope = (Scope) where;
+        } else if (where instanceof And) {
+            for (Condition condition : ((And) where).conditions) {
+                if (condition instanceof Scope) {
+                    scope = (Scope) condition;
+                    break;
+                }
+            }
+        }
+
+        if (scope == null) {
+            return index.getAll(folders);
+        }
+
+        return (scope.tree ? index.getDescendants(scope.path, folders) : index.getChildren(scope.path, folders));
+    }
+
+    private static Object getValue(FileBridgeMetadataIndex.Entry entry, String property) {
+        if (PropertyIds.NAME.equals(property)) {
+            return entry.getName();
+        } else if (PropertyIds.CONTENT_STREAM_FILE_NAME.equals(property)) {
+            return (entry.isFolder() ? null : entry.getName());
+        } else if (PropertyIds.CONTENT_STREAM_MIME_TYPE.equals(property)) {
+            return entry.getMimeType();
+        } else if (PropertyIds.CONTENT_STREAM_LENGTH.equals(property)) {
+            return (entry.isFolder() ? null : BigDecimal.valueOf(entry.getLength()));
+        } else if (PropertyIds.LAST_MODIFICATION_DATE.equals(property)) {
+            return Long.valueOf(entry.getLastModified());
+        }
+
+        return null;
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static int compare(Object a, Object b) {
+        return ((Comparable) a).compareTo(b);
+    }
+
+    private static int compareNullsFirst(Object a, Object b) {
+        if (a == null) {
+            return (b == null ? 0 : -1);
+        }
+        if (b == null) {
+            return 1;
+        }
+
+        return compare(a, b);
+    }
+
+    /**
+     * Translates a LIKE pattern into a regular expression.
+     */
+    private static Pattern compileLike(String like) {
+        StringBuilder regex = new StringBuilder();
+
+        for (int i = 0; i < like.length(); i++) {
+            char c = like.charAt(i);
+            if (c == '\\' && i + 1 < like.length()) {
+                i++;
+                regex.append(Pattern.quote(String.valueOf(like.charAt(i))));
+            } else if (c == '%') {
+                regex.append(".*");
+            } else if (c == '_') {
+                regex.append('.');
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    // --- conditions ---
+
+    private interface Condition {
+        boolean matches(FileBridgeMetadataIndex.Entry entry);
+    }
+
+    private static final class And implements Condition {
+        final List<Condition> conditions;
+
+        And(List<Condition> conditions) {
+            this.conditions = conditions;
+        }
+
+        public boolean matches(FileBridgeMetadataIndex.Entry entry) {
+            for (Condition condition : conditions) {
+                if (!condition.matches(entry)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return "AND" + conditions;
+        }
+    }
+
+    private static final class Or implements Condition {
+        final List<Condition> conditions;
+
+        Or(List<Condition> conditions) {
+            this.conditions = conditions;
+        }
+
+        public boolean matches(FileBridgeMetadataIndex.Entry entry) {
+            for (Condition condition : conditions) {
+                if (condition.matches(entry)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "OR" + conditions;
+        }
+    }
+
+    private static final class Not implements Condition {
+        final Condition condition;
+
+        Not(Condition condition) {
+            this.condition = condition;
+        }
+
+        public boolean matches(FileBridgeMetadataIndex.Entry entry) {
+            return !condition.matches(entry);
+        }
+
+        @Override
+        public String toString() {
+            return "NOT(" + condition + ")";
+        }
+    }
+
+    private static final class Comparison implements Condition {
+        final String property;
+        final String operator;
+        final Object value;
+
+        Comparison(String property, String operator, Object value) {
+            this.property = property;
+            this.operator = operator;
+            this.value = value;
+        }
+
+        public boolean matches(FileBridgeMetadataIndex.Entry entry) {
+            Object v = getValue(entry, property);
+            if (v == null) {
+                return false;
+            }
+
+            int c = compare(v, value);
+            if ("=".equals(operator)) {
+                return c == 0;
+            } else if ("<>".equals(operator)) {
+                return c != 0;
+            } else if ("<".equals(operator)) {
+                return c < 0;
+            } else if (">".equals(operator)) {
+                return c > 0;
+            } else if ("<=".equals(operator)) {
+                return c <= 0;
+            } else {
+                return c >= 0;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return property + " " + operator + " " + value;
+        }
+    }
+
+    private static final class Like implements Condition {
+        final String property;
+        final Pattern pattern;
+
+        Like(String property, Pattern pattern) {
+            this.property = property;
+            this.pattern = pattern;
+        }
+
+        public boolean matches(FileBridgeMetadataIndex.Entry entry) {
+            Object v = getValue(entry, property);
+            return v != null && pattern.matcher((String) v).matches();
+        }
+
+        @Override
+        public String toString() {
+            return property + " LIKE " + pattern;
+        }
+    }
+
+    private static final class In implements Condition {
+        final String property;
+        final List<Object> values;
+
+        In(String property, List<Object> values) {
+            this.property = property;
+            this.values = values;
+        }
+
+        public boolean matches(FileBridgeMetadataIndex.Entry entry) {
+            Object v = getValue(entry, property);
+            if (v == null) {
+                return false;
+            }
+
+            for (Object value : values) {
+                if (compare(v, value) == 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return property + " IN " + values;
+        }
+    }
+
+    private static final class IsNull implements Condition {
+        final String property;
+
+        IsNull(String property) {
+            this.property = property;
+        }
+
+        public boolean matches(FileBridgeMetadataIndex.Entry entry) {
+            return getValue(entry, property) == null;
+        }
+
+        @Override
+        public String toString() {
+            return property + " IS NULL";
+        }
+    }
+
+    /**
+     * IN_FOLDER or IN_TREE.
+     */
+    private static final class Scope implements Condition {
+        final String folderId;
+        final boolean tree;
+        String path;
+
+        Scope(String folderId, boolean tree) {
+            this.folderId = folderId;
+            this.tree = tree;
+        }
+
+        public boolean matches(FileBridgeMetadataIndex.Entry entry) {
+            if (tree) {
+                return path.equals("/") || entry.getPath().startsWith(path + "/");
+            }
+
+            return entry.getParentPath().equals(path);
+        }
+
+        @Override
+        public String toString() {
+            return (tree ? "IN_TREE(" : "IN_FOLDER(") + folderId + ")";
+        }
+    }
+
+    private static final class Order {
+        final String property;
+        final boolean ascending;
+
+        Order(String property, boolean ascending) {
+            this.property = property;
+            this.ascending = ascending;
+        }
+
+        @Override
+        public String toString() {
+            return property + (ascending ? " ASC" : " DESC");
+        }
+    }
+
+    // --- parser ---
+
+    /**
+     * Recursive descent parser.
+     */
+    private static final class Parser {
+        private static final int IDENTIFIER = 0;
+        private static final int STRING = 1;
+        private static final int NUMBER = 2;
+        private static final int SYMBOL = 3;
+        private static final int END = 4;
+
+        private final String statement;
+        private int pos;
+
+        private int tokenType;
+        private String token;
+
+        private String alias;
+        private final List<Scope> scopes = new ArrayList<Scope>();
+
+        Parser(String statement) {
+            this.statement = statement;
+            next();
+        }
+
+        FileBridgeQuery parse() {
+            expectKeyword("SELECT");
+
+            List<String> selectList = null;
+            if (isSymbol("*")) {
+                next();
+            } else {
+                selectList = new ArrayList<String>();
+                do {
+                    if (!selectList.isEmpty()) {
+                        next();
+                    }
+                    selectList.add(identifier());
+                    if (isKeyword("AS")) {
+                        next();
+                        identifier();
+                    }
+                } while (isSymbol(","));
+            }
+
+            expectKeyword("FROM");
+            String typeId = identifier();
+            if (isKeyword("AS")) {
+                next();
+                alias = identifier();
+            } else if (tokenType == IDENTIFIER && !isKeyword("WHERE") && !isKeyword("ORDER")) {
+                alias = identifier();
+            }
+
+            if (isKeyword("JOIN") || isKeyword("INNER") || isKeyword("LEFT")) {
+                throw new CmisInvalidArgumentException("Joins are not supported!");
+            }
+
+            if (selectList != null) {
+                for (int i = 0; i < selectList.size(); i++) {
+                    selectList.set(i, unqualify(selectList.get(i)));
+                }
+            }
+
+            Condition where = null;
+            if (isKeyword("WHERE")) {
+                next();
+                where = parseOr();
+            }
+
+            List<Order> orderBy = new ArrayList<Order>();
+            if (isKeyword("ORDER")) {
+                next();
+                expectKeyword("BY");
+                do {
+                    if (!orderBy.isEmpty()) {
+                        next();
+                    }
+                    String property = property();
+                    boolean ascending = true;
+                    if (isKeyword("ASC")) {
+                        next();
+                    } else if (isKeyword("DESC")) {
+                        next();
+                        ascending = false;
+                    }
+                    orderBy.add(new Order(property, ascending));
+                } while (isSymbol(","));
+            }
+
+            if (tokenType != END) {
+                throw error("Unexpected '" + token + "'");
+            }
+
+            return new FileBridgeQuery(typeId, selectList, where, orderBy, scopes);
+        }
+
+        private Condition parseOr() {
+            List<Condition> conditions = new ArrayList<Condition>();
+            conditions.add(parseAnd());
+            while (isKeyword("OR")) {
+                next();
+                conditions.add(parseAnd());
+            }
+
+            return (conditions.size() == 1 ? conditions.get(0) : new Or(conditions));
+        }
+
+        private Condition parseAnd() {
+            List<Condition> conditions = new ArrayList<Condition>();
+            conditions.add(parseNot());
+            while (isKeyword("AND")) {
+                next();
+                conditions.add(parseNot());
+            }
+
+            return (conditions.size() == 1 ? conditions.get(0) : new And(conditions));
+        }
+
+        private Condition parseNot() {
+            if (isKeyword("NOT")) {
+                next();
+                return new Not(parseNot());
+            }
+
+            return parsePredicate();
+        }
+
+        private Condition parsePredicate() {
+            if (isSymbol("(")) {
+                next();
+                Condition condition = parseOr();
+                expectSymbol(")");
+                return condition;
+            }
+
+            if (isKeyword("IN_FOLDER") || isKeyword("IN_TREE")) {
+                boolean tree = isKeyword("IN_TREE");
+                next();
+                expectSymbol("(");
+                if (tokenType == IDENTIFIER) {
+                    // qualifier
+                    identifier();
+                    expectSymbol(",");
+                }
+                if (tokenType != STRING) {
+                    throw error("Folder id expected");
+                }
+                Scope scope = new Scope(token, tree);
+                next();
+                expectSymbol(")");
+                scopes.add(scope);
+                return scope;
+            }
+
+            if (isKeyword("CONTAINS") || isKeyword("SCORE") || isKeyword("ANY")) {
+                throw new CmisInvalidArgumentException(token.toUpperCase(Locale.ENGLISH) + " is not supported!");
+            }
+
+            String property = property();
+            Kind kind = PROPERTIES.get(property);
+
+            if (isKeyword("IS")) {
+                next();
+                boolean not = false;
+                if (isKeyword("NOT")) {
+                    next();
+                    not = true;
+                }
+                expectKeyword("NULL");
+                Condition condition = new IsNull(property);
+                return (not ? new Not(condition) : condition);
+            }
+
+            boolean not = false;
+            if (isKeyword("NOT")) {
+                next();
+                not = true;
+            }
+
+            Condition condition;
+            if (isKeyword("LIKE")) {
+                next();
+                if (kind != Kind.STRING || tokenType != STRING) {
+                    throw error("LIKE requires a string property and a string literal");
+                }
+                condition = new Like(property, compileLike(token));
+                next();
+            } else if (isKeyword("IN")) {
+                next();
+                expectSymbol("(");
+                List<Object> values = new ArrayList<Object>();
+                values.add(literal(kind));
+                while (isSymbol(",")) {
+                    next();
+                    values.add(literal(kind));
+                }
+                expectSymbol(")");
+                condition = new In(property, values);
+            } else if (!not && tokenType == SYMBOL && "= <> < > <= >=".contains(token)) {
+                String operator = token;
+                next();
+                condition = new Comparison(property, operator, literal(kind));
+            } else {
+                throw error("Operator expected");
+            }
+
+            return (not ? new Not(condition) : condition);
+        }
+
+        /**
+         * Reads a literal that matches the type of a property.
+         */
+        private Object literal(Kind kind) {
+            Object value;
+            if (kind == Kind.STRING && tokenType == STRING) {
+                value = unescape(token);
+            } else if (kind == Kind.INTEGER && tokenType == NUMBER) {
+                value = new BigDecimal(token);
+            } else if (kind == Kind.DATETIME && isKeyword("TIMESTAMP")) {
+                next();
+                GregorianCalendar date = (tokenType == STRING ? DateTimeHelper.parseXmlDateTime(token) : null);
+                if (date == null) {
+                    throw error("Invalid timestamp");
+                }
+                value = Long.valueOf(date.getTimeInMillis());
+            } else {
+                throw error("Literal of type " + kind.name().toLowerCase(Locale.ENGLISH) + " expected");
+            }
+
+            next();
+            return value;
+        }
+
+        /**
+         * Reads a queryable property.
+         */
+        private String property() {
+            String property = unqualify(identifier());
+            if (!PROPERTIES.containsKey(property)) {
+                throw new CmisInvalidArgumentException("Property '" + property + "' is not queryable!");
+            }
+
+            return property;
+        }
+
+        private String unqualify(String identifier) {
+            if (alias != null && identifier.startsWith(alias + ".")) {
+                return identifier.substring(alias.length() + 1);
+            }
+
+            return identifier;
+        }
+
+        private String identifier() {
+            if (tokenType != IDENTIFIER) {
+                throw error("Identifier expected");
+            }
+
+            String result = token;
+            next();
+            return result;
+        }
+
+        private boolean isKeyword(String keyword) {
+            return tokenType == IDENTIFIER && keyword.equalsIgnoreCase(token);
+        }
+
+        private boolean isSymbol(String symbol) {
+            return tokenType == SYMBOL && symbol.equals(token);
+        }
+
+        private void expectKeyword(String keyword) {
+            if (!isKeyword(keyword)) {
+                throw error(keyword + " expected");
+            }
+            next();
+        }
+
+        private void expectSymbol(String symbol) {
+            if (!isSymbol(symbol)) {
+                throw error("'" + symbol + "' expected");
+            }
+            next();
+        }
+
+        private CmisInvalidArgumentException error(String message) {
+            return new CmisInvalidArgumentException("Invalid query at position " + pos + ": " + message + "!");
+        }
+
+        /**
+         * Escapes in string literals: a backslash or a doubled quote
+         * escapes a quote, a backslash escapes a backslash. Other escapes
+         * are kept for LIKE.
+         */
+        private static String unescape(String literal) {
+            StringBuilder sb = new StringBuilder(literal.length());
+            for (int i = 0; i < literal.length(); i++) {
+                char c = literal.charAt(i);
+                if (c == '\\' && i + 1 < literal.length()) {
+                    char n = literal.charAt(i + 1);
+                    if (n == '\\' || n == '\'') {
+                        i++;
+                        c = n;
+                    }
+                }
+                sb.append(c);
+            }
+            return sb.toString();
+        }
+
+        /**
+         * Reads the next token. String tokens keep their escapes.
+         */
+        private void next() {
+            while (pos < statement.length() && Character.isWhitespace(statement.charAt(pos))) {
+                pos++;
+            }
+
+            if (pos >= statement.length()) {
+                tokenType = END;
+                token = "";
+                return;
+            }
+
+            int start = pos;
+            char c = statement.charAt(pos);
+
+            if (c == '\'') {
+                StringBuilder sb = new StringBuilder();
+                pos++;
+                while (true) {
+                    if (pos >= statement.length()) {
+                        pos = start;
+                        throw error("Unterminated string");
+                    }
+                    char s = statement.charAt(pos++);
+                    if (s == '\\' && pos < statement.length()) {
+                        sb.append(s).append(statement.charAt(pos++));
+                    } else if (s == '\'') {
+                        if (pos < statement.length() && statement.charAt(pos) == '\'') {
+                            sb.append("\\'");
+                            pos++;
+                        } else {
+                            break;
+                        }
+                    } else {
+                        sb.append(s);
+                    }
+                }
+                tokenType = STRING;
+                token = sb.toString();
+            } else if (Character.isDigit(c) || (c == '-' || c == '+' || c == '.') && pos + 1 < statement.length()
+                    && Character.isDigit(statement.charAt(pos + 1))) {
+                pos++;
+                while (pos < statement.length()
+                        && (Character.isDigit(statement.charAt(pos)) || ".eE".indexOf(statement.charAt(pos)) >= 0 || ("+-"
+                                .indexOf(statement.charAt(pos)) >= 0 && "eE".indexOf(statement.charAt(pos - 1)) >= 0))) {
+                    pos++;
+                }
+                tokenType = NUMBER;
+                token = statement.substring(start, pos);
+                try {
+                    new BigDecimal(token);
+                } catch (NumberFormatException e) {
+                    pos = start;
+                    throw error("Invalid number");
+                }
+            } else if (Character.isLetter(c) || c == '_') {
+                while (pos < statement.length()
+                        && (Character.isLetterOrDigit(statement.charAt(pos)) || "_:.".indexOf(statement.charAt(pos)) >= 0)) {
+                    pos++;
+                }
+                tokenType = IDENTIFIER;
+                token = statement.substring(start, pos);
+            } else if ((c == '<' || c == '>') && pos + 1 < statement.length()
+                    && (statement.charAt(pos + 1) == '=' || (c == '<' && statement.charAt(pos + 1) == '>'))) {
+                pos += 2;
+                tokenType = SYMBOL;
+                token = statement.substring(start, pos);
+            } else if ("*,()=<>".indexOf(c) >= 0) {
+                pos++;
+                tokenType = SYMBOL;
+                token = String.valueOf(c);
+            } else {
+                throw error("Unexpected character '" + c + "'");
+            }
+        }
+    }
+}
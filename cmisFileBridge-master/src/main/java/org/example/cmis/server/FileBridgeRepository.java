@@ -22,37 +22,45 @@
  */
 package org.example.cmis.server;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.EnumSet;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.chemistry.opencmis.commons.PropertyIds;
-import org.apache.chemistry.opencmis.commons.data.Ace;
 import org.apache.chemistry.opencmis.commons.data.Acl;
 import org.apache.chemistry.opencmis.commons.data.AllowableActions;
 import org.apache.chemistry.opencmis.commons.data.BulkUpdateObjectIdAndChangeToken;
+import org.apache.chemistry.opencmis.commons.data.CmisExtensionElement;
 import org.apache.chemistry.opencmis.commons.data.ContentStream;
+import org.apache.chemistry.opencmis.commons.data.ExtensionsData;
 import org.apache.chemistry.opencmis.commons.data.FailedToDeleteData;
-import org.apache.chemistry.opencmis.commons.data.MutablePropertyData;
 import org.apache.chemistry.opencmis.commons.data.ObjectData;
 import org.apache.chemistry.opencmis.commons.data.ObjectInFolderContainer;
 import org.apache.chemistry.opencmis.commons.data.ObjectInFolderData;
@@ -69,7 +77,6 @@ import org.apache.chemistry.opencmis.commons.definitions.TypeDefinition;
 import org.apache.chemistry.opencmis.commons.definitions.TypeDefinitionContainer;
 import org.apache.chemistry.opencmis.commons.definitions.TypeDefinitionList;
 import org.apache.chemistry.opencmis.commons.enums.AclPropagation;
-import org.apache.chemistry.opencmis.commons.enums.Action;
 import org.apache.chemistry.opencmis.commons.enums.BaseTypeId;
 import org.apache.chemistry.opencmis.commons.enums.CapabilityAcl;
 import org.apache.chemistry.opencmis.commons.enums.CapabilityChanges;
@@ -78,6 +85,7 @@ import org.apache.chemistry.opencmis.commons.enums.CapabilityJoin;
 import org.apache.chemistry.opencmis.commons.enums.CapabilityOrderBy;
 import org.apache.chemistry.opencmis.commons.enums.CapabilityQuery;
 import org.apache.chemistry.opencmis.commons.enums.CapabilityRenditions;
+import org.apache.chemistry.opencmis.commons.enums.ChangeType;
 import org.apache.chemistry.opencmis.commons.enums.CmisVersion;
 import org.apache.chemistry.opencmis.commons.enums.SupportedPermissions;
 import org.apache.chemistry.opencmis.commons.enums.Updatability;
@@ -87,6 +95,7 @@ import org.apache.chemistry.opencmis.commons.exceptions.CmisConstraintException;
 import org.apache.chemistry.opencmis.commons.exceptions.CmisContentAlreadyExistsException;
 import org.apache.chemistry.opencmis.commons.exceptions.CmisInvalidArgumentException;
 import org.apache.chemistry.opencmis.commons.exceptions.CmisNameConstraintViolationException;
+import org.apache.chemistry.opencmis.commons.exceptions.CmisNotSupportedException;
 import org.apache.chemistry.opencmis.commons.exceptions.CmisObjectNotFoundException;
 import org.apache.chemistry.opencmis.commons.exceptions.CmisPermissionDeniedException;
 import org.apache.chemistry.opencmis.commons.exceptions.CmisRuntimeException;
@@ -95,44 +104,39 @@ import org.apache.chemistry.opencmis.commons.exceptions.CmisStreamNotSupportedEx
 import org.apache.chemistry.opencmis.commons.exceptions.CmisUpdateConflictException;
 import org.apache.chemistry.opencmis.commons.impl.Base64;
 import org.apache.chemistry.opencmis.commons.impl.IOUtils;
-import org.apache.chemistry.opencmis.commons.impl.MimeTypes;
-import org.apache.chemistry.opencmis.commons.impl.dataobjects.AccessControlEntryImpl;
-import org.apache.chemistry.opencmis.commons.impl.dataobjects.AccessControlListImpl;
-import org.apache.chemistry.opencmis.commons.impl.dataobjects.AccessControlPrincipalDataImpl;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.AclCapabilitiesDataImpl;
-import org.apache.chemistry.opencmis.commons.impl.dataobjects.AllowableActionsImpl;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.BulkUpdateObjectIdAndChangeTokenImpl;
-import org.apache.chemistry.opencmis.commons.impl.dataobjects.ContentStreamImpl;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.ChangeEventInfoDataImpl;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.CreatablePropertyTypesImpl;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.FailedToDeleteDataImpl;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.NewTypeSettableAttributesImpl;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.ObjectDataImpl;
-import org.apache.chemistry.opencmis.commons.impl.dataobjects.ObjectInFolderContainerImpl;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.ObjectInFolderDataImpl;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.ObjectInFolderListImpl;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.ObjectListImpl;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.ObjectParentDataImpl;
-import org.apache.chemistry.opencmis.commons.impl.dataobjects.PartialContentStreamImpl;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.PermissionDefinitionDataImpl;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.PermissionMappingDataImpl;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertiesImpl;
-import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertyBooleanImpl;
-import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertyDateTimeImpl;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertyIdImpl;
-import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertyIntegerImpl;
-import org.apache.chemistry.opencmis.commons.impl.dataobjects.PropertyStringImpl;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.RepositoryCapabilitiesImpl;
 import org.apache.chemistry.opencmis.commons.impl.dataobjects.RepositoryInfoImpl;
 import org.apache.chemistry.opencmis.commons.impl.server.ObjectInfoImpl;
 import org.apache.chemistry.opencmis.commons.server.CallContext;
+import org.apache.chemistry.opencmis.commons.server.ObjectInfo;
 import org.apache.chemistry.opencmis.commons.server.ObjectInfoHandler;
 import org.apache.chemistry.opencmis.commons.spi.Holder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Implements all repository operations.
  */
 public class FileBridgeRepository {
 
+	private static final Logger LOG = LoggerFactory
+			.getLogger(FileBridgeRepository.class);
+
 	private static final String ROOT_ID = "@root@";
 
 	private static final String USER_UNKNOWN = "<unknown>";
@@ -141,7 +145,47 @@ public class FileBridgeRepository {
 	private static final String CMIS_WRITE = "cmis:write";
 	private static final String CMIS_ALL = "cmis:all";
 
-	private static final int BUFFER_SIZE = 64 * 1024;
+	/** Uploads up to this size use small copy buffers. */
+	private static final int SMALL_BUFFER_SIZE = 16 * 1024;
+
+	private static final int MAX_CACHED_FILTERS = 1000;
+
+	/** Maximum number of changes returned by one getContentChanges call. */
+	private static final int MAX_CHANGES = 1000;
+
+	/** Time in which the watcher reports changes made by this repository. */
+	private static final long OWN_CHANGE_TTL = 10 * 1000;
+
+	/**
+	 * Time in which further events of a change made by this repository are
+	 * expected once the first one has arrived.
+	 */
+	private static final long OWN_CHANGE_GRACE = 1000;
+
+	private static final int MAX_OWN_CHANGES = 10000;
+
+	/** Number of update locks, a power of two. */
+	private static final int UPDATE_LOCKS = 256;
+
+	/** Time a query waits for the metadata index to be built. */
+	private static final long METADATA_INDEX_TIMEOUT = 30 * 1000;
+
+	/** Times a query is run again when hits have vanished from the disk. */
+	private static final int MAX_QUERY_ATTEMPTS = 3;
+
+	/** Default number of tree walker threads a single request may use. */
+	private static final int DEFAULT_TREE_REQUEST_THREADS = 4;
+
+	/** Extension element that carries the offset of an upload chunk. */
+	private static final String OFFSET_EXTENSION = "offset";
+
+	/** Source of unique temporary file names. */
+	private static final AtomicLong TEMP_FILE_COUNTER = new AtomicLong(
+			System.nanoTime());
+
+	/** Names of the files {@link #createTempFile(File)} creates. */
+	private static final Pattern TEMP_FILE_PATTERN = Pattern
+			.compile("\\..+\\.[0-9a-f]+\\.tmp");
 
 	private static final Pattern IN_FOLDER_QUERY_PATTERN = Pattern
 			.compile("(?i)select\\s+.+\\s+from\\s+(\\S*).*\\s+where\\s+in_folder\\('(.*)'\\)");
@@ -154,11 +198,70 @@ public class FileBridgeRepository {
 	private final FileBridgeTypeManager typeManager;
 	/** Users. */
 	private final Map<String, Boolean> readWriteUserMap;
+	/** Copy buffers. */
+	private final FileBridgeBufferPool bufferPool;
+	/** Copy buffers for small uploads. */
+	private final FileBridgeBufferPool smallBufferPool;
+	/** Content cache or <code>null</code> if content is not cached. */
+	private volatile FileBridgeBlockCache blockCache;
+	/** Listing cache or <code>null</code> if folder listings are not cached. */
+	private volatile FileBridgeListingCache listingCache;
+	/** MIME type resolution. */
+	private final FileBridgeMimeTypes mimeTypes;
+	/** Copies content between documents. */
+	private volatile FileBridgeCopier copier;
+	/** Blob store or <code>null</code> if content is not deduplicated. */
+	private volatile FileBridgeBlobStore blobStore;
+	/** Publishes written content. */
+	private volatile FileBridgeDurability durability;
+	/** Chunked uploads or <code>null</code> if chunks are appended directly. */
+	private volatile FileBridgeUploadSessions uploadSessions;
+	/** Allowable actions and ACLs for the current users. */
+	private volatile FileBridgePermissionTable permissionTable;
+	/** Serialize change token checks and updates of the same object. */
+	private final Object[] updateLocks;
+	/** Id cache or <code>null</code> if caching is disabled. */
+	private volatile FileBridgeIdCache idCache;
+	/** Id index or <code>null</code> if ids are derived from paths. */
+	private volatile FileBridgeIdIndex idIndex;
+	/** Change log or <code>null</code> if changes are not recorded. */
+	private volatile FileBridgeChangeLog changeLog;
+	/** Watcher or <code>null</code> if changes of other processes are missed. */
+	private volatile FileBridgeWatcher watcher;
+	/** Builds getDescendants and getFolderTree results. */
+	private volatile FileBridgeTreeWalker treeWalker;
+	/** Removes temporary files left by a crash. */
+	private final Thread tempFileSweeper;
+	/** Pool threads of the tree walker. */
+	private int treeThreads = 0;
+	/** Pool threads a single tree request may use. */
+	private int treeRequestThreads = DEFAULT_TREE_REQUEST_THREADS;
+	/** Maximum number of objects in a descendant tree, 0 for no limit. */
+	private volatile long descendantsMaxNodes;
+	/** Maximum estimated size of a descendant tree, 0 for no limit. */
+	private volatile long descendantsMaxBytes;
+	/** Trash or <code>null</code> if folder trees are deleted in place. */
+	private volatile FileBridgeTrash trash;
+	/** Background threads of the trash. */
+	private int deleteThreads = 0;
+	/** Maximum number of background deletions per second, 0 for no limit. */
+	private long deleteRate = 0;
+	/** Metadata index or <code>null</code> if only IN_FOLDER is queryable. */
+	private volatile FileBridgeMetadataIndex metadataIndex;
+	/**
+	 * Paths changed by this repository, which the watcher must not record
+	 * again. Folder paths ending with a slash stand for their content.
+	 */
+	private final LinkedHashMap<String, OwnChange> ownChanges;
+	/** Compiled property filters. */
+	private final Map<String, FileBridgePropertyFilter> filterCache;
+	/** Property templates by base type, CMIS version and query flag. */
+	private final FileBridgePropertyTemplate[] propertyTemplates;
 
 	/** CMIS 1.0 repository info. */
-	private final RepositoryInfo repositoryInfo10;
+	private volatile RepositoryInfo repositoryInfo10;
 	/** CMIS 1.1 repository info. */
-	private final RepositoryInfo repositoryInfo11;
+	private volatile RepositoryInfo repositoryInfo11;
 
 	public FileBridgeRepository(final String repositoryId,
 			final String rootPath, final FileBridgeTypeManager typeManager) {
@@ -184,10 +287,135 @@ public class FileBridgeRepository {
 
 		// set up read-write user map
 		readWriteUserMap = new HashMap<String, Boolean>();
+		permissionTable = new FileBridgePermissionTable(readWriteUserMap);
+
+		// set up id cache
+		idCache = new FileBridgeIdCache(FileBridgeIdCache.DEFAULT_SIZE);
+
+		// set up update locks
+		updateLocks = new Object[UPDATE_LOCKS];
+		for (int i = 0; i < updateLocks.length; i++) {
+			updateLocks[i] = new Object();
+		}
+
+		// set up copy buffers
+		bufferPool = new FileBridgeBufferPool();
+		smallBufferPool = new FileBridgeBufferPool(SMALL_BUFFER_SIZE,
+				4 * FileBridgeBufferPool.DEFAULT_MAX_BUFFERS);
+
+		// set up MIME type resolution
+		mimeTypes = new FileBridgeMimeTypes();
+
+		// set up content writes
+		copier = new FileBridgeCopier(FileBridgeCopier.DEFAULT_STRATEGIES,
+				bufferPool);
+		durability = new FileBridgeDurability(FileBridgeDurability.Mode.NONE);
+
+		// set up filter cache
+		filterCache = new ConcurrentHashMap<String, FileBridgePropertyFilter>();
+
+		// set up own change tracking
+		ownChanges = new LinkedHashMap<String, OwnChange>();
+
+		// build trees on the request threads until threads are configured
+		treeWalker = new FileBridgeTreeWalker(0, 1);
+
+		// set up property templates
+		propertyTemplates = createPropertyTemplates();
 
 		// set up repository infos
 		repositoryInfo10 = createRepositoryInfo(CmisVersion.CMIS_1_0);
 		repositoryInfo11 = createRepositoryInfo(CmisVersion.CMIS_1_1);
+
+		// remove temporary files left by a crash
+		tempFileSweeper = new Thread("FileBridge Temp File Sweeper") {
+			@Override
+			public void run() {
+				sweepTempFiles(System.currentTimeMillis());
+			}
+		};
+		tempFileSweeper.setDaemon(true);
+		tempFileSweeper.start();
+	}
+
+	private FileBridgePropertyTemplate[] createPropertyTemplates() {
+		CmisVersion[] versions = CmisVersion.values();
+		FileBridgePropertyTemplate[] result = new FileBridgePropertyTemplate[2 * versions.length * 2];
+
+		for (CmisVersion cmisVersion : versions) {
+			for (int q = 0; q < 2; q++) {
+				boolean queryNames = (q == 1);
+				result[getPropertyTemplateIndex(false, cmisVersion, queryNames)] = createPropertyTemplate(
+						false, cmisVersion, queryNames);
+				result[getPropertyTemplateIndex(true, cmisVersion, queryNames)] = createPropertyTemplate(
+						true, cmisVersion, queryNames);
+			}
+		}
+
+		return result;
+	}
+
+	private static int getPropertyTemplateIndex(boolean isFolder,
+			CmisVersion cmisVersion, boolean queryNames) {
+		return ((isFolder ? 1 : 0) * CmisVersion.values().length + cmisVersion
+				.ordinal()) * 2 + (queryNames ? 1 : 0);
+	}
+
+	/**
+	 * Creates the property template of a base type. All properties that don't
+	 * depend on the file or folder are added as constants here.
+	 */
+	private FileBridgePropertyTemplate createPropertyTemplate(
+			boolean isFolder, CmisVersion cmisVersion, boolean queryNames) {
+		String typeId = (isFolder ? BaseTypeId.CMIS_FOLDER.value()
+				: BaseTypeId.CMIS_DOCUMENT.value());
+		TypeDefinition type = typeManager.getInternalTypeDefinition(typeId);
+		if (type == null) {
+			throw new IllegalArgumentException("Unknown type: " + typeId);
+		}
+
+		FileBridgePropertyTemplate template = new FileBridgePropertyTemplate(
+				type, cmisVersion, queryNames);
+
+		// created and modified by
+		template.addConstantString(PropertyIds.CREATED_BY, USER_UNKNOWN);
+		template.addConstantString(PropertyIds.LAST_MODIFIED_BY, USER_UNKNOWN);
+
+		// CMIS 1.1 properties
+		if (cmisVersion != CmisVersion.CMIS_1_0) {
+			template.addConstantString(PropertyIds.DESCRIPTION, null);
+			template.addConstantIdList(PropertyIds.SECONDARY_OBJECT_TYPE_IDS,
+					null);
+		}
+
+		// base type and type name
+		template.addConstantId(PropertyIds.BASE_TYPE_ID, typeId);
+		template.addConstantId(PropertyIds.OBJECT_TYPE_ID, typeId);
+
+		if (isFolder) {
+			template.addConstantIdList(
+					PropertyIds.ALLOWED_CHILD_OBJECT_TYPE_IDS, null);
+		} else {
+			template.addConstantBoolean(PropertyIds.IS_IMMUTABLE, false);
+			template.addConstantBoolean(PropertyIds.IS_LATEST_VERSION, true);
+			template.addConstantBoolean(PropertyIds.IS_MAJOR_VERSION, true);
+			template.addConstantBoolean(PropertyIds.IS_LATEST_MAJOR_VERSION,
+					true);
+			template.addConstantBoolean(
+					PropertyIds.IS_VERSION_SERIES_CHECKED_OUT, false);
+			template.addConstantString(
+					PropertyIds.VERSION_SERIES_CHECKED_OUT_BY, null);
+			template.addConstantString(
+					PropertyIds.VERSION_SERIES_CHECKED_OUT_ID, null);
+			template.addConstantString(PropertyIds.CHECKIN_COMMENT, "");
+			if (cmisVersion != CmisVersion.CMIS_1_0) {
+				template.addConstantBoolean(
+						PropertyIds.IS_PRIVATE_WORKING_COPY, false);
+			}
+			template.addConstantId(PropertyIds.CONTENT_STREAM_ID, null);
+		}
+
+		return template;
 	}
 
 	private RepositoryInfo createRepositoryInfo(CmisVersion cmisVersion) {
@@ -209,6 +437,12 @@ public class FileBridgeRepository {
 
 		repositoryInfo.setThinClientUri("");
 		repositoryInfo.setChangesIncomplete(true);
+		if (changeLog != null) {
+			List<BaseTypeId> changesOnType = new ArrayList<BaseTypeId>();
+			changesOnType.add(BaseTypeId.CMIS_DOCUMENT);
+			changesOnType.add(BaseTypeId.CMIS_FOLDER);
+			repositoryInfo.setChangesOnType(changesOnType);
+		}
 
 		RepositoryCapabilitiesImpl capabilities = new RepositoryCapabilitiesImpl();
 		capabilities.setCapabilityAcl(CapabilityAcl.DISCOVER);
@@ -220,7 +454,9 @@ public class FileBridgeRepository {
 		capabilities.setIsPwcSearchable(false);
 		capabilities.setIsPwcUpdatable(false);
 		capabilities.setCapabilityQuery(CapabilityQuery.METADATAONLY);
-		capabilities.setCapabilityChanges(CapabilityChanges.NONE);
+		capabilities
+				.setCapabilityChanges(changeLog == null ? CapabilityChanges.NONE
+						: CapabilityChanges.OBJECTIDSONLY);
 		capabilities
 				.setCapabilityContentStreamUpdates(CapabilityContentStreamUpdates.ANYTIME);
 		capabilities.setSupportsGetDescendants(true);
@@ -228,7 +464,9 @@ public class FileBridgeRepository {
 		capabilities.setCapabilityRendition(CapabilityRenditions.NONE);
 
 		if (cmisVersion != CmisVersion.CMIS_1_0) {
-			capabilities.setOrderByCapability(CapabilityOrderBy.NONE);
+			capabilities
+					.setOrderByCapability(metadataIndex == null ? CapabilityOrderBy.NONE
+							: CapabilityOrderBy.COMMON);
 
 			NewTypeSettableAttributesImpl typeSetAttributes = new NewTypeSettableAttributesImpl();
 			typeSetAttributes.setCanSetControllableAcl(false);
@@ -340,6 +578,399 @@ public class FileBridgeRepository {
 		return root;
 	}
 
+	/**
+	 * Returns the id cache or <code>null</code> if caching is disabled.
+	 */
+	public FileBridgeIdCache getIdCache() {
+		return idCache;
+	}
+
+	/**
+	 * Sets the maximum number of cached ids. A size of 0 disables the cache.
+	 */
+	public void setIdCacheSize(int size) {
+		idCache = (size > 0 ? new FileBridgeIdCache(size) : null);
+	}
+
+	/**
+	 * Sets the memory budget of the off-heap content cache in bytes. A budget
+	 * of 0 disables the cache.
+	 */
+	public void setContentCacheSize(long bytes) {
+		FileBridgeBlockCache oldCache = blockCache;
+		blockCache = (bytes > 0 ? new FileBridgeBlockCache(bytes) : null);
+		if (oldCache != null) {
+			oldCache.clear();
+		}
+	}
+
+	/**
+	 * Returns the content cache or <code>null</code> if content is not
+	 * cached.
+	 */
+	public FileBridgeBlockCache getContentCache() {
+		return blockCache;
+	}
+
+	/**
+	 * Sets the memory budget of the folder listing cache in bytes. 0 disables
+	 * the cache.
+	 */
+	public void setListingCacheSize(long bytes) {
+		FileBridgeListingCache oldCache = listingCache;
+		listingCache = (bytes > 0 ? new FileBridgeListingCache(bytes) : null);
+		if (oldCache != null) {
+			oldCache.clear();
+		}
+	}
+
+	/**
+	 * Returns the listing cache or <code>null</code> if folder listings are
+	 * not cached.
+	 */
+	public FileBridgeListingCache getListingCache() {
+		return listingCache;
+	}
+
+	/**
+	 * Sets the number of threads that build descendant trees. 0 builds the
+	 * trees on the request threads.
+	 */
+	public synchronized void setTreeThreads(int threads) {
+		treeThreads = threads;
+		setTreeWalker(new FileBridgeTreeWalker(treeThreads,
+				treeRequestThreads));
+	}
+
+	/**
+	 * Sets the maximum number of tree walker threads a single request may
+	 * use.
+	 */
+	public synchronized void setTreeRequestThreads(int threads) {
+		treeRequestThreads = threads;
+		setTreeWalker(new FileBridgeTreeWalker(treeThreads,
+				treeRequestThreads));
+	}
+
+	/**
+	 * Limits the number of objects returned by getDescendants and
+	 * getFolderTree. 0 removes the limit.
+	 */
+	public void setDescendantsMaxNodes(long maxNodes) {
+		if (maxNodes < 0) {
+			throw new IllegalArgumentException("Invalid node budget!");
+		}
+		descendantsMaxNodes = maxNodes;
+	}
+
+	/**
+	 * Limits the estimated heap size of the objects returned by
+	 * getDescendants and getFolderTree. 0 removes the limit.
+	 */
+	public void setDescendantsMaxBytes(long maxBytes) {
+		if (maxBytes < 0) {
+			throw new IllegalArgumentException("Invalid byte budget!");
+		}
+		descendantsMaxBytes = maxBytes;
+	}
+
+	/**
+	 * Sets the number of threads that delete folder trees in the background.
+	 * 0 deletes folder trees on the request thread.
+	 */
+	public synchronized void setDeleteThreads(int threads) {
+		deleteThreads = threads;
+		setTrash();
+	}
+
+	/**
+	 * Limits the number of background deletions per second. 0 removes the
+	 * limit.
+	 */
+	public synchronized void setDeleteRate(long rate) {
+		deleteRate = rate;
+		setTrash();
+	}
+
+	/**
+	 * Returns the trash or <code>null</code> if folder trees are deleted on
+	 * the request thread.
+	 */
+	public FileBridgeTrash getTrash() {
+		return trash;
+	}
+
+	private void setTrash() {
+		FileBridgeTrash oldTrash = trash;
+		if (oldTrash != null) {
+			oldTrash.shutdown();
+		}
+
+		if (deleteThreads > 0) {
+			trash = new FileBridgeTrash(root, deleteThreads, deleteRate,
+					new FileBridgeTrash.Listener() {
+						public void finished(FileBridgeTrash.Job job) {
+							// the blobs of the deleted documents may be
+							// unreferenced now
+							FileBridgeBlobStore store = blobStore;
+							if (store != null) {
+								store.requestCollection();
+							}
+						}
+					});
+		} else {
+			trash = null;
+		}
+	}
+
+	/**
+	 * Enables or disables the metadata index, which answers queries beyond
+	 * IN_FOLDER.
+	 */
+	public void setMetadataIndex(boolean enabled) {
+		FileBridgeMetadataIndex oldIndex = metadataIndex;
+		metadataIndex = (enabled ? new FileBridgeMetadataIndex(root, mimeTypes)
+				: null);
+		if (oldIndex != null) {
+			oldIndex.shutdown();
+		}
+
+		// the capabilities have changed
+		repositoryInfo10 = createRepositoryInfo(CmisVersion.CMIS_1_0);
+		repositoryInfo11 = createRepositoryInfo(CmisVersion.CMIS_1_1);
+	}
+
+	/**
+	 * Returns the metadata index or <code>null</code> if queries are limited
+	 * to IN_FOLDER.
+	 */
+	public FileBridgeMetadataIndex getMetadataIndex() {
+		return metadataIndex;
+	}
+
+	/**
+	 * Returns the tree walker.
+	 */
+	public FileBridgeTreeWalker getTreeWalker() {
+		return treeWalker;
+	}
+
+	private void setTreeWalker(FileBridgeTreeWalker walker) {
+		FileBridgeTreeWalker oldWalker = treeWalker;
+		treeWalker = walker;
+		if (oldWalker != null) {
+			oldWalker.shutdown();
+		}
+	}
+
+	/**
+	 * Enables or disables content sniffing for documents without a known
+	 * file extension.
+	 */
+	public void setMimeSniffing(boolean sniffing) {
+		mimeTypes.setSniffing(sniffing);
+	}
+
+	/**
+	 * Sets the strategies used to copy content, in the order they are tried.
+	 */
+	public void setCopyStrategies(List<FileBridgeCopier.Strategy> strategies) {
+		copier = new FileBridgeCopier(strategies, bufferPool);
+	}
+
+	/**
+	 * Returns the content copier, which also counts the copies per strategy.
+	 */
+	public FileBridgeCopier getCopier() {
+		return copier;
+	}
+
+	/**
+	 * Stores document content in the given blob directory, which
+	 * deduplicates identical content. The directory must be on the same file
+	 * system as the repository.
+	 */
+	public void setBlobStore(File dir) {
+		FileBridgeBlobStore oldStore = blobStore;
+		blobStore = new FileBridgeBlobStore(dir, root);
+		if (oldStore != null) {
+			oldStore.shutdown();
+		}
+	}
+
+	/**
+	 * Returns the blob store or <code>null</code> if content is not
+	 * deduplicated.
+	 */
+	public FileBridgeBlobStore getBlobStore() {
+		return blobStore;
+	}
+
+	/**
+	 * Sets when written content is forced to disk.
+	 */
+	public void setDurability(FileBridgeDurability.Mode mode) {
+		FileBridgeDurability oldDurability = durability;
+		durability = new FileBridgeDurability(mode);
+		// writes in progress finish on the old instance
+		oldDurability.shutdown();
+	}
+
+	/**
+	 * Returns the durability mode of content writes.
+	 */
+	public FileBridgeDurability.Mode getDurability() {
+		return durability.getMode();
+	}
+
+	/**
+	 * Enables or disables upload sessions for appendContentStream. Without
+	 * sessions, chunks are appended to the document as they arrive.
+	 */
+	public void setUploadSessions(boolean enabled) {
+		FileBridgeUploadSessions oldSessions = uploadSessions;
+		uploadSessions = (enabled ? new FileBridgeUploadSessions() : null);
+		if (oldSessions != null) {
+			oldSessions.shutdown();
+		}
+	}
+
+	/**
+	 * Returns the upload sessions or <code>null</code> if upload sessions are
+	 * disabled.
+	 */
+	public FileBridgeUploadSessions getUploadSessions() {
+		return uploadSessions;
+	}
+
+	/**
+	 * Switches to compact, stable ids that are kept in the given index file.
+	 * Without an index, ids are derived from the repository paths.
+	 */
+	public void setIdIndex(File indexFile) {
+		FileBridgeIdIndex oldIndex = idIndex;
+		idIndex = new FileBridgeIdIndex(indexFile);
+		if (oldIndex != null) {
+			oldIndex.close();
+		}
+	}
+
+	/**
+	 * Returns the id index or <code>null</code> if ids are derived from
+	 * paths.
+	 */
+	public FileBridgeIdIndex getIdIndex() {
+		return idIndex;
+	}
+
+	/**
+	 * Records all changes made through this repository in the given
+	 * directory and enables getContentChanges.
+	 */
+	public void setChangeLog(File dir) {
+		FileBridgeChangeLog oldLog = changeLog;
+		changeLog = new FileBridgeChangeLog(dir);
+		if (oldLog != null) {
+			oldLog.close();
+		}
+
+		// the capabilities have changed
+		repositoryInfo10 = createRepositoryInfo(CmisVersion.CMIS_1_0);
+		repositoryInfo11 = createRepositoryInfo(CmisVersion.CMIS_1_1);
+	}
+
+	/**
+	 * Returns the change log or <code>null</code> if changes are not
+	 * recorded.
+	 */
+	public FileBridgeChangeLog getChangeLog() {
+		return changeLog;
+	}
+
+	/**
+	 * Enables or disables the watcher, which keeps cached data coherent with
+	 * changes made by other processes and records them in the change log.
+	 */
+	public void setWatcher(boolean enabled) {
+		FileBridgeWatcher oldWatcher = watcher;
+		if (enabled) {
+			FileBridgeWatcher newWatcher = new FileBridgeWatcher(root);
+			newWatcher.addListener(new FileBridgeWatcher.Listener() {
+				@Override
+				public void pathChanged(String path,
+						FileBridgeWatcher.Kind kind, boolean isFolder) {
+					externalChange(path, kind, isFolder);
+				}
+			});
+			watcher = newWatcher;
+		} else {
+			watcher = null;
+		}
+
+		if (oldWatcher != null) {
+			oldWatcher.shutdown();
+		}
+	}
+
+	/**
+	 * Returns the watcher or <code>null</code> if the tree is not watched.
+	 * Caches can subscribe to its changes.
+	 */
+	public FileBridgeWatcher getWatcher() {
+		return watcher;
+	}
+
+	/**
+	 * Releases all resources held by this repository.
+	 */
+	public void shutdown() {
+		tempFileSweeper.interrupt();
+
+		FileBridgeWatcher w = watcher;
+		if (w != null) {
+			w.shutdown();
+		}
+
+		treeWalker.shutdown();
+
+		FileBridgeTrash t = trash;
+		if (t != null) {
+			t.shutdown();
+		}
+
+		FileBridgeMetadataIndex metadata = metadataIndex;
+		if (metadata != null) {
+			metadata.shutdown();
+		}
+
+		FileBridgeIdIndex index = idIndex;
+		if (index != null) {
+			index.close();
+		}
+
+		FileBridgeChangeLog log = changeLog;
+		if (log != null) {
+			log.close();
+		}
+
+		FileBridgeBlockCache cache = blockCache;
+		if (cache != null) {
+			cache.clear();
+		}
+
+		FileBridgeUploadSessions sessions = uploadSessions;
+		if (sessions != null) {
+			sessions.shutdown();
+		}
+
+		FileBridgeBlobStore store = blobStore;
+		if (store != null) {
+			store.shutdown();
+		}
+
+		durability.shutdown();
+	}
+
 	/**
 	 * Sets read-only flag for the given user.
 	 */
@@ -349,6 +980,7 @@ public class FileBridgeRepository {
 		}
 
 		readWriteUserMap.put(user, true);
+		permissionTable = new FileBridgePermissionTable(readWriteUserMap);
 	}
 
 	/**
@@ -360,6 +992,7 @@ public class FileBridgeRepository {
 		}
 
 		readWriteUserMap.put(user, false);
+		permissionTable = new FileBridgePermissionTable(readWriteUserMap);
 	}
 
 	// --- CMIS operations ---
@@ -370,11 +1003,18 @@ public class FileBridgeRepository {
 	public RepositoryInfo getRepositoryInfo(CallContext context) {
 		checkUser(context, false);
 
-		if (context.getCmisVersion() == CmisVersion.CMIS_1_0) {
-			return repositoryInfo10;
-		} else {
-			return repositoryInfo11;
+		RepositoryInfo info = (context.getCmisVersion() == CmisVersion.CMIS_1_0 ? repositoryInfo10
+				: repositoryInfo11);
+
+		FileBridgeChangeLog log = changeLog;
+		if (log == null) {
+			return info;
 		}
+
+		RepositoryInfoImpl result = new RepositoryInfoImpl(info);
+		result.setLatestChangeLogToken(log.getLatestToken());
+
+		return result;
 	}
 
 	/**
@@ -386,7 +1026,8 @@ public class FileBridgeRepository {
 		checkUser(context, false);
 
 		return typeManager.getTypeChildren(context, typeId,
-				includePropertyDefinitions, maxItems, skipCount);
+				includePropertyDefinitions, maxItems, skipCount,
+				getQueryableProperties());
 	}
 
 	/**
@@ -398,7 +1039,7 @@ public class FileBridgeRepository {
 		checkUser(context, false);
 
 		return typeManager.getTypeDescendants(context, typeId, depth,
-				includePropertyDefinitions);
+				includePropertyDefinitions, getQueryableProperties());
 	}
 
 	/**
@@ -407,7 +1048,17 @@ public class FileBridgeRepository {
 	public TypeDefinition getTypeDefinition(CallContext context, String typeId) {
 		checkUser(context, false);
 
-		return typeManager.getTypeDefinition(context, typeId);
+		return typeManager.getTypeDefinition(context, typeId,
+				getQueryableProperties());
+	}
+
+	/**
+	 * Returns the properties that queries can use or <code>null</code> if
+	 * only IN_FOLDER queries are supported.
+	 */
+	private Collection<String> getQueryableProperties() {
+		return (metadataIndex == null ? null : FileBridgeQuery
+				.getQueryableProperties());
 	}
 
 	/**
@@ -471,20 +1122,24 @@ public class FileBridgeRepository {
 					"Document already exists!");
 		}
 
-		// create the file
-		try {
-			newFile.createNewFile();
-		} catch (IOException e) {
-			throw new CmisStorageException("Could not create file: "
-					+ e.getMessage(), e);
-		}
-
-		// write content, if available
+		// create the file, it only appears when its content is complete
+		expectChange(newFile, false);
 		if (contentStream != null && contentStream.getStream() != null) {
-			writeContent(newFile, contentStream.getStream());
+			createContent(newFile, contentStream.getStream(),
+					contentStream.getBigLength());
+		} else {
+			try {
+				Files.createFile(newFile.toPath());
+			} catch (FileAlreadyExistsException e) {
+				throw new CmisNameConstraintViolationException(
+						"Document already exists!");
+			} catch (IOException e) {
+				throw new CmisStorageException("Could not create file: "
+						+ e.getMessage(), e);
+			}
 		}
 
-		return getId(newFile);
+		return objectCreated(newFile);
 	}
 
 	/**
@@ -531,49 +1186,303 @@ public class FileBridgeRepository {
 					"Document already exists.");
 		}
 
-		// create the file
-		try {
-			newFile.createNewFile();
-		} catch (IOException e) {
-			throw new CmisStorageException("Could not create file: "
-					+ e.getMessage(), e);
-		}
+		// copy content, the file only appears when the copy is complete
+		expectChange(newFile, false);
+		copyContent(source, newFile);
 
-		// copy content
+		return objectCreated(newFile);
+	}
+
+	/**
+	 * Writes the content to disc. The stream is always closed. If the stream
+	 * is <code>null</code>, the file is just truncated (or left as it is in
+	 * append mode).
+	 * 
+	 * New content is written to a temporary file next to the document, which
+	 * replaces the document when it is complete. Appended content is written
+	 * in place.
+	 * 
+	 * @param length
+	 *            the declared length of the content or <code>null</code> if
+	 *            unknown; only used to pick a suitable buffer size
+	 */
+	private void writeContent(File file, InputStream stream,
+			BigInteger length, boolean append) {
+		Path temp = null;
+		FileChannel out = null;
 		try {
-			writeContent(newFile, new FileInputStream(source));
+			if (!file.canWrite()) {
+				throw new CmisStorageException("Document is not writable!");
+			}
+
+			if (append && stream == null) {
+				return;
+			}
+
+			if (append && !FileBridgeCopier.isLinked(file.toPath())) {
+				out = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+						StandardOpenOption.APPEND);
+				copyStream(stream, out, length, null);
+				durability.sync(out);
+				return;
+			}
+
+			// new content is hashed on the way if it goes into the blob store
+			FileBridgeBlobStore store = blobStore;
+			MessageDigest digest = (store != null && !append ? FileBridgeBlobStore
+					.newDigest() : null);
+
+			temp = createTempFile(file);
+			if (append) {
+				// the content is shared with other documents
+				copier.copyData(file.toPath(), temp);
+				out = FileChannel.open(temp, StandardOpenOption.WRITE,
+						StandardOpenOption.APPEND);
+			} else {
+				out = FileChannel.open(temp, StandardOpenOption.WRITE);
+			}
+			if (stream != null) {
+				copyStream(stream, out, length, digest);
+			}
+
+			FileChannel channel = out;
+			out = null;
+			publish(channel, temp, file.toPath(), store, digest, true);
+			temp = null;
 		} catch (IOException e) {
-			throw new CmisStorageException("Could not roead or write content: "
+			throw new CmisStorageException("Could not write content: "
 					+ e.getMessage(), e);
+		} finally {
+			IOUtils.closeQuietly(out);
+			IOUtils.closeQuietly(stream);
+			deleteTempFile(temp);
 		}
-
-		return getId(newFile);
 	}
 
 	/**
-	 * Writes the content to disc.
+	 * Writes the content of a new document. The stream is always closed. The
+	 * document appears when its content is complete and never replaces an
+	 * object that has taken the name in the meantime.
 	 */
-	private void writeContent(File newFile, InputStream stream) {
-		OutputStream out = null;
-		InputStream in = null;
+	private void createContent(File file, InputStream stream,
+			BigInteger length) {
+		Path temp = null;
+		FileChannel out = null;
 		try {
-			out = new BufferedOutputStream(new FileOutputStream(newFile),
-					BUFFER_SIZE);
-			in = new BufferedInputStream(stream, BUFFER_SIZE);
+			// new content is hashed on the way if it goes into the blob store
+			FileBridgeBlobStore store = blobStore;
+			MessageDigest digest = (store != null ? FileBridgeBlobStore
+					.newDigest() : null);
+
+			temp = createTempFile(file);
+			out = FileChannel.open(temp, StandardOpenOption.WRITE);
+			copyStream(stream, out, length, digest);
+
+			FileChannel channel = out;
+			out = null;
+			publish(channel, temp, file.toPath(), store, digest, false);
+			temp = null;
+		} catch (FileAlreadyExistsException e) {
+			throw new CmisNameConstraintViolationException(
+					"Document already exists!");
+		} catch (IOException e) {
+			throw new CmisStorageException("Could not write content: "
+					+ e.getMessage(), e);
+		} finally {
+			IOUtils.closeQuietly(out);
+			IOUtils.closeQuietly(stream);
+			deleteTempFile(temp);
+		}
+	}
+
+	/**
+	 * Copies a stream into a channel and, if a digest is provided, hashes the
+	 * bytes.
+	 */
+	private void copyStream(InputStream stream, FileChannel out,
+			BigInteger length, MessageDigest digest) throws IOException {
+		if (digest == null && stream instanceof FileBridgeContentInputStream) {
+			// content of another document
+			((FileBridgeContentInputStream) stream).transferTo(out);
+			return;
+		}
 
-			byte[] buffer = new byte[BUFFER_SIZE];
+		FileBridgeBufferPool pool = (length != null && length.signum() >= 0
+				&& length.longValue() <= SMALL_BUFFER_SIZE ? smallBufferPool
+				: bufferPool);
+
+		byte[] buffer = pool.acquire();
+		try {
+			ByteBuffer bb = ByteBuffer.wrap(buffer);
 			int b;
-			while ((b = in.read(buffer)) > -1) {
-				out.write(buffer, 0, b);
+			while ((b = stream.read(buffer)) > -1) {
+				bb.clear();
+				bb.limit(b);
+				while (bb.hasRemaining()) {
+					out.write(bb);
+				}
+				if (digest != null) {
+					digest.update(buffer, 0, b);
+				}
+			}
+		} finally {
+			pool.release(buffer);
+		}
+	}
+
+	/**
+	 * Publishes a completely written temporary file. In blob store mode, the
+	 * content goes into the blob store first. The channel is closed in any
+	 * case.
+	 * 
+	 * @param replace
+	 *            <code>false</code> to fail if the target exists
+	 */
+	private void publish(FileChannel channel, Path temp, Path target,
+			FileBridgeBlobStore store, MessageDigest digest, boolean replace)
+			throws IOException {
+		if (store != null) {
+			try {
+				store.intern(temp, digest);
+			} finally {
+				IOUtils.closeQuietly(channel);
+			}
+
+			// the temporary file may have been replaced by a link
+			channel = FileChannel.open(temp, StandardOpenOption.READ);
+		}
+
+		// the durability component closes the channel
+		if (replace) {
+			durability.commit(channel, temp, target);
+		} else {
+			durability.create(channel, temp, target);
+		}
+	}
+
+	/**
+	 * Copies the content of a document into a new document. The copier
+	 * produces a temporary file, which then becomes the target.
+	 */
+	private void copyContent(File source, File target) {
+		Path temp = null;
+		FileChannel out = null;
+		try {
+			temp = createTempFile(target);
+			if (blobStore == null || !copier.link(source.toPath(), temp)) {
+				copier.copy(source.toPath(), temp);
 			}
 
-			out.flush();
+			// the copy may be a link, so don't open it for writing
+			out = FileChannel.open(temp, StandardOpenOption.READ);
+
+			// the durability component closes the channel
+			FileChannel channel = out;
+			out = null;
+			durability.create(channel, temp, target.toPath());
+			temp = null;
+		} catch (FileAlreadyExistsException e) {
+			throw new CmisNameConstraintViolationException(
+					"Document already exists.");
 		} catch (IOException e) {
-			throw new CmisStorageException("Could not write content: "
+			throw new CmisStorageException("Could not read or write content: "
 					+ e.getMessage(), e);
 		} finally {
 			IOUtils.closeQuietly(out);
-			IOUtils.closeQuietly(in);
+			deleteTempFile(temp);
+		}
+	}
+
+	/**
+	 * Creates an empty, hidden temporary file in the directory of the given
+	 * file. Renames within a directory are atomic.
+	 */
+	private static Path createTempFile(File file) throws IOException {
+		String name = file.getName();
+		if (name.length() > 64) {
+			name = name.substring(0, 64);
+		}
+
+		Path dir = file.getAbsoluteFile().getParentFile().toPath();
+		while (true) {
+			Path temp = dir.resolve("." + name + "."
+					+ Long.toHexString(TEMP_FILE_COUNTER.incrementAndGet())
+					+ ".tmp");
+			try {
+				FileChannel channel = FileChannel.open(temp,
+						StandardOpenOption.CREATE_NEW,
+						StandardOpenOption.WRITE);
+				channel.close();
+				return temp;
+			} catch (FileAlreadyExistsException e) {
+				// left over from a crash -> try the next name
+			}
+		}
+	}
+
+	/**
+	 * Deletes the temporary files that are older than the given time. In
+	 * blob store mode, such a file may be a link that keeps a blob alive.
+	 * Hidden folders, like the trash, are skipped.
+	 */
+	private void sweepTempFiles(final long startTime) {
+		final int[] count = new int[1];
+
+		try {
+			Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir,
+						BasicFileAttributes attrs) {
+					if (Thread.currentThread().isInterrupted()) {
+						return FileVisitResult.TERMINATE;
+					}
+
+					return (!dir.equals(root.toPath())
+							&& FileBridgeFileAttributes.isHiddenName(dir
+									.getFileName().toString()) ? FileVisitResult.SKIP_SUBTREE
+							: FileVisitResult.CONTINUE);
+				}
+
+				@Override
+				public FileVisitResult visitFile(Path file,
+						BasicFileAttributes attrs) {
+					// files of writes in progress are younger
+					if (attrs.isRegularFile()
+							&& TEMP_FILE_PATTERN.matcher(
+									file.getFileName().toString()).matches()
+							&& getModificationTime(FileBridgeFileAttributes
+									.read(file)) < startTime) {
+						deleteTempFile(file);
+						count[0]++;
+					}
+
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file,
+						IOException exc) {
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			LOG.warn("Could not remove temporary files: {}", e.toString());
+		}
+
+		if (count[0] > 0) {
+			LOG.info("Removed {} temporary files left in {}.", count[0], root);
+		}
+	}
+
+	private static void deleteTempFile(Path temp) {
+		if (temp == null) {
+			return;
+		}
+
+		try {
+			Files.deleteIfExists(temp);
+		} catch (IOException e) {
+			// nothing we can do
 		}
 	}
 
@@ -597,11 +1506,12 @@ public class FileBridgeRepository {
 		String name = FileBridgeUtils.getStringProperty(properties,
 				PropertyIds.NAME);
 		File newFolder = new File(parent, name);
+		expectChange(newFolder, false);
 		if (!newFolder.mkdir()) {
 			throw new CmisStorageException("Could not create folder!");
 		}
 
-		return getId(newFolder);
+		return objectCreated(newFolder);
 	}
 
 	/**
@@ -626,9 +1536,13 @@ public class FileBridgeRepository {
 		}
 
 		// move it
+		expectChange(file, true);
+		expectChange(newFile, true);
 		if (!file.renameTo(newFile)) {
 			throw new CmisStorageException("Move failed!");
 		} else {
+			objectMoved(file, newFile);
+
 			// set new id
 			objectId.setValue(getId(newFile));
 		}
@@ -642,7 +1556,8 @@ public class FileBridgeRepository {
 	 */
 	public void changeContentStream(CallContext context,
 			Holder<String> objectId, Boolean overwriteFlag,
-			ContentStream contentStream, boolean append) {
+			Holder<String> changeToken, ContentStream contentStream,
+			boolean append) {
 		checkUser(context, true);
 
 		if (objectId == null) {
@@ -655,40 +1570,205 @@ public class FileBridgeRepository {
 			throw new CmisStreamNotSupportedException("Not a file!");
 		}
 
-		// check overwrite
 		boolean owf = FileBridgeUtils.getBooleanParameter(overwriteFlag, true);
-		if (!owf && file.length() > 0) {
-			throw new CmisContentAlreadyExistsException(
-					"Content already exists!");
+
+		synchronized (getUpdateLock(file)) {
+			// check overwrite
+			if (!owf && file.length() > 0) {
+				throw new CmisContentAlreadyExistsException(
+						"Content already exists!");
+			}
+
+			checkChangeToken(file, changeToken);
+
+			// new content replaces an unfinished upload
+			FileBridgeUploadSessions sessions = uploadSessions;
+			if (!append && sessions != null) {
+				sessions.abort(getRepositoryPath(file), false);
+			}
+
+			expectChange(file, false);
+			try {
+				if (contentStream == null
+						|| contentStream.getStream() == null) {
+					// delete content
+					writeContent(file, null, null, append);
+				} else {
+					// set content
+					writeContent(file, contentStream.getStream(),
+							contentStream.getBigLength(), append);
+				}
+			} finally {
+				objectContentChanged(file);
+			}
+
+			updateChangeToken(file, changeToken);
+		}
+	}
+
+	/**
+	 * CMIS appendContentStream.
+	 * 
+	 * With upload sessions, chunks are collected in a staging file and the
+	 * document is replaced when the last chunk has arrived and all gaps have
+	 * been filled. Clients that send chunks out of order or in parallel
+	 * provide the position of a chunk in the document with an
+	 * <code>offset</code> extension element.
+	 */
+	public void appendContentStream(CallContext context,
+			Holder<String> objectId, Holder<String> changeToken,
+			ContentStream contentStream, boolean isLastChunk,
+			ExtensionsData extension) {
+		FileBridgeUploadSessions sessions = uploadSessions;
+		if (sessions == null) {
+			changeContentStream(context, objectId, true, changeToken,
+					contentStream, true);
+			return;
+		}
+
+		checkUser(context, true);
+
+		if (objectId == null) {
+			throw new CmisInvalidArgumentException("Id is not valid!");
+		}
+
+		// get the file
+		File file = getFile(objectId.getValue());
+		if (!file.isFile()) {
+			throw new CmisStreamNotSupportedException("Not a file!");
 		}
 
-		OutputStream out = null;
-		InputStream in = null;
+		// the document doesn't change before the upload is complete, so all
+		// chunks can carry the same token
+		checkChangeToken(file, changeToken);
+
+		String path = getRepositoryPath(file);
+		Long offset = getChunkOffset(extension, contentStream);
+		InputStream stream = (contentStream == null ? null : contentStream
+				.getStream());
+
+		FileBridgeUploadSessions.Session session = null;
 		try {
-			out = new BufferedOutputStream(new FileOutputStream(file, append),
-					BUFFER_SIZE);
+			session = sessions.get(path);
+			if (session == null) {
+				session = startUpload(sessions, path, file);
+			}
 
-			if (contentStream == null || contentStream.getStream() == null) {
-				// delete content
-				out.write(new byte[0]);
-			} else {
-				// set content
-				in = new BufferedInputStream(contentStream.getStream(),
-						BUFFER_SIZE);
-
-				byte[] buffer = new byte[BUFFER_SIZE];
-				int b;
-				while ((b = in.read(buffer)) > -1) {
-					out.write(buffer, 0, b);
+			boolean complete = session.write(offset,
+					(stream == null ? new ByteArrayInputStream(new byte[0])
+							: stream), isLastChunk, bufferPool);
+
+			if (complete && sessions.complete(path, session)) {
+				// publish the assembled document
+				synchronized (getUpdateLock(file)) {
+					try {
+						// the staging file is based on the content the
+						// upload started with
+						if (!session.getBaseToken().equals(
+								FileBridgeFileAttributes.read(file)
+										.getContentToken())) {
+							throw new CmisUpdateConflictException(
+									"Document has been changed during the upload!");
+						}
+
+						expectChange(file, false);
+						try {
+							session.getChannel().truncate(session.getTotal());
+							publish(session.getChannel(),
+									session.getStaging(), file.toPath(),
+									blobStore, null, true);
+						} finally {
+							objectContentChanged(file);
+						}
+					} finally {
+						IOUtils.closeQuietly(session.getChannel());
+						deleteTempFile(session.getStaging());
+					}
+
+					updateChangeToken(file, changeToken);
 				}
+				return;
 			}
-		} catch (Exception e) {
+		} catch (IOException e) {
+			abortIfEmpty(sessions, path, session);
 			throw new CmisStorageException("Could not write content: "
 					+ e.getMessage(), e);
+		} catch (RuntimeException e) {
+			abortIfEmpty(sessions, path, session);
+			throw e;
+		} finally {
+			IOUtils.closeQuietly(stream);
+		}
+
+		synchronized (getUpdateLock(file)) {
+			updateChangeToken(file, changeToken);
+		}
+	}
+
+	private static void abortIfEmpty(FileBridgeUploadSessions sessions,
+			String path, FileBridgeUploadSessions.Session session) {
+		if (session != null) {
+			sessions.abortIfEmpty(path, session);
+		}
+	}
+
+	/**
+	 * Creates a staging file with the current content of the document and
+	 * registers a new upload session.
+	 */
+	private FileBridgeUploadSessions.Session startUpload(
+			FileBridgeUploadSessions sessions, String path, File file)
+			throws IOException {
+		if (!file.canWrite()) {
+			throw new CmisStorageException("Document is not writable!");
+		}
+
+		// a change while the content is copied fails the upload when it is
+		// published
+		String baseToken = FileBridgeFileAttributes.read(file)
+				.getContentToken();
+
+		Path staging = createTempFile(file);
+		FileChannel out = null;
+		try {
+			copier.copyData(file.toPath(), staging);
+			out = FileChannel.open(staging, StandardOpenOption.WRITE);
+
+			FileBridgeUploadSessions.Session session = sessions.add(path,
+					staging, out, baseToken);
+			out = null;
+			staging = null;
+
+			return session;
 		} finally {
 			IOUtils.closeQuietly(out);
-			IOUtils.closeQuietly(in);
+			deleteTempFile(staging);
+		}
+	}
+
+	/**
+	 * Returns the value of the <code>offset</code> extension element or
+	 * <code>null</code> if the client didn't provide one.
+	 */
+	private static Long getChunkOffset(ExtensionsData... extensions) {
+		for (ExtensionsData data : extensions) {
+			if (data == null || data.getExtensions() == null) {
+				continue;
+			}
+
+			for (CmisExtensionElement element : data.getExtensions()) {
+				if (OFFSET_EXTENSION.equals(element.getName())) {
+					try {
+						return Long.valueOf(element.getValue().trim());
+					} catch (Exception e) {
+						throw new CmisInvalidArgumentException(
+								"Invalid chunk offset: " + element.getValue());
+					}
+				}
+			}
 		}
+
+		return null;
 	}
 
 	/**
@@ -709,9 +1789,13 @@ public class FileBridgeRepository {
 		}
 
 		// delete file
+		expectChange(file, false);
 		if (!file.delete()) {
 			throw new CmisStorageException("Deletion failed!");
 		}
+
+		recordDeletion(file);
+		objectDeleted(file, false);
 	}
 
 	/**
@@ -732,7 +1816,22 @@ public class FileBridgeRepository {
 
 		// if it is a folder, remove it recursively
 		if (file.isDirectory()) {
-			deleteFolder(file, cof, result);
+			expectChange(file, true);
+
+			// the folder vanishes at once, its content is deleted later
+			FileBridgeTrash t = trash;
+			if (t != null && !root.equals(file) && moveToTrash(t, file)) {
+				return result;
+			}
+
+			try {
+				deleteFolder(file, cof, result);
+			} finally {
+				// keep the ids of objects that couldn't be deleted
+				if (!file.exists()) {
+					objectDeleted(file, true);
+				}
+			}
 		} else {
 			throw new CmisConstraintException("Object is not a folder!");
 		}
@@ -740,46 +1839,96 @@ public class FileBridgeRepository {
 		return result;
 	}
 
+	/**
+	 * Moves a folder into the trash. Returns <code>false</code> if the folder
+	 * couldn't be moved and has to be deleted in place.
+	 */
+	private boolean moveToTrash(FileBridgeTrash t, File folder) {
+		String path = getRepositoryPath(folder);
+
+		// the id has to be taken before the path can be taken by a new
+		// object, which would get the same derived id; the content goes with
+		// the folder and is not recorded one by one, which would take as long
+		// as deleting it
+		FileBridgeChangeLog log = changeLog;
+		String id = (log != null ? getId(folder) : null);
+
+		try {
+			t.trash(folder, path);
+		} catch (IOException e) {
+			LOG.warn("Could not move {} to the trash, deleting it in place: {}",
+					folder, e.toString());
+			return false;
+		}
+
+		if (id != null) {
+			log.record(ChangeType.DELETED, id);
+		}
+
+		objectDeleted(folder, true);
+
+		return true;
+	}
+
 	/**
 	 * Removes a folder and its content.
 	 */
-	private boolean deleteFolder(File folder, boolean continueOnFailure,
-			FailedToDeleteDataImpl ftd) {
-		boolean success = true;
+	private boolean deleteFolder(File folder, final boolean continueOnFailure,
+			final FailedToDeleteDataImpl ftd) {
+		final boolean[] success = new boolean[] { true };
 
-		for (File file : folder.listFiles()) {
-			if (file.isDirectory()) {
-				if (!deleteFolder(file, continueOnFailure, ftd)) {
-					if (!continueOnFailure) {
-						return false;
-					}
-					success = false;
+		try {
+			Files.walkFileTree(folder.toPath(), new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file,
+						BasicFileAttributes attrs) {
+					return delete(file);
 				}
-			} else {
-				if (!file.delete()) {
-					ftd.getIds().add(getId(file));
-					if (!continueOnFailure) {
-						return false;
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file,
+						IOException exc) {
+					return failed(file);
+				}
+
+				@Override
+				public FileVisitResult postVisitDirectory(Path dir,
+						IOException exc) {
+					return delete(dir);
+				}
+
+				private FileVisitResult delete(Path path) {
+					try {
+						Files.delete(path);
+						recordDeletion(path.toFile());
+						return FileVisitResult.CONTINUE;
+					} catch (IOException e) {
+						return failed(path);
 					}
-					success = false;
 				}
-			}
-		}
 
-		if (!folder.delete()) {
-			ftd.getIds().add(getId(folder));
-			success = false;
+				private FileVisitResult failed(Path path) {
+					ftd.getIds().add(getId(path.toFile()));
+					success[0] = false;
+
+					return (continueOnFailure ? FileVisitResult.CONTINUE
+							: FileVisitResult.TERMINATE);
+				}
+			});
+		} catch (IOException e) {
+			throw new CmisStorageException("Deletion failed: "
+					+ e.getMessage(), e);
 		}
 
-		return success;
+		return success[0];
 	}
 
 	/**
 	 * CMIS updateProperties.
 	 */
 	public ObjectData updateProperties(CallContext context,
-			Holder<String> objectId, Properties properties,
-			ObjectInfoHandler objectInfos) {
+			Holder<String> objectId, Holder<String> changeToken,
+			Properties properties, ObjectInfoHandler objectInfos) {
 		boolean userReadOnly = checkUser(context, true);
 
 		// check object id
@@ -804,19 +1953,29 @@ public class FileBridgeRepository {
 			throw new CmisNameConstraintViolationException("Name is not valid!");
 		}
 
-		// rename file or folder if necessary
 		File newFile = file;
-		if (isRename) {
-			File parent = file.getParentFile();
-			newFile = new File(parent, newName);
-			if (!file.renameTo(newFile)) {
-				// if something went wrong, throw an exception
-				throw new CmisUpdateConflictException(
-						"Could not rename object!");
-			} else {
-				// set new id
-				objectId.setValue(getId(newFile));
+		synchronized (getUpdateLock(file)) {
+			checkChangeToken(file, changeToken);
+
+			// rename file or folder if necessary
+			if (isRename) {
+				File parent = file.getParentFile();
+				newFile = new File(parent, newName);
+				expectChange(file, true);
+				expectChange(newFile, true);
+				if (!file.renameTo(newFile)) {
+					// if something went wrong, throw an exception
+					throw new CmisUpdateConflictException(
+							"Could not rename object!");
+				} else {
+					objectMoved(file, newFile);
+
+					// set new id
+					objectId.setValue(getId(newFile));
+				}
 			}
+
+			updateChangeToken(newFile, changeToken);
 		}
 
 		return compileObjectData(context, newFile, null, false, false,
@@ -845,10 +2004,14 @@ public class FileBridgeRepository {
 			}
 			try {
 				Holder<String> oidHolder = new Holder<String>(oid.getId());
-				updateProperties(context, oidHolder, properties, objectInfos);
+				Holder<String> tokenHolder = new Holder<String>(
+						oid.getChangeToken());
+				updateProperties(context, oidHolder, tokenHolder, properties,
+						objectInfos);
 
 				result.add(new BulkUpdateObjectIdAndChangeTokenImpl(
-						oid.getId(), oidHolder.getValue(), null));
+						oid.getId(), oidHolder.getValue(), tokenHolder
+								.getValue()));
 			} catch (CmisBaseException e) {
 				// ignore exceptions - see specification
 			}
@@ -886,7 +2049,7 @@ public class FileBridgeRepository {
 		boolean iacl = FileBridgeUtils.getBooleanParameter(includeAcl, false);
 
 		// split filter
-		Set<String> filterCollection = FileBridgeUtils.splitFilter(filter);
+		FileBridgePropertyFilter filterCollection = compileFilter(filter);
 
 		// gather properties
 		return compileObjectData(context, file, filterCollection, iaa, iacl,
@@ -901,12 +2064,13 @@ public class FileBridgeRepository {
 		boolean userReadOnly = checkUser(context, false);
 
 		// get the file or folder
-		File file = getFile(objectId);
-		if (!file.exists()) {
+		FileBridgeFileAttributes attrs = FileBridgeFileAttributes
+				.read(getFile(objectId));
+		if (!attrs.exists()) {
 			throw new CmisObjectNotFoundException("Object not found!");
 		}
 
-		return compileAllowableActions(file, userReadOnly);
+		return compileAllowableActions(attrs, userReadOnly);
 	}
 
 	/**
@@ -916,12 +2080,13 @@ public class FileBridgeRepository {
 		checkUser(context, false);
 
 		// get the file or folder
-		File file = getFile(objectId);
-		if (!file.exists()) {
+		FileBridgeFileAttributes attrs = FileBridgeFileAttributes
+				.read(getFile(objectId));
+		if (!attrs.exists()) {
 			throw new CmisObjectNotFoundException("Object not found!");
 		}
 
-		return compileAcl(file);
+		return compileAcl(attrs);
 	}
 
 	/**
@@ -933,36 +2098,68 @@ public class FileBridgeRepository {
 
 		// get the file
 		final File file = getFile(objectId);
-		if (!file.isFile()) {
+		FileBridgeFileAttributes attrs = FileBridgeFileAttributes.read(file);
+		if (!attrs.isFile()) {
 			throw new CmisStreamNotSupportedException("Not a file!");
 		}
 
-		if (file.length() == 0) {
+		if (attrs.getSize() == 0) {
 			throw new CmisConstraintException("Document has no content!");
 		}
 
-		InputStream stream = null;
+		// the stream reads straight from a file channel, which callers can
+		// also use to transfer the content without copying it
+		// ranges are read positionally, no matter how big the offset is
+		List<FileBridgeContentInputStream.Range> ranges = Collections
+				.singletonList(new FileBridgeContentInputStream.Range(
+						(offset == null ? 0 : offset.longValue()),
+						(length == null ? -1 : length.longValue())));
+
+		// small documents are served from the content cache, if enabled
+		FileBridgeBlockCache cache = blockCache;
+		FileBridgeContentInputStream stream = null;
 		try {
-			stream = new BufferedInputStream(new FileInputStream(file),
-					4 * 1024);
-			if (offset != null || length != null) {
-				stream = new ContentRangeInputStream(stream, offset, length);
+			if (cache != null && cache.isCacheable(attrs)) {
+				stream = new FileBridgeContentInputStream(attrs, bufferPool,
+						ranges, cache, getRepositoryPath(file));
+			} else {
+				FileChannel channel = FileChannel.open(file.toPath(),
+						StandardOpenOption.READ);
+				try {
+					stream = new FileBridgeContentInputStream(channel,
+							bufferPool, ranges);
+				} catch (IOException e) {
+					IOUtils.closeQuietly(channel);
+					throw e;
+				}
 			}
-		} catch (FileNotFoundException e) {
+		} catch (NoSuchFileException e) {
 			throw new CmisObjectNotFoundException(e.getMessage(), e);
+		} catch (IOException e) {
+			throw new CmisStorageException("Could not open content: "
+					+ e.getMessage(), e);
 		}
 
 		// compile data
-		ContentStreamImpl result;
+		FileBridgeContentStream result;
 		if ((offset != null && offset.longValue() > 0) || length != null) {
-			result = new PartialContentStreamImpl();
+			result = new FileBridgeContentStream.Partial();
 		} else {
-			result = new ContentStreamImpl();
+			result = new FileBridgeContentStream();
+		}
+
+		// lets the bindings answer conditional requests; the modification
+		// time of shared content may go backwards, so the bindings must not
+		// answer If-Modified-Since with it
+		result.setETag(attrs.getChangeToken());
+		if (!mayShareContent()) {
+			result.setLastModified(FileBridgeUtils.millisToCalendar(attrs
+					.getLastModified()));
 		}
 
 		result.setFileName(file.getName());
-		result.setLength(BigInteger.valueOf(file.length()));
-		result.setMimeType(MimeTypes.getMIMEType(file));
+		result.setLength(BigInteger.valueOf(attrs.getSize()));
+		result.setMimeType(mimeTypes.getMimeType(attrs));
 		result.setStream(stream);
 
 		return result;
@@ -978,7 +2175,7 @@ public class FileBridgeRepository {
 		boolean userReadOnly = checkUser(context, false);
 
 		// split filter
-		Set<String> filterCollection = FileBridgeUtils.splitFilter(filter);
+		FileBridgePropertyFilter filterCollection = compileFilter(filter);
 
 		// set defaults if values not set
 		boolean iaa = FileBridgeUtils.getBooleanParameter(
@@ -1009,31 +2206,29 @@ public class FileBridgeRepository {
 					userReadOnly, objectInfos);
 		}
 
+		// read the requested page, hidden files are skipped
+		FileBridgeFolderListing.Page page = getChildrenPage(folder,
+				FileBridgeFolderListing.Kind.ALL, skip, max);
+
 		// prepare result
 		ObjectInFolderListImpl result = new ObjectInFolderListImpl();
-		result.setObjects(new ArrayList<ObjectInFolderData>());
-		result.setHasMoreItems(false);
-		int count = 0;
-
-		// iterate through children
-		for (File child : folder.listFiles()) {
-			// skip hidden files
-			if (child.isHidden()) {
-				continue;
-			}
-
-			count++;
-
-			if (skip > 0) {
-				skip--;
-				continue;
-			}
-
-			if (result.getObjects().size() >= max) {
-				result.setHasMoreItems(true);
-				continue;
+		result.setObjects(new ArrayList<ObjectInFolderData>(page
+				.getEntries().size()));
+		result.setHasMoreItems(page.hasMoreItems());
+
+		// new ids of the page are forced to disk at once
+		FileBridgeIdIndex index = idIndex;
+		if (index != null) {
+			List<String> paths = new ArrayList<String>(page.getEntries()
+					.size());
+			for (FileBridgeFileAttributes child : page.getEntries()) {
+				paths.add(getRepositoryPath(child.getFile()));
 			}
+			index.assign(paths);
+		}
 
+		// iterate through children
+		for (FileBridgeFileAttributes child : page.getEntries()) {
 			// build and add child object
 			ObjectInFolderDataImpl objectInFolder = new ObjectInFolderDataImpl();
 			objectInFolder.setObject(compileObjectData(context, child,
@@ -1045,7 +2240,7 @@ public class FileBridgeRepository {
 			result.getObjects().add(objectInFolder);
 		}
 
-		result.setNumItems(BigInteger.valueOf(count));
+		result.setNumItems(BigInteger.valueOf(page.getNumItems()));
 
 		return result;
 	}
@@ -1069,7 +2264,7 @@ public class FileBridgeRepository {
 		}
 
 		// split filter
-		Set<String> filterCollection = FileBridgeUtils.splitFilter(filter);
+		FileBridgePropertyFilter filterCollection = compileFilter(filter);
 
 		// set defaults if values not set
 		boolean iaa = FileBridgeUtils.getBooleanParameter(
@@ -1089,38 +2284,59 @@ public class FileBridgeRepository {
 					userReadOnly, objectInfos);
 		}
 
-		// get the tree
-		List<ObjectInFolderContainer> result = new ArrayList<ObjectInFolderContainer>();
-		gatherDescendants(context, folder, result, foldersOnly, d,
-				filterCollection, iaa, ips, userReadOnly, objectInfos);
+		// with a budget, the tree is built while it is serialized and
+		// truncated when the budget runs out
+		long maxNodes = descendantsMaxNodes;
+		long maxBytes = descendantsMaxBytes;
+		if (maxNodes > 0 || maxBytes > 0) {
+			FileBridgeLazyTree tree = new FileBridgeLazyTree(
+					new DescendantsCallback(context, foldersOnly,
+							filterCollection, iaa, ips, userReadOnly,
+							objectInfos), maxNodes, maxBytes);
+			return tree.build(folder, getId(folder), d);
+		}
 
-		return result;
+		// get the tree, sibling subtrees are built concurrently
+		return treeWalker.walk(folder, d, new DescendantsCallback(context,
+				foldersOnly, filterCollection, iaa, ips, userReadOnly,
+				(objectInfos == null ? null : new SynchronizedObjectInfos(
+						objectInfos))));
 	}
 
 	/**
-	 * Gather the children of a folder.
+	 * Lists and compiles the descendants of a folder for the tree walker.
 	 */
-	private void gatherDescendants(CallContext context, File folder,
-			List<ObjectInFolderContainer> list, boolean foldersOnly, int depth,
-			Set<String> filter, boolean includeAllowableActions,
-			boolean includePathSegments, boolean userReadOnly,
-			ObjectInfoHandler objectInfos) {
-		assert folder != null;
-		assert list != null;
-
-		// iterate through children
-		for (File child : folder.listFiles()) {
-			// skip hidden and shadow files
-			if (child.isHidden()) {
-				continue;
-			}
-
-			// folders only?
-			if (foldersOnly && !child.isDirectory()) {
-				continue;
-			}
-
-			// add to list
+	private class DescendantsCallback implements FileBridgeTreeWalker.Callback {
+		private final CallContext context;
+		private final boolean foldersOnly;
+		private final FileBridgePropertyFilter filter;
+		private final boolean includeAllowableActions;
+		private final boolean includePathSegments;
+		private final boolean userReadOnly;
+		private final ObjectInfoHandler objectInfos;
+
+		DescendantsCallback(CallContext context, boolean foldersOnly,
+				FileBridgePropertyFilter filter,
+				boolean includeAllowableActions, boolean includePathSegments,
+				boolean userReadOnly, ObjectInfoHandler objectInfos) {
+			this.context = context;
+			this.foldersOnly = foldersOnly;
+			this.filter = filter;
+			this.includeAllowableActions = includeAllowableActions;
+			this.includePathSegments = includePathSegments;
+			this.userReadOnly = userReadOnly;
+			this.objectInfos = objectInfos;
+		}
+
+		public FileBridgeFolderListing.Page getChildren(File folder,
+				int maxItems) {
+			// hidden files are skipped
+			return getChildrenPage(folder,
+					(foldersOnly ? FileBridgeFolderListing.Kind.FOLDERS
+							: FileBridgeFolderListing.Kind.ALL), 0, maxItems);
+		}
+
+		public ObjectInFolderData compile(FileBridgeFileAttributes child) {
 			ObjectInFolderDataImpl objectInFolder = new ObjectInFolderDataImpl();
 			objectInFolder.setObject(compileObjectData(context, child, filter,
 					includeAllowableActions, false, userReadOnly, objectInfos));
@@ -1128,19 +2344,28 @@ public class FileBridgeRepository {
 				objectInFolder.setPathSegment(child.getName());
 			}
 
-			ObjectInFolderContainerImpl container = new ObjectInFolderContainerImpl();
-			container.setObject(objectInFolder);
+			return objectInFolder;
+		}
+	}
+
+	/**
+	 * Collects object infos from several threads. The handler of the service
+	 * is not thread-safe.
+	 */
+	private static class SynchronizedObjectInfos implements ObjectInfoHandler {
+		private final ObjectInfoHandler objectInfos;
+
+		SynchronizedObjectInfos(ObjectInfoHandler objectInfos) {
+			this.objectInfos = objectInfos;
+		}
 
-			list.add(container);
+		public synchronized ObjectInfo getObjectInfo(String repositoryId,
+				String objectId) {
+			return objectInfos.getObjectInfo(repositoryId, objectId);
+		}
 
-			// move to next level
-			if (depth != 1 && child.isDirectory()) {
-				container.setChildren(new ArrayList<ObjectInFolderContainer>());
-				gatherDescendants(context, child, container.getChildren(),
-						foldersOnly, depth - 1, filter,
-						includeAllowableActions, includePathSegments,
-						userReadOnly, objectInfos);
-			}
+		public synchronized void addObjectInfo(ObjectInfo objectInfo) {
+			objectInfos.addObjectInfo(objectInfo);
 		}
 	}
 
@@ -1169,7 +2394,7 @@ public class FileBridgeRepository {
 		boolean userReadOnly = checkUser(context, false);
 
 		// split filter
-		Set<String> filterCollection = FileBridgeUtils.splitFilter(filter);
+		FileBridgePropertyFilter filterCollection = compileFilter(filter);
 
 		// set defaults if values not set
 		boolean iaa = FileBridgeUtils.getBooleanParameter(
@@ -1214,7 +2439,7 @@ public class FileBridgeRepository {
 		boolean userReadOnly = checkUser(context, false);
 
 		// split filter
-		Set<String> filterCollection = FileBridgeUtils.splitFilter(filter);
+		FileBridgePropertyFilter filterCollection = compileFilter(filter);
 
 		// check path
 		if (folderPath == null || folderPath.length() == 0
@@ -1241,13 +2466,21 @@ public class FileBridgeRepository {
 	}
 
 	/**
-	 * CMIS query (simple IN_FOLDER queries only)
+	 * CMIS query. Without the metadata index only simple IN_FOLDER queries
+	 * are supported.
 	 */
 	public ObjectList query(CallContext context, String statement,
 			Boolean includeAllowableActions, BigInteger maxItems,
 			BigInteger skipCount, ObjectInfoHandler objectInfos) {
 		boolean userReadOnly = checkUser(context, false);
 
+		FileBridgeMetadataIndex index = metadataIndex;
+		if (index != null) {
+			return queryIndex(context, index, statement,
+					includeAllowableActions, maxItems, skipCount,
+					userReadOnly, objectInfos);
+		}
+
 		Matcher matcher = IN_FOLDER_QUERY_PATTERN.matcher(statement.trim());
 
 		if (!matcher.matches()) {
@@ -1290,57 +2523,187 @@ public class FileBridgeRepository {
 			throw new CmisInvalidArgumentException("Not a folder!");
 		}
 
-		// prepare result
+		// read the requested page, hidden files are skipped
+		FileBridgeFolderListing.Page page = getChildrenPage(folder,
+				(queryFiles ? FileBridgeFolderListing.Kind.DOCUMENTS
+						: FileBridgeFolderListing.Kind.FOLDERS), skip, max);
+
 		ObjectListImpl result = new ObjectListImpl();
-		result.setObjects(new ArrayList<ObjectData>());
-		result.setHasMoreItems(false);
-		int count = 0;
+		result.setObjects(new ArrayList<ObjectData>(page.getEntries().size()));
+		result.setHasMoreItems(page.hasMoreItems());
 
 		// iterate through children
-		for (File hit : folder.listFiles()) {
-			// skip hidden files
-			if (hit.isHidden()) {
-				continue;
-			}
+		for (FileBridgeFileAttributes hit : page.getEntries()) {
+			// build and add child object
+			// (properties carry their query names)
+			ObjectData object = compileObjectData(context, hit, null, iaa,
+					false, userReadOnly, true, objectInfos);
 
-			// skip directory if documents are requested
-			if (hit.isDirectory() && queryFiles) {
-				continue;
-			}
+			result.getObjects().add(object);
+		}
 
-			// skip files if folders are requested
-			if (hit.isFile() && !queryFiles) {
-				continue;
+		result.setNumItems(BigInteger.valueOf(page.getNumItems()));
+
+		return result;
+	}
+
+	/**
+	 * Answers a query from the metadata index.
+	 */
+	private ObjectList queryIndex(CallContext context,
+			FileBridgeMetadataIndex index, String statement,
+			Boolean includeAllowableActions, BigInteger maxItems,
+			BigInteger skipCount, boolean userReadOnly,
+			ObjectInfoHandler objectInfos) {
+		FileBridgeQuery query = FileBridgeQuery.parse(statement);
+
+		TypeDefinition type = typeManager.getInternalTypeDefinition(query
+				.getTypeId());
+		if (type == null) {
+			throw new CmisInvalidArgumentException("Unknown type.");
+		}
+
+		boolean queryFolders = (type.getBaseTypeId() == BaseTypeId.CMIS_FOLDER);
+		if (!queryFolders && type.getBaseTypeId() != BaseTypeId.CMIS_DOCUMENT) {
+			throw new CmisInvalidArgumentException("Type is not queryable.");
+		}
+
+		query.resolve(new FileBridgeQuery.FolderResolver() {
+			public String getFolderPath(String folderId) {
+				if (folderId.length() == 0) {
+					throw new CmisInvalidArgumentException(
+							"Invalid folder id.");
+				}
+
+				File folder = getFile(folderId);
+				if (!folder.isDirectory()) {
+					throw new CmisInvalidArgumentException("Not a folder!");
+				}
+
+				return getRepositoryPath(folder);
 			}
+		});
+
+		FileBridgePropertyFilter filter = null;
+		if (query.getSelectList() != null) {
+			StringBuilder sb = new StringBuilder();
+			for (String propertyId : query.getSelectList()) {
+				if (sb.length() > 0) {
+					sb.append(',');
+				}
+				sb.append(propertyId);
+			}
+			filter = compileFilter(sb.toString());
+		}
 
-			count++;
+		// set defaults if values not set
+		boolean iaa = FileBridgeUtils.getBooleanParameter(
+				includeAllowableActions, false);
 
-			if (skip > 0) {
-				skip--;
-				continue;
+		int skip = (skipCount == null ? 0 : skipCount.intValue());
+		int max = (maxItems == null ? -1 : maxItems.intValue());
+
+		if (!index.awaitReady(METADATA_INDEX_TIMEOUT)) {
+			throw new CmisRuntimeException(
+					"Metadata index is not ready yet. Try again later.");
+		}
+
+		// hits that have vanished are dropped from the index and the query is
+		// run again, so that pages and counts stay consistent
+		FileBridgeQuery.Result hits;
+		List<FileBridgeFileAttributes> found;
+		int attempt = 0;
+		while (true) {
+			hits = query.execute(index, queryFolders, skip, max);
+			found = new ArrayList<FileBridgeFileAttributes>(hits.getEntries()
+					.size());
+
+			boolean vanished = false;
+			for (FileBridgeMetadataIndex.Entry hit : hits.getEntries()) {
+				File file = new File(root, hit.getPath().substring(1)
+						.replace('/', File.separatorChar));
+				FileBridgeFileAttributes attrs = FileBridgeFileAttributes
+						.read(file);
+				if (attrs.exists()) {
+					found.add(attrs);
+				} else {
+					// deleted since the index has been updated
+					index.remove(hit.getPath(), hit.isFolder());
+					vanished = true;
+				}
 			}
 
-			if (result.getObjects().size() >= max) {
-				result.setHasMoreItems(true);
-				continue;
+			if (!vanished || ++attempt == MAX_QUERY_ATTEMPTS) {
+				break;
 			}
+		}
 
-			// build and add child object
-			ObjectData object = compileObjectData(context, hit, null, iaa,
-					false, userReadOnly, objectInfos);
+		ObjectListImpl result = new ObjectListImpl();
+		result.setObjects(new ArrayList<ObjectData>(found.size()));
+		result.setHasMoreItems(hits.hasMoreItems());
+		if (hits.getNumItems() >= 0) {
+			result.setNumItems(BigInteger.valueOf(hits.getNumItems()
+					- (hits.getEntries().size() - found.size())));
+		}
 
-			// set query names
-			for (PropertyData<?> prop : object.getProperties()
-					.getPropertyList()) {
-				((MutablePropertyData<?>) prop).setQueryName(type
-						.getPropertyDefinitions().get(prop.getId())
-						.getQueryName());
-			}
+		for (FileBridgeFileAttributes attrs : found) {
+			// properties carry their query names
+			result.getObjects().add(
+					compileObjectData(context, attrs, filter, iaa, false,
+							userReadOnly, true, objectInfos));
+		}
+
+		return result;
+	}
+
+	/**
+	 * CMIS getContentChanges.
+	 * 
+	 * The change log token is inclusive: the change it stands for is the
+	 * first change returned. On return, the holder contains the token of the
+	 * last change returned.
+	 */
+	public ObjectList getContentChanges(CallContext context,
+			Holder<String> changeLogToken, BigInteger maxItems) {
+		checkUser(context, false);
+
+		FileBridgeChangeLog log = changeLog;
+		if (log == null) {
+			throw new CmisNotSupportedException("Changes are not recorded!");
+		}
+
+		int max = (maxItems == null || maxItems.signum() < 0
+				|| maxItems.intValue() > MAX_CHANGES ? MAX_CHANGES : maxItems
+				.intValue());
+
+		List<FileBridgeChangeLog.Entry> changes = new ArrayList<FileBridgeChangeLog.Entry>();
+		boolean hasMore = log.getChanges(changeLogToken == null ? null
+				: changeLogToken.getValue(), max, changes);
+
+		ObjectListImpl result = new ObjectListImpl();
+		result.setObjects(new ArrayList<ObjectData>(changes.size()));
+		result.setHasMoreItems(hasMore);
+		result.setNumItems(BigInteger.valueOf(changes.size()));
+
+		for (FileBridgeChangeLog.Entry change : changes) {
+			PropertiesImpl properties = new PropertiesImpl();
+			PropertyIdImpl idProperty = new PropertyIdImpl(
+					PropertyIds.OBJECT_ID, change.getObjectId());
+			idProperty.setQueryName(PropertyIds.OBJECT_ID);
+			properties.addProperty(idProperty);
+
+			ObjectDataImpl object = new ObjectDataImpl();
+			object.setProperties(properties);
+			object.setChangeEventInfo(new ChangeEventInfoDataImpl(change
+					.getType(), FileBridgeUtils.millisToCalendar(change
+					.getTime())));
 
 			result.getObjects().add(object);
 		}
 
-		result.setNumItems(BigInteger.valueOf(count));
+		if (changeLogToken != null && !changes.isEmpty()) {
+			changeLogToken.setValue(changes.get(changes.size() - 1).getToken());
+		}
 
 		return result;
 	}
@@ -1351,26 +2714,55 @@ public class FileBridgeRepository {
 	 * Compiles an object type object from a file or folder.
 	 */
 	private ObjectData compileObjectData(CallContext context, File file,
-			Set<String> filter, boolean includeAllowableActions,
+			FileBridgePropertyFilter filter, boolean includeAllowableActions,
 			boolean includeAcl, boolean userReadOnly,
 			ObjectInfoHandler objectInfos) {
+		return compileObjectData(context, FileBridgeFileAttributes.read(file),
+				filter, includeAllowableActions, includeAcl, userReadOnly,
+				objectInfos);
+	}
+
+	/**
+	 * Compiles an object type object from an attribute snapshot of a file or
+	 * folder.
+	 */
+	private ObjectData compileObjectData(CallContext context,
+			FileBridgeFileAttributes attrs, FileBridgePropertyFilter filter,
+			boolean includeAllowableActions, boolean includeAcl,
+			boolean userReadOnly, ObjectInfoHandler objectInfos) {
+		return compileObjectData(context, attrs, filter,
+				includeAllowableActions, includeAcl, userReadOnly, false,
+				objectInfos);
+	}
+
+	/**
+	 * Compiles an object type object. If <code>queryNames</code> is set, the
+	 * properties carry their query names.
+	 */
+	private ObjectData compileObjectData(CallContext context,
+			FileBridgeFileAttributes attrs, FileBridgePropertyFilter filter,
+			boolean includeAllowableActions, boolean includeAcl,
+			boolean userReadOnly, boolean queryNames,
+			ObjectInfoHandler objectInfos) {
 		ObjectDataImpl result = new ObjectDataImpl();
-		ObjectInfoImpl objectInfo = new ObjectInfoImpl();
+		ObjectInfoImpl objectInfo = (context.isObjectInfoRequired() ? new ObjectInfoImpl()
+				: null);
 
-		result.setProperties(compileProperties(context, file, filter,
-				objectInfo));
+		result.setProperties(compileProperties(context, attrs,
+				(filter == null ? FileBridgePropertyFilter.ALL : filter),
+				queryNames, objectInfo));
 
 		if (includeAllowableActions) {
-			result.setAllowableActions(compileAllowableActions(file,
+			result.setAllowableActions(compileAllowableActions(attrs,
 					userReadOnly));
 		}
 
 		if (includeAcl) {
-			result.setAcl(compileAcl(file));
+			result.setAcl(compileAcl(attrs));
 			result.setIsExactAcl(true);
 		}
 
-		if (context.isObjectInfoRequired()) {
+		if (objectInfo != null) {
 			objectInfo.setObject(result);
 			objectInfos.addObjectInfo(objectInfo);
 		}
@@ -1379,29 +2771,38 @@ public class FileBridgeRepository {
 	}
 
 	/**
-	 * Gathers all base properties of a file or folder.
+	 * Gathers all base properties of a file or folder. Properties that don't
+	 * pass the filter are not computed at all. Constant properties are taken
+	 * from the property template of the base type. The object info is only
+	 * compiled if <code>objectInfo</code> is not <code>null</code>.
 	 */
-	private Properties compileProperties(CallContext context, File file,
-			Set<String> orgfilter, ObjectInfoImpl objectInfo) {
-		if (file == null) {
+	private Properties compileProperties(CallContext context,
+			FileBridgeFileAttributes attrs, FileBridgePropertyFilter filter,
+			boolean queryNames, ObjectInfoImpl objectInfo) {
+		if (attrs == null) {
 			throw new IllegalArgumentException("File must not be null!");
 		}
 
 		// we can't gather properties if the file or folder doesn't exist
-		if (!file.exists()) {
+		if (!attrs.exists()) {
 			throw new CmisObjectNotFoundException("Object not found!");
 		}
 
-		// copy filter
-		Set<String> filter = (orgfilter == null ? null : new HashSet<String>(
-				orgfilter));
+		File file = attrs.getFile();
+		boolean isFolder = attrs.isDirectory();
 
-		// find base type
-		String typeId = null;
+		// find base type and its template
+		String typeId = (isFolder ? BaseTypeId.CMIS_FOLDER.value()
+				: BaseTypeId.CMIS_DOCUMENT.value());
+		CmisVersion cmisVersion = (context.getCmisVersion() == null ? CmisVersion.CMIS_1_1
+				: context.getCmisVersion());
+		FileBridgePropertyTemplate template = propertyTemplates[getPropertyTemplateIndex(
+				isFolder, cmisVersion, queryNames)];
 
 		// identify if the file is a doc or a folder/directory
-		if (file.isDirectory()) {
-			typeId = BaseTypeId.CMIS_FOLDER.value();
+		if (objectInfo == null) {
+			// no object info required
+		} else if (isFolder) {
 			objectInfo.setBaseType(BaseTypeId.CMIS_FOLDER);
 			objectInfo.setTypeId(typeId);
 			objectInfo.setContentType(null);
@@ -1420,7 +2821,6 @@ public class FileBridgeRepository {
 			objectInfo.setWorkingCopyId(null);
 			objectInfo.setWorkingCopyOriginalId(null);
 		} else {
-			typeId = BaseTypeId.CMIS_DOCUMENT.value();
 			objectInfo.setBaseType(BaseTypeId.CMIS_DOCUMENT);
 			objectInfo.setTypeId(typeId);
 			objectInfo.setHasAcl(true);
@@ -1445,132 +2845,101 @@ public class FileBridgeRepository {
 
 			// id
 			String id = fileToId(file);
-			addPropertyId(result, typeId, filter, PropertyIds.OBJECT_ID, id);
-			objectInfo.setId(id);
+			addPropertyId(result, template, filter, PropertyIds.OBJECT_ID, id);
 
 			// name
 			String name = file.getName();
-			addPropertyString(result, typeId, filter, PropertyIds.NAME, name);
-			objectInfo.setName(name);
-
-			// created and modified by
-			addPropertyString(result, typeId, filter, PropertyIds.CREATED_BY,
-					USER_UNKNOWN);
-			addPropertyString(result, typeId, filter,
-					PropertyIds.LAST_MODIFIED_BY, USER_UNKNOWN);
-			objectInfo.setCreatedBy(USER_UNKNOWN);
+			addPropertyString(result, template, filter, PropertyIds.NAME, name);
 
 			// creation and modification date
-			GregorianCalendar lastModified = FileBridgeUtils
-					.millisToCalendar(file.lastModified());
-			addPropertyDateTime(result, typeId, filter,
-					PropertyIds.CREATION_DATE, lastModified);
-			addPropertyDateTime(result, typeId, filter,
-					PropertyIds.LAST_MODIFICATION_DATE, lastModified);
-			objectInfo.setCreationDate(lastModified);
-			objectInfo.setLastModificationDate(lastModified);
-
-			// change token - always null
-			addPropertyString(result, typeId, filter, PropertyIds.CHANGE_TOKEN,
-					null);
+			GregorianCalendar lastModified = null;
+			if (objectInfo != null
+					|| filter.accepts(template.getType(),
+							PropertyIds.CREATION_DATE)
+					|| filter.accepts(template.getType(),
+							PropertyIds.LAST_MODIFICATION_DATE)) {
+				lastModified = FileBridgeUtils
+						.millisToCalendar(getModificationTime(attrs));
+				addPropertyDateTime(result, template, filter,
+						PropertyIds.CREATION_DATE, lastModified);
+				addPropertyDateTime(result, template, filter,
+						PropertyIds.LAST_MODIFICATION_DATE, lastModified);
+			}
 
-			// CMIS 1.1 properties
-			if (context.getCmisVersion() != CmisVersion.CMIS_1_0) {
-				addPropertyString(result, typeId, filter,
-						PropertyIds.DESCRIPTION, null);
-				addPropertyIdList(result, typeId, filter,
-						PropertyIds.SECONDARY_OBJECT_TYPE_IDS, null);
+			// change token
+			if (filter.accepts(template.getType(), PropertyIds.CHANGE_TOKEN)) {
+				addPropertyString(result, template, filter,
+						PropertyIds.CHANGE_TOKEN, attrs.getChangeToken());
 			}
 
+			// constant properties
+			template.addConstants(result, filter);
+
 			// directory or file
-			if (file.isDirectory()) {
-				// base type and type name
-				addPropertyId(result, typeId, filter, PropertyIds.BASE_TYPE_ID,
-						BaseTypeId.CMIS_FOLDER.value());
-				addPropertyId(result, typeId, filter,
-						PropertyIds.OBJECT_TYPE_ID,
-						BaseTypeId.CMIS_FOLDER.value());
-				String path = getRepositoryPath(file);
-				addPropertyString(result, typeId, filter, PropertyIds.PATH,
-						path);
+			boolean hasParent = true;
+			String mimeType = null;
+			if (isFolder) {
+				if (filter.accepts(template.getType(), PropertyIds.PATH)) {
+					addPropertyString(result, template, filter,
+							PropertyIds.PATH, getRepositoryPath(file));
+				}
 
 				// folder properties
-				if (!root.equals(file)) {
-					addPropertyId(result, typeId, filter,
-							PropertyIds.PARENT_ID,
-							(root.equals(file.getParentFile()) ? ROOT_ID
-									: fileToId(file.getParentFile())));
-					objectInfo.setHasParent(true);
-				} else {
-					addPropertyId(result, typeId, filter,
-							PropertyIds.PARENT_ID, null);
-					objectInfo.setHasParent(false);
+				hasParent = !root.equals(file);
+				if (filter.accepts(template.getType(), PropertyIds.PARENT_ID)) {
+					String parentId = null;
+					if (hasParent) {
+						parentId = (root.equals(file.getParentFile()) ? ROOT_ID
+								: fileToId(file.getParentFile()));
+					}
+					addPropertyId(result, template, filter,
+							PropertyIds.PARENT_ID, parentId);
 				}
-
-				addPropertyIdList(result, typeId, filter,
-						PropertyIds.ALLOWED_CHILD_OBJECT_TYPE_IDS, null);
 			} else {
-				// base type and type name
-				addPropertyId(result, typeId, filter, PropertyIds.BASE_TYPE_ID,
-						BaseTypeId.CMIS_DOCUMENT.value());
-				addPropertyId(result, typeId, filter,
-						PropertyIds.OBJECT_TYPE_ID,
-						BaseTypeId.CMIS_DOCUMENT.value());
-
 				// file properties
-				addPropertyBoolean(result, typeId, filter,
-						PropertyIds.IS_IMMUTABLE, false);
-				addPropertyBoolean(result, typeId, filter,
-						PropertyIds.IS_LATEST_VERSION, true);
-				addPropertyBoolean(result, typeId, filter,
-						PropertyIds.IS_MAJOR_VERSION, true);
-				addPropertyBoolean(result, typeId, filter,
-						PropertyIds.IS_LATEST_MAJOR_VERSION, true);
-				addPropertyString(result, typeId, filter,
-						PropertyIds.VERSION_LABEL, file.getName());
-				addPropertyId(result, typeId, filter,
-						PropertyIds.VERSION_SERIES_ID, fileToId(file));
-				addPropertyBoolean(result, typeId, filter,
-						PropertyIds.IS_VERSION_SERIES_CHECKED_OUT, false);
-				addPropertyString(result, typeId, filter,
-						PropertyIds.VERSION_SERIES_CHECKED_OUT_BY, null);
-				addPropertyString(result, typeId, filter,
-						PropertyIds.VERSION_SERIES_CHECKED_OUT_ID, null);
-				addPropertyString(result, typeId, filter,
-						PropertyIds.CHECKIN_COMMENT, "");
-				if (context.getCmisVersion() != CmisVersion.CMIS_1_0) {
-					addPropertyBoolean(result, typeId, filter,
-							PropertyIds.IS_PRIVATE_WORKING_COPY, false);
-				}
+				addPropertyString(result, template, filter,
+						PropertyIds.VERSION_LABEL, name);
+				addPropertyId(result, template, filter,
+						PropertyIds.VERSION_SERIES_ID, id);
 
-				if (file.length() == 0) {
-					addPropertyBigInteger(result, typeId, filter,
+				if (attrs.getSize() == 0) {
+					addPropertyBigInteger(result, template, filter,
 							PropertyIds.CONTENT_STREAM_LENGTH, null);
-					addPropertyString(result, typeId, filter,
+					addPropertyString(result, template, filter,
 							PropertyIds.CONTENT_STREAM_MIME_TYPE, null);
-					addPropertyString(result, typeId, filter,
+					addPropertyString(result, template, filter,
 							PropertyIds.CONTENT_STREAM_FILE_NAME, null);
-
-					objectInfo.setHasContent(false);
-					objectInfo.setContentType(null);
-					objectInfo.setFileName(null);
 				} else {
-					addPropertyInteger(result, typeId, filter,
-							PropertyIds.CONTENT_STREAM_LENGTH, file.length());
-					addPropertyString(result, typeId, filter,
-							PropertyIds.CONTENT_STREAM_MIME_TYPE,
-							MimeTypes.getMIMEType(file));
-					addPropertyString(result, typeId, filter,
-							PropertyIds.CONTENT_STREAM_FILE_NAME,
-							file.getName());
-
-					objectInfo.setHasContent(true);
-					objectInfo.setContentType(MimeTypes.getMIMEType(file));
-					objectInfo.setFileName(file.getName());
+					if (objectInfo != null
+							|| filter.accepts(template.getType(),
+									PropertyIds.CONTENT_STREAM_MIME_TYPE)) {
+						mimeType = mimeTypes.getMimeType(attrs);
+					}
+
+					addPropertyInteger(result, template, filter,
+							PropertyIds.CONTENT_STREAM_LENGTH, attrs.getSize());
+					addPropertyString(result, template, filter,
+							PropertyIds.CONTENT_STREAM_MIME_TYPE, mimeType);
+					addPropertyString(result, template, filter,
+							PropertyIds.CONTENT_STREAM_FILE_NAME, name);
 				}
+			}
 
-				addPropertyId(result, typeId, filter,
-						PropertyIds.CONTENT_STREAM_ID, null);
+			// object info
+			if (objectInfo != null) {
+				objectInfo.setId(id);
+				objectInfo.setName(name);
+				objectInfo.setCreatedBy(USER_UNKNOWN);
+				objectInfo.setCreationDate(lastModified);
+				objectInfo.setLastModificationDate(lastModified);
+				objectInfo.setHasParent(hasParent);
+
+				if (!isFolder) {
+					boolean hasContent = (attrs.getSize() > 0);
+					objectInfo.setHasContent(hasContent);
+					objectInfo.setContentType(hasContent ? mimeType : null);
+					objectInfo.setFileName(hasContent ? name : null);
+				}
 			}
 
 			return result;
@@ -1581,6 +2950,79 @@ public class FileBridgeRepository {
 		}
 	}
 
+	/**
+	 * Checks the change token sent by the client against the current state
+	 * of the object. Clients that don't send a token are not checked.
+	 */
+	private static void checkChangeToken(File file,
+			Holder<String> changeToken) {
+		if (changeToken == null || changeToken.getValue() == null) {
+			return;
+		}
+
+		if (!changeToken.getValue().equals(
+				FileBridgeFileAttributes.read(file).getChangeToken())) {
+			throw new CmisUpdateConflictException(
+					"Object has been changed in the meantime!");
+		}
+	}
+
+	/**
+	 * Returns the lock that serializes the change token check and the update
+	 * of an object.
+	 */
+	private Object getUpdateLock(File file) {
+		int hash = getRepositoryPath(file).hashCode();
+		return updateLocks[(hash ^ (hash >>> 16)) & (UPDATE_LOCKS - 1)];
+	}
+
+	/**
+	 * Returns the new change token of a changed object to the client.
+	 */
+	private static void updateChangeToken(File file,
+			Holder<String> changeToken) {
+		if (changeToken != null) {
+			changeToken.setValue(FileBridgeFileAttributes.read(file)
+					.getChangeToken());
+		}
+	}
+
+	/**
+	 * Checks if documents may share their inode with a blob or with other
+	 * documents.
+	 */
+	private boolean mayShareContent() {
+		return blobStore != null
+				|| copier.getStrategies().contains(
+						FileBridgeCopier.Strategy.HARDLINK);
+	}
+
+	/**
+	 * Returns the modification time of an object. A document that shares its
+	 * inode reports the modification time of the content it has been linked
+	 * to, which may be older than the previous content. Linking updates the
+	 * status change time, which can't be set back, so the later of both is
+	 * used.
+	 */
+	private long getModificationTime(FileBridgeFileAttributes attrs) {
+		long lastModified = attrs.getLastModified();
+		if (!attrs.isFile() || !mayShareContent()) {
+			return lastModified;
+		}
+
+		try {
+			FileTime ctime = (FileTime) Files.getAttribute(attrs.getFile()
+					.toPath(), "unix:ctime");
+			return Math.max(lastModified, ctime.toMillis());
+		} catch (UnsupportedOperationException e) {
+			return lastModified;
+		} catch (IllegalArgumentException e) {
+			return lastModified;
+		} catch (IOException e) {
+			return lastModified;
+		}
+	}
+
 	/**
 	 * Checks a property set for a new object.
 	 */
@@ -1740,181 +3182,110 @@ public class FileBridgeRepository {
 		}
 	}
 
-	private void addPropertyId(PropertiesImpl props, String typeId,
-			Set<String> filter, String id, String value) {
-		if (!checkAddProperty(props, typeId, filter, id)) {
+	private void addPropertyId(PropertiesImpl props,
+			FileBridgePropertyTemplate template,
+			FileBridgePropertyFilter filter, String id, String value) {
+		if (!checkAddProperty(props, template, filter, id)) {
 			return;
 		}
 
-		props.addProperty(new PropertyIdImpl(id, value));
+		props.addProperty(template.newId(id, value));
 	}
 
-	private void addPropertyIdList(PropertiesImpl props, String typeId,
-			Set<String> filter, String id, List<String> value) {
-		if (!checkAddProperty(props, typeId, filter, id)) {
+	private void addPropertyString(PropertiesImpl props,
+			FileBridgePropertyTemplate template,
+			FileBridgePropertyFilter filter, String id, String value) {
+		if (!checkAddProperty(props, template, filter, id)) {
 			return;
 		}
 
-		props.addProperty(new PropertyIdImpl(id, value));
+		props.addProperty(template.newString(id, value));
 	}
 
-	private void addPropertyString(PropertiesImpl props, String typeId,
-			Set<String> filter, String id, String value) {
-		if (!checkAddProperty(props, typeId, filter, id)) {
-			return;
-		}
-
-		props.addProperty(new PropertyStringImpl(id, value));
-	}
-
-	private void addPropertyInteger(PropertiesImpl props, String typeId,
-			Set<String> filter, String id, long value) {
-		addPropertyBigInteger(props, typeId, filter, id,
+	private void addPropertyInteger(PropertiesImpl props,
+			FileBridgePropertyTemplate template,
+			FileBridgePropertyFilter filter, String id, long value) {
+		addPropertyBigInteger(props, template, filter, id,
 				BigInteger.valueOf(value));
 	}
 
-	private void addPropertyBigInteger(PropertiesImpl props, String typeId,
-			Set<String> filter, String id, BigInteger value) {
-		if (!checkAddProperty(props, typeId, filter, id)) {
-			return;
-		}
-
-		props.addProperty(new PropertyIntegerImpl(id, value));
-	}
-
-	private void addPropertyBoolean(PropertiesImpl props, String typeId,
-			Set<String> filter, String id, boolean value) {
-		if (!checkAddProperty(props, typeId, filter, id)) {
+	private void addPropertyBigInteger(PropertiesImpl props,
+			FileBridgePropertyTemplate template,
+			FileBridgePropertyFilter filter, String id, BigInteger value) {
+		if (!checkAddProperty(props, template, filter, id)) {
 			return;
 		}
 
-		props.addProperty(new PropertyBooleanImpl(id, value));
+		props.addProperty(template.newInteger(id, value));
 	}
 
-	private void addPropertyDateTime(PropertiesImpl props, String typeId,
-			Set<String> filter, String id, GregorianCalendar value) {
-		if (!checkAddProperty(props, typeId, filter, id)) {
+	private void addPropertyDateTime(PropertiesImpl props,
+			FileBridgePropertyTemplate template,
+			FileBridgePropertyFilter filter, String id,
+			GregorianCalendar value) {
+		if (!checkAddProperty(props, template, filter, id)) {
 			return;
 		}
 
-		props.addProperty(new PropertyDateTimeImpl(id, value));
+		props.addProperty(template.newDateTime(id, value));
 	}
 
-	private boolean checkAddProperty(Properties properties, String typeId,
-			Set<String> filter, String id) {
+	private boolean checkAddProperty(Properties properties,
+			FileBridgePropertyTemplate template,
+			FileBridgePropertyFilter filter, String id) {
 		if ((properties == null) || (properties.getProperties() == null)) {
 			throw new IllegalArgumentException("Properties must not be null!");
 		}
 
-		if (id == null) {
-			throw new IllegalArgumentException("Id must not be null!");
-		}
-
-		TypeDefinition type = typeManager.getInternalTypeDefinition(typeId);
-		if (type == null) {
-			throw new IllegalArgumentException("Unknown type: " + typeId);
-		}
-		if (!type.getPropertyDefinitions().containsKey(id)) {
-			throw new IllegalArgumentException("Unknown property: " + id);
-		}
-
-		String queryName = type.getPropertyDefinitions().get(id).getQueryName();
-
-		if ((queryName != null) && (filter != null)) {
-			if (!filter.contains(queryName)) {
-				return false;
-			} else {
-				filter.remove(queryName);
-			}
-		}
-
-		return true;
+		return template.accepts(filter, id);
 	}
 
 	/**
-	 * Compiles the allowable actions for a file or folder.
+	 * Compiles the allowable actions for a file or folder. The result is a
+	 * shared, immutable object.
 	 */
-	private AllowableActions compileAllowableActions(File file,
-			boolean userReadOnly) {
-		if (file == null) {
+	private AllowableActions compileAllowableActions(
+			FileBridgeFileAttributes attrs, boolean userReadOnly) {
+		if (attrs == null) {
 			throw new IllegalArgumentException("File must not be null!");
 		}
 
 		// we can't gather allowable actions if the file or folder doesn't exist
-		if (!file.exists()) {
+		if (!attrs.exists()) {
 			throw new CmisObjectNotFoundException("Object not found!");
 		}
 
-		boolean isReadOnly = !file.canWrite();
-		boolean isFolder = file.isDirectory();
-		boolean isRoot = root.equals(file);
-
-		Set<Action> aas = EnumSet.noneOf(Action.class);
-
-		addAction(aas, Action.CAN_GET_OBJECT_PARENTS, !isRoot);
-		addAction(aas, Action.CAN_GET_PROPERTIES, true);
-		addAction(aas, Action.CAN_UPDATE_PROPERTIES, !userReadOnly
-				&& !isReadOnly);
-		addAction(aas, Action.CAN_MOVE_OBJECT, !userReadOnly && !isRoot);
-		addAction(aas, Action.CAN_DELETE_OBJECT, !userReadOnly && !isReadOnly
-				&& !isRoot);
-		addAction(aas, Action.CAN_GET_ACL, true);
-
-		if (isFolder) {
-			addAction(aas, Action.CAN_GET_DESCENDANTS, true);
-			addAction(aas, Action.CAN_GET_CHILDREN, true);
-			addAction(aas, Action.CAN_GET_FOLDER_PARENT, !isRoot);
-			addAction(aas, Action.CAN_GET_FOLDER_TREE, true);
-			addAction(aas, Action.CAN_CREATE_DOCUMENT, !userReadOnly);
-			addAction(aas, Action.CAN_CREATE_FOLDER, !userReadOnly);
-			addAction(aas, Action.CAN_DELETE_TREE, !userReadOnly && !isReadOnly);
-		} else {
-			addAction(aas, Action.CAN_GET_CONTENT_STREAM, file.length() > 0);
-			addAction(aas, Action.CAN_SET_CONTENT_STREAM, !userReadOnly
-					&& !isReadOnly);
-			addAction(aas, Action.CAN_DELETE_CONTENT_STREAM, !userReadOnly
-					&& !isReadOnly);
-			addAction(aas, Action.CAN_GET_ALL_VERSIONS, true);
-		}
-
-		AllowableActionsImpl result = new AllowableActionsImpl();
-		result.setAllowableActions(aas);
+		boolean isFolder = attrs.isDirectory();
+		boolean isRoot = isFolder && root.equals(attrs.getFile());
 
-		return result;
+		return permissionTable.getAllowableActions(isFolder, isRoot,
+				attrs.canWrite(), attrs.getSize() > 0, userReadOnly);
 	}
 
-	private void addAction(Set<Action> aas, Action action, boolean condition) {
-		if (condition) {
-			aas.add(action);
-		}
+	/**
+	 * Compiles the ACL for a file or folder. The result is a shared, immutable
+	 * object.
+	 */
+	private Acl compileAcl(FileBridgeFileAttributes attrs) {
+		return permissionTable.getAcl(attrs.canWrite());
 	}
 
 	/**
-	 * Compiles the ACL for a file or folder.
+	 * Returns the compiled version of a filter string.
 	 */
-	private Acl compileAcl(File file) {
-		AccessControlListImpl result = new AccessControlListImpl();
-		result.setAces(new ArrayList<Ace>());
-
-		for (Map.Entry<String, Boolean> ue : readWriteUserMap.entrySet()) {
-			// create principal
-			AccessControlPrincipalDataImpl principal = new AccessControlPrincipalDataImpl();
-			principal.setPrincipalId(ue.getKey());
+	private FileBridgePropertyFilter compileFilter(String filter) {
+		if (filter == null) {
+			return FileBridgePropertyFilter.ALL;
+		}
 
-			// create ACE
-			AccessControlEntryImpl entry = new AccessControlEntryImpl();
-			entry.setPrincipal(principal);
-			entry.setPermissions(new ArrayList<String>());
-			entry.getPermissions().add(CMIS_READ);
-			if (!ue.getValue().booleanValue() && file.canWrite()) {
-				entry.getPermissions().add(CMIS_WRITE);
-				entry.getPermissions().add(CMIS_ALL);
+		FileBridgePropertyFilter result = filterCache.get(filter);
+		if (result == null) {
+			if (filterCache.size() >= MAX_CACHED_FILTERS) {
+				filterCache.clear();
 			}
 
-			entry.setDirect(true);
-
-			// add ACE
-			result.getAces().add(entry);
+			result = FileBridgePropertyFilter.compile(filter, typeManager);
+			filterCache.put(filter, result);
 		}
 
 		return result;
@@ -1939,6 +3310,21 @@ public class FileBridgeRepository {
 		return true;
 	}
 
+	/**
+	 * Reads one page of the visible children of a folder. With a listing
+	 * cache, the children are sorted by name.
+	 */
+	private FileBridgeFolderListing.Page getChildrenPage(File folder,
+			FileBridgeFolderListing.Kind kind, int skip, int max) {
+		FileBridgeListingCache listings = listingCache;
+		if (listings == null) {
+			return FileBridgeFolderListing.page(folder, kind, skip, max);
+		}
+
+		return listings.getPage(getRepositoryPath(folder), folder, kind, skip,
+				max);
+	}
+
 	/**
 	 * Checks if a folder is empty. A folder is considered as empty if no files
 	 * or only the shadow file reside in the folder.
@@ -2007,9 +3393,27 @@ public class FileBridgeRepository {
 			return root;
 		}
 
-		return new File(root, (new String(
-				Base64.decode(id.getBytes("US-ASCII")), "UTF-8")).replace('/',
-				File.separatorChar));
+		FileBridgeIdIndex index = idIndex;
+		if (index != null) {
+			String path = index.getPath(id);
+			if (path == null) {
+				throw new CmisObjectNotFoundException("Unknown object id!");
+			}
+
+			return new File(root, path.replace('/', File.separatorChar));
+		}
+
+		FileBridgeIdCache cache = idCache;
+
+		String path = (cache == null ? null : cache.getPath(id));
+		if (path == null) {
+			path = new String(Base64.decode(id.getBytes("US-ASCII")), "UTF-8");
+			if (cache != null) {
+				cache.put(path, id);
+			}
+		}
+
+		return new File(root, path.replace('/', File.separatorChar));
 	}
 
 	/**
@@ -2038,7 +3442,426 @@ public class FileBridgeRepository {
 
 		String path = getRepositoryPath(file);
 
-		return Base64.encodeBytes(path.getBytes("UTF-8"));
+		FileBridgeIdIndex index = idIndex;
+		if (index != null) {
+			return index.getId(path);
+		}
+
+		FileBridgeIdCache cache = idCache;
+
+		String id = (cache == null ? null : cache.getId(path));
+		if (id == null) {
+			id = Base64.encodeBytes(path.getBytes("UTF-8"));
+			if (cache != null) {
+				cache.put(path, id);
+			}
+		}
+
+		return id;
+	}
+
+	/**
+	 * Updates ids and cached data of a file or folder that has been moved or
+	 * renamed.
+	 */
+	private void objectMoved(File oldFile, File newFile) {
+		String oldPath = getRepositoryPath(oldFile);
+		boolean isFolder = newFile.isDirectory();
+
+		// an indexed id has to be looked up before the index is updated
+		FileBridgeChangeLog log = changeLog;
+		FileBridgeIdIndex index = idIndex;
+		String indexedId = (log != null && index != null ? getId(oldFile)
+				: null);
+
+		FileBridgeIdCache cache = idCache;
+		if (cache != null) {
+			cache.invalidate(oldPath, isFolder);
+		}
+
+		FileBridgeBlockCache contentCache = blockCache;
+		if (contentCache != null) {
+			contentCache.invalidate(oldPath, isFolder);
+		}
+
+		if (index != null) {
+			index.move(oldPath, getRepositoryPath(newFile), isFolder);
+		}
+
+		listingChanged(oldFile, isFolder);
+		listingChanged(newFile, false);
+
+		FileBridgeUploadSessions sessions = uploadSessions;
+		if (sessions != null) {
+			sessions.move(oldPath, getRepositoryPath(newFile), isFolder,
+					oldFile.toPath(), newFile.toPath());
+		}
+
+		FileBridgeMetadataIndex metadata = metadataIndex;
+		if (metadata != null) {
+			metadata.move(oldPath, newFile);
+		}
+
+		// the move has happened, a change log failure must not hide it
+		if (log != null) {
+			try {
+				recordMove(log, indexedId, oldFile, newFile, isFolder);
+			} catch (RuntimeException e) {
+				LOG.warn("Could not record the move of {} in the change log: {}",
+						newFile, e.toString());
+			}
+		}
+	}
+
+	/**
+	 * Drops ids and cached data of a file or folder that has been deleted. If
+	 * <code>recursive</code> is set, the data of the folder content is dropped
+	 * as well.
+	 */
+	private void objectDeleted(File file, boolean recursive) {
+		String path = getRepositoryPath(file);
+
+		FileBridgeIdCache cache = idCache;
+		if (cache != null) {
+			cache.invalidate(path, recursive);
+		}
+
+		FileBridgeBlockCache contentCache = blockCache;
+		if (contentCache != null) {
+			contentCache.invalidate(path, recursive);
+		}
+
+		FileBridgeIdIndex index = idIndex;
+		if (index != null) {
+			index.remove(path, recursive);
+		}
+
+		listingChanged(file, recursive);
+
+		FileBridgeUploadSessions sessions = uploadSessions;
+		if (sessions != null) {
+			sessions.abort(path, recursive);
+		}
+
+		FileBridgeMetadataIndex metadata = metadataIndex;
+		if (metadata != null) {
+			metadata.remove(path, recursive);
+		}
+
+		// blobs may have lost their last document
+		FileBridgeBlobStore store = blobStore;
+		if (store != null) {
+			store.requestCollection();
+		}
+	}
+
+	/**
+	 * Drops cached data of a document whose content has been changed.
+	 */
+	private void objectContentChanged(File file) {
+		FileBridgeChangeLog log = changeLog;
+		if (log != null) {
+			log.record(ChangeType.UPDATED, getId(file));
+		}
+
+		FileBridgeBlockCache contentCache = blockCache;
+		if (contentCache != null) {
+			contentCache.invalidate(getRepositoryPath(file), false);
+		}
+
+		// the listing of the parent holds the old size
+		listingChanged(file, false);
+
+		FileBridgeMetadataIndex metadata = metadataIndex;
+		if (metadata != null) {
+			metadata.update(file);
+		}
+
+		FileBridgeBlobStore store = blobStore;
+		if (store != null) {
+			store.requestCollection();
+		}
+	}
+
+	/**
+	 * Handles a change that the watcher has seen. Changes made by this
+	 * repository have already been handled, but stale cached data is dropped
+	 * again to be safe.
+	 */
+	private void externalChange(String path, FileBridgeWatcher.Kind kind,
+			boolean isFolder) {
+		File file = new File(root, path.replace('/', File.separatorChar));
+		FileBridgeChangeLog log = changeLog;
+		boolean record = (log != null && !isExpectedChange(path));
+
+		listingChanged(file, isFolder
+				&& kind != FileBridgeWatcher.Kind.CREATED);
+
+		FileBridgeMetadataIndex metadata = metadataIndex;
+
+		if (kind == FileBridgeWatcher.Kind.CREATED) {
+			if (record && file.exists()) {
+				log.record(ChangeType.CREATED, getId(file));
+			}
+			// a folder may have been moved in with its content
+			if (metadata != null) {
+				if (isFolder) {
+					metadata.updateTree(file);
+				} else {
+					metadata.update(file);
+				}
+			}
+		} else if (kind == FileBridgeWatcher.Kind.MODIFIED) {
+			if (metadata != null) {
+				metadata.update(file);
+			}
+			if (!isFolder) {
+				FileBridgeBlockCache contentCache = blockCache;
+				if (contentCache != null) {
+					contentCache.invalidate(path, false);
+				}
+				if (record && file.exists()) {
+					log.record(ChangeType.UPDATED, getId(file));
+				}
+			}
+		} else if (kind == FileBridgeWatcher.Kind.DELETED) {
+			// the path may have been taken by a new object in the meantime
+			if (!file.exists()) {
+				if (record) {
+					recordDeletion(file);
+				}
+				objectDeleted(file, isFolder);
+			}
+		} else if (kind == FileBridgeWatcher.Kind.OVERFLOW) {
+			FileBridgeIdCache cache = idCache;
+			if (cache != null) {
+				cache.invalidate(path, true);
+			}
+			FileBridgeBlockCache contentCache = blockCache;
+			if (contentCache != null) {
+				contentCache.invalidate(path, true);
+			}
+			if (metadata != null) {
+				metadata.updateTree(file);
+			}
+			if (record && file.exists()) {
+				log.record(ChangeType.UPDATED, getId(file));
+			}
+		}
+	}
+
+	/**
+	 * Drops the cached listing of the parent of a changed file or folder and,
+	 * if <code>recursive</code> is set, the listings of the folder and the
+	 * folders below it.
+	 */
+	private void listingChanged(File file, boolean recursive) {
+		FileBridgeListingCache listings = listingCache;
+		if (listings == null) {
+			return;
+		}
+
+		if (!root.equals(file)) {
+			listings.invalidate(getRepositoryPath(file.getParentFile()),
+					false);
+		}
+
+		if (recursive) {
+			listings.invalidate(getRepositoryPath(file), true);
+		}
+	}
+
+	/**
+	 * Tells the watcher that this repository is about to change a file or
+	 * folder (and, if <code>recursive</code> is set, its content).
+	 */
+	private void expectChange(File file, boolean recursive) {
+		if (watcher == null || changeLog == null) {
+			return;
+		}
+
+		String path = getRepositoryPath(file);
+		long deadline = System.currentTimeMillis() + OWN_CHANGE_TTL;
+		synchronized (ownChanges) {
+			ownChanges.remove(path);
+			ownChanges.put(path, new OwnChange(deadline));
+			if (recursive) {
+				ownChanges.remove(path + "/");
+				ownChanges.put(path + "/", new OwnChange(deadline));
+			}
+
+			// entries are in deadline order
+			Iterator<Map.Entry<String, OwnChange>> iter = ownChanges
+					.entrySet().iterator();
+			long now = System.currentTimeMillis();
+			while (iter.hasNext()) {
+				Map.Entry<String, OwnChange> e = iter.next();
+				if (e.getValue().deadline > now
+						&& ownChanges.size() <= MAX_OWN_CHANGES) {
+					break;
+				}
+				iter.remove();
+			}
+		}
+	}
+
+	/**
+	 * Checks if a change has been made by this repository. The first event
+	 * of an expected change narrows the expectation to the events that
+	 * follow right after it, so later changes of other processes are
+	 * recorded.
+	 */
+	private boolean isExpectedChange(String path) {
+		long now = System.currentTimeMillis();
+		synchronized (ownChanges) {
+			if (ownChanges.isEmpty()) {
+				return false;
+			}
+
+			if (matchOwnChange(ownChanges.get(path), now)) {
+				return true;
+			}
+
+			// content of a moved or deleted folder
+			for (int i = path.lastIndexOf('/'); i >= 0; i = path
+					.lastIndexOf('/', i - 1)) {
+				if (matchOwnChange(ownChanges.get(path.substring(0, i) + "/"),
+						now)) {
+					return true;
+				}
+				if (i == 0) {
+					break;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	private static boolean matchOwnChange(OwnChange change, long now) {
+		if (change == null || change.expires <= now) {
+			return false;
+		}
+
+		change.expires = Math.min(change.deadline, now + OWN_CHANGE_GRACE);
+		return true;
+	}
+
+	/**
+	 * A change this repository has made and the watcher is going to report.
+	 */
+	private static class OwnChange {
+		final long deadline;
+		/** Deadline or, once an event has arrived, the end of its grace time. */
+		long expires;
+
+		OwnChange(long deadline) {
+			this.deadline = deadline;
+			this.expires = deadline;
+		}
+	}
+
+	/**
+	 * Records a new file or folder in the change log and returns its id.
+	 */
+	private String objectCreated(File file) {
+		String id = getId(file);
+
+		listingChanged(file, false);
+
+		FileBridgeMetadataIndex metadata = metadataIndex;
+		if (metadata != null) {
+			metadata.update(file);
+		}
+
+		FileBridgeChangeLog log = changeLog;
+		if (log != null) {
+			log.record(ChangeType.CREATED, id);
+		}
+
+		return id;
+	}
+
+	/**
+	 * Records a deleted file or folder in the change log. Must be called
+	 * before the id index forgets the path.
+	 */
+	private void recordDeletion(File file) {
+		FileBridgeChangeLog log = changeLog;
+		if (log == null) {
+			return;
+		}
+
+		String id;
+		FileBridgeIdIndex index = idIndex;
+		if (index != null) {
+			// objects that never got an id are unknown to clients
+			id = index.findId(getRepositoryPath(file));
+			if (id == null) {
+				return;
+			}
+		} else {
+			id = getId(file);
+		}
+
+		log.record(ChangeType.DELETED, id);
+	}
+
+	/**
+	 * Records a move or rename in the change log. Indexed ids survive a move.
+	 * Ids derived from paths change, also for the content of a folder, so
+	 * the objects are recorded as deleted and created again.
+	 *
+	 * @param indexedId
+	 *            the id of the object in the id index or <code>null</code> if
+	 *            ids are derived from paths
+	 */
+	private void recordMove(final FileBridgeChangeLog log, String indexedId,
+			final File oldFile, final File newFile, boolean isFolder) {
+		if (indexedId != null) {
+			log.record(ChangeType.UPDATED, indexedId);
+			return;
+		}
+
+		if (!isFolder) {
+			log.record(ChangeType.DELETED, getId(oldFile));
+			log.record(ChangeType.CREATED, getId(newFile));
+			return;
+		}
+
+		final Path newDir = newFile.toPath();
+		try {
+			Files.walkFileTree(newDir, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir,
+						BasicFileAttributes attrs) {
+					return record(dir);
+				}
+
+				@Override
+				public FileVisitResult visitFile(Path file,
+						BasicFileAttributes attrs) {
+					return record(file);
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file,
+						IOException exc) {
+					return record(file);
+				}
+
+				private FileVisitResult record(Path path) {
+					File oldPath = new File(oldFile, newDir.relativize(path)
+							.toString());
+					log.record(ChangeType.DELETED, getId(oldPath));
+					log.record(ChangeType.CREATED, getId(path.toFile()));
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			throw new CmisStorageException("Could not record move: "
+					+ e.getMessage(), e);
+		}
 	}
 
 	private String getRepositoryPath(File file) {
@@ -0,0 +1,556 @@
+/*
+ * Copyright 2013 Florian Müller & Jay Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is based on the Apache Chemistry OpenCMIS FileShare project
+ * <http://chemistry.apache.org/java/developing/repositories/dev-repositories-fileshare.html>.
+ *
+ * It is part of a training exercise and not intended for production use!
+ *
+ */
+package org.example.cmis.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.chemistry.opencmis.commons.impl.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Deletes folder trees in the background.
+ *
+ * A folder is renamed into a hidden trash directory below the repository
+ * root, which makes it disappear from the repository at once. Its content is
+ * then deleted by a pool of background threads, one folder per task, at a
+ * limited rate so that deletions don't starve the requests of the file
+ * system.
+ *
+ * The original path of each trashed folder is kept in a small file next to
+ * it. Trash left over from a previous run is deleted when the trash is
+ * opened.
+ */
+public class FileBridgeTrash {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileBridgeTrash.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Name of the trash directory below the repository root. */
+    public static final String TRASH_DIR = ".cmis-trash";
+
+    private static final String ORIGIN_SUFFIX = ".origin";
+
+    /** Maximum number of failed paths a job remembers. */
+    private static final int MAX_FAILURES = 1000;
+
+    /**
+     * Learns about finished jobs. Called concurrently.
+     */
+    public interface Listener {
+        /**
+         * Called when a job has deleted what it could, or has been
+         * cancelled.
+         */
+        void finished(Job job);
+    }
+
+    /**
+     * Deletion of one trashed folder.
+     */
+    public static final class Job {
+        private final String origin;
+        private final Path entry;
+        private final long started;
+        private final AtomicLong deleted = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final List<String> failures = new ArrayList<String>();
+        private volatile boolean cancelled;
+        private volatile boolean done;
+
+        private Job(String origin, Path entry) {
+            this.origin = origin;
+            this.entry = entry;
+            this.started = System.currentTimeMillis();
+        }
+
+        /**
+         * Returns the repository path of the folder or <code>null</code> if
+         * it is unknown.
+         */
+        public String getOrigin() {
+            return origin;
+        }
+
+        /**
+         * Returns the number of files and folders deleted so far.
+         */
+        public long getDeleted() {
+            return deleted.get();
+        }
+
+        /**
+         * Returns the number of files and folders that couldn't be deleted.
+         */
+        public long getFailed() {
+            return failed.get();
+        }
+
+        /**
+         * Returns the paths, relative to the trashed folder, of the first
+         * files and folders that couldn't be deleted.
+         */
+        public List<String> getFailures() {
+            synchronized (failures) {
+                return new ArrayList<String>(failures);
+            }
+        }
+
+        public boolean isDone() {
+            return done;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * Stops the deletion. The remaining content stays in the trash and is
+         * deleted when the trash is opened again.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * Waits until the job is done.
+         *
+         * @return <code>true</code> if the job is done
+         */
+        public boolean await(long timeout) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeout;
+            synchronized (this) {
+                while (!done) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        return false;
+                    }
+                    wait(wait);
+                }
+            }
+
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return "TrashJob [origin=" + origin + ", deleted=" + deleted.get() + ", failed=" + failed.get()
+                    + (cancelled ? ", cancelled" : "") + (done ? ", done" : "") + "]";
+        }
+
+        private void failed(String path) {
+            failed.incrementAndGet();
+            synchronized (failures) {
+                if (failures.size() < MAX_FAILURES) {
+                    failures.add(path);
+                }
+            }
+        }
+
+        private void finish() {
+            synchronized (this) {
+                done = true;
+                notifyAll();
+            }
+        }
+    }
+
+    private final Path dir;
+    private final int threads;
+    private final long maxRate;
+    private final Listener listener;
+    private final ExecutorService executor;
+    private final List<Job> jobs = new CopyOnWriteArrayList<Job>();
+    private final AtomicLong counter = new AtomicLong();
+    private final AtomicLong purged = new AtomicLong();
+
+    /** Time of the next deletion slot, for rate limiting. */
+    private long nextSlot;
+
+    /**
+     * Opens the trash of a repository and starts deleting leftovers.
+     *
+     * @param threads
+     *            the number of background threads
+     * @param maxRate
+     *            the maximum number of deletions per second or 0 for no
+     *            limit
+     */
+    public FileBridgeTrash(File root, int threads, long maxRate, Listener listener) {
+        if (threads < 1 || maxRate < 0) {
+            throw new IllegalArgumentException("Invalid trash settings!");
+        }
+
+        this.dir = new File(root, TRASH_DIR).getAbsoluteFile().toPath();
+        this.threads = threads;
+        this.maxRate = maxRate;
+        this.listener = listener;
+        this.nextSlot = System.nanoTime();
+
+        try {
+            Files.createDirectories(dir);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not create trash " + dir + ": " + e.getMessage(), e);
+        }
+
+        try {
+            // file systems without hidden names
+            Files.setAttribute(dir, "dos:hidden", Boolean.TRUE, LinkOption.NOFOLLOW_LINKS);
+        } catch (Exception e) {
+            // names starting with a dot are hidden
+        }
+
+        final AtomicInteger threadNumber = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "FileBridge Trash " + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            }
+        });
+
+        resume();
+    }
+
+    /**
+     * Moves a folder into the trash and starts deleting it.
+     *
+     * @param origin
+     *            the repository path of the folder
+     *
+     * @throws IOException
+     *             if the folder couldn't be moved, the folder is left as it
+     *             is
+     */
+    public Job trash(File folder, String origin) throws IOException {
+        String name = Long.toHexString(System.currentTimeMillis()) + "-" + counter.incrementAndGet();
+        Path entry = dir.resolve(name);
+        Path originFile = dir.resolve(name + ORIGIN_SUFFIX);
+
+        // the origin must be known before the folder arrives
+        Files.write(originFile, origin.getBytes(UTF8));
+        try {
+            Files.move(folder.toPath(), entry, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(originFile);
+            throw e;
+        }
+
+        return start(origin, entry);
+    }
+
+    /**
+     * Returns the jobs that are still running.
+     */
+    public List<Job> getJobs() {
+        return new ArrayList<Job>(jobs);
+    }
+
+    /**
+     * Returns the number of files and folders deleted by all jobs.
+     */
+    public long getPurged() {
+        return purged.get();
+    }
+
+    public Path getDirectory() {
+        return dir;
+    }
+
+    /**
+     * Cancels all jobs and stops the background threads.
+     */
+    public void shutdown() {
+        for (Job job : jobs) {
+            job.cancel();
+        }
+        executor.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return "Trash [dir=" + dir + ", threads=" + threads + ", maxRate=" + maxRate + ", jobs=" + jobs.size()
+                + ", purged=" + purged.get() + "]";
+    }
+
+    // --- internal ---
+
+    /**
+     * Starts jobs for trash left over from a previous run.
+     */
+    private void resume() {
+        List<Path> entries = new ArrayList<Path>();
+        DirectoryStream<Path> stream = null;
+        try {
+            stream = Files.newDirectoryStream(dir);
+            for (Path path : stream) {
+                entries.add(path);
+            }
+        } catch (IOException e) {
+            LOG.warn("Could not read trash {}: {}", dir, e.toString());
+        } catch (DirectoryIteratorException e) {
+            LOG.warn("Could not read trash {}: {}", dir, e.getCause().toString());
+        } finally {
+            IOUtils.closeQuietly(stream);
+        }
+
+        for (Path path : entries) {
+            String name = path.getFileName().toString();
+            if (name.endsWith(ORIGIN_SUFFIX)) {
+                Path entry = path.resolveSibling(name.substring(0, name.length() - ORIGIN_SUFFIX.length()));
+                if (!Files.exists(entry, LinkOption.NOFOLLOW_LINKS)) {
+                    deleteQuietly(path);
+                }
+                continue;
+            }
+
+            String origin = null;
+            try {
+                origin = new String(Files.readAllBytes(path.resolveSibling(name + ORIGIN_SUFFIX)), UTF8);
+            } catch (IOException e) {
+                // unknown origin
+            }
+
+            LOG.info("Deleting leftover trash {} ({}).", path, origin);
+            start(origin, path);
+        }
+    }
+
+    private Job start(String origin, Path entry) {
+        Job job = new Job(origin, entry);
+        jobs.add(job);
+
+        if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+            submit(new FolderTask(job, entry, "", null));
+        } else {
+            // a single file
+            delete(job, entry, "");
+            finish(job);
+        }
+
+        return job;
+    }
+
+    private void submit(FolderTask task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // shutting down, the rest is deleted next time
+            task.job.cancel();
+            // the task won't run, it has to count itself out
+            task.childDone();
+        }
+    }
+
+    private void finish(Job job) {
+        jobs.remove(job);
+
+        if (job.failed.get() == 0 && !job.cancelled) {
+            deleteQuietly(job.entry.resolveSibling(job.entry.getFileName() + ORIGIN_SUFFIX));
+        }
+
+        if (job.failed.get() > 0) {
+            List<String> failures = job.getFailures();
+            LOG.warn("Could not delete {} objects of {} in {}, first failures: {}", job.failed.get(), job.origin,
+                    job.entry, failures.subList(0, Math.min(10, failures.size())));
+        } else if (!job.cancelled) {
+            LOG.debug("Deleted {} objects of {} in {} ms.", job.deleted.get(), job.origin,
+                    System.currentTimeMillis() - job.started);
+        }
+
+        if (listener != null) {
+            try {
+                listener.finished(job);
+            } catch (RuntimeException e) {
+                LOG.warn("Trash listener failed on {}: {}", job.origin, e.toString(), e);
+            }
+        }
+
+        job.finish();
+    }
+
+    /**
+     * Deletes a file or an empty folder at the permitted rate.
+     */
+    private boolean delete(Job job, Path path, String relativePath) {
+        if (!throttle()) {
+            job.cancel();
+            return false;
+        }
+
+        try {
+            Files.delete(path);
+        } catch (NoSuchFileException e) {
+            // gone anyway
+        } catch (IOException e) {
+            job.failed(relativePath.length() == 0 ? "/" : relativePath);
+            return false;
+        }
+
+        job.deleted.incrementAndGet();
+        purged.incrementAndGet();
+
+        return true;
+    }
+
+    /**
+     * Waits for the next deletion slot.
+     *
+     * @return <code>false</code> if the thread has been interrupted
+     */
+    private boolean throttle() {
+        if (maxRate == 0) {
+            return true;
+        }
+
+        long interval = TimeUnit.SECONDS.toNanos(1) / maxRate;
+        long now = System.nanoTime();
+        long slot;
+        synchronized (this) {
+            // nano times may be negative, compare differences only
+            slot = (nextSlot - now > 0 ? nextSlot : now);
+            nextSlot = slot + interval;
+        }
+
+        try {
+            TimeUnit.NANOSECONDS.sleep(slot - now);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * Deletes the files of a folder and hands its subfolders to other tasks.
+     * The folder itself is deleted by the last task that finishes below it.
+     */
+    private final class FolderTask implements Runnable {
+        private final Job job;
+        private final Path folder;
+        private final String relativePath;
+        private final FolderTask parent;
+        /** This task and the subfolder tasks that haven't finished yet. */
+        private final AtomicInteger pending = new AtomicInteger(1);
+
+        FolderTask(Job job, Path folder, String relativePath, FolderTask parent) {
+            this.job = job;
+            this.folder = folder;
+            this.relativePath = relativePath;
+            this.parent = parent;
+        }
+
+        public void run() {
+            if (!job.cancelled) {
+                try {
+                    deleteContent();
+                } catch (RuntimeException e) {
+                    LOG.warn("Could not empty {}: {}", folder, e.toString(), e);
+                    job.failed(relativePath);
+                }
+            }
+
+            childDone();
+        }
+
+        private void deleteContent() {
+            List<FolderTask> subtasks = new ArrayList<FolderTask>();
+
+            DirectoryStream<Path> stream = null;
+            try {
+                stream = Files.newDirectoryStream(folder);
+                for (Path child : stream) {
+                    if (job.cancelled) {
+                        break;
+                    }
+
+                    String childPath = relativePath + "/" + child.getFileName();
+                    if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                        subtasks.add(new FolderTask(job, child, childPath, this));
+                    } else {
+                        delete(job, child, childPath);
+                    }
+                }
+            } catch (IOException e) {
+                job.failed(relativePath);
+            } catch (DirectoryIteratorException e) {
+                job.failed(relativePath);
+            } finally {
+                IOUtils.closeQuietly(stream);
+            }
+
+            pending.addAndGet(subtasks.size());
+            for (FolderTask subtask : subtasks) {
+                submit(subtask);
+            }
+        }
+
+        /**
+         * Called when this task or one of its subfolder tasks has finished.
+         */
+        private void childDone() {
+            if (pending.decrementAndGet() > 0) {
+                return;
+            }
+
+            if (!job.cancelled) {
+                delete(job, folder, relativePath);
+            }
+
+            if (parent != null) {
+                parent.childDone();
+            } else {
+                finish(job);
+            }
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2013 Florian Müller & Jay Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is based on the Apache Chemistry OpenCMIS FileShare project
+ * <http://chemistry.apache.org/java/developing/repositories/dev-repositories-fileshare.html>.
+ *
+ * It is part of a training exercise and not intended for production use!
+ *
+ */
+package org.example.cmis.server;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.chemistry.opencmis.commons.data.ObjectInFolderContainer;
+import org.apache.chemistry.opencmis.commons.data.ObjectInFolderData;
+import org.apache.chemistry.opencmis.commons.impl.dataobjects.ObjectInFolderContainerImpl;
+
+/**
+ * Builds descendant trees for getDescendants and getFolderTree.
+ *
+ * Sibling subtrees are listed and compiled concurrently on a shared
+ * {@link ForkJoinPool}. Each request may only occupy a limited number of
+ * threads: a subtree is only handed to the pool if the request has a permit
+ * left, otherwise it is walked by the thread that found it. Children are
+ * always sorted by name and every subtree fills its own list, so the result
+ * doesn't depend on the order in which the threads finish.
+ *
+ * Without a pool, the tree is walked on the calling thread.
+ */
+public class FileBridgeTreeWalker {
+
+    private static final Comparator<FileBridgeFileAttributes> BY_NAME = new Comparator<FileBridgeFileAttributes>() {
+        public int compare(FileBridgeFileAttributes a, FileBridgeFileAttributes b) {
+            return a.getName().compareTo(b.getName());
+        }
+    };
+
+    /**
+     * Lists folders and compiles their children. Called concurrently.
+     */
+    public interface Callback {
+        /**
+         * Returns the visible children of a folder that belong in the tree.
+         *
+         * @param maxItems
+         *            the maximum number of children or -1 for all children
+         */
+        FileBridgeFolderListing.Page getChildren(File folder, int maxItems);
+
+        /**
+         * Compiles a child.
+         */
+        ObjectInFolderData compile(FileBridgeFileAttributes child);
+    }
+
+    private final ForkJoinPool pool;
+    private final int requestParallelism;
+
+    /**
+     * Creates a walker.
+     *
+     * @param threads
+     *            the number of pool threads or 0 to walk on the calling
+     *            thread
+     * @param requestParallelism
+     *            the maximum number of threads a single request may use
+     */
+    public FileBridgeTreeWalker(int threads, int requestParallelism) {
+        if (threads < 0 || requestParallelism < 1) {
+            throw new IllegalArgumentException("Invalid tree walker parallelism!");
+        }
+
+        this.pool = (threads > 0 ? new ForkJoinPool(threads) : null);
+        this.requestParallelism = (pool == null ? 1 : Math.min(requestParallelism, threads));
+    }
+
+    /**
+     * Builds the tree below a folder.
+     *
+     * @param depth
+     *            the number of levels or -1 for all levels
+     */
+    public List<ObjectInFolderContainer> walk(File folder, int depth, Callback callback) {
+        Request request = new Request(callback, requestParallelism);
+        List<ObjectInFolderContainer> result = new ArrayList<ObjectInFolderContainer>();
+        FolderTask task = new FolderTask(request, folder, depth, result);
+
+        if (pool == null || requestParallelism == 1) {
+            task.invoke();
+        } else {
+            pool.invoke(task);
+        }
+
+        RuntimeException error = request.error.get();
+        if (error != null) {
+            throw error;
+        }
+
+        return result;
+    }
+
+    /**
+     * Stops the pool threads.
+     */
+    public void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    public int getThreads() {
+        return (pool == null ? 0 : pool.getParallelism());
+    }
+
+    public int getRequestParallelism() {
+        return requestParallelism;
+    }
+
+    @Override
+    public String toString() {
+        return "TreeWalker [threads=" + getThreads() + ", requestParallelism=" + requestParallelism + "]";
+    }
+
+    // --- internal ---
+
+    /**
+     * State shared by the tasks of a request.
+     */
+    private static final class Request {
+        final Callback callback;
+        /** Threads the request may occupy in addition to the first one. */
+        final Semaphore permits;
+        /** The first failure, which stops the walk. */
+        final AtomicReference<RuntimeException> error;
+
+        Request(Callback callback, int parallelism) {
+            this.callback = callback;
+            this.permits = new Semaphore(parallelism - 1);
+            this.error = new AtomicReference<RuntimeException>();
+        }
+    }
+
+    /**
+     * Lists a folder and walks its subfolders.
+     */
+    private static final class FolderTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Request request;
+        private final File folder;
+        private final int depth;
+        private final List<ObjectInFolderContainer> target;
+        /** Set if the task holds a permit of the request. */
+        private boolean forked;
+
+        FolderTask(Request request, File folder, int depth, List<ObjectInFolderContainer> target) {
+            this.request = request;
+            this.folder = folder;
+            this.depth = depth;
+            this.target = target;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                walk();
+            } catch (RuntimeException e) {
+                request.error.compareAndSet(null, e);
+            } finally {
+                if (forked) {
+                    request.permits.release();
+                }
+            }
+        }
+
+        private void walk() {
+            if (request.error.get() != null) {
+                return;
+            }
+
+            List<FileBridgeFileAttributes> children = new ArrayList<FileBridgeFileAttributes>(
+                    request.callback.getChildren(folder, -1).getEntries());
+            Collections.sort(children, BY_NAME);
+
+            List<FolderTask> subtasks = new ArrayList<FolderTask>();
+            for (FileBridgeFileAttributes child : children) {
+                ObjectInFolderContainerImpl container = new ObjectInFolderContainerImpl(request.callback.compile(child));
+                target.add(container);
+
+                if (depth != 1 && child.isDirectory()) {
+                    container.setChildren(new ArrayList<ObjectInFolderContainer>());
+                    subtasks.add(new FolderTask(request, child.getFile(), depth - 1, container.getChildren()));
+                }
+            }
+
+            // hand subtrees to other threads while the request has permits
+            // and walk the rest here
+            List<FolderTask> forkedTasks = new ArrayList<FolderTask>();
+            List<FolderTask> localTasks = new ArrayList<FolderTask>();
+            for (int i = 0; i < subtasks.size(); i++) {
+                FolderTask subtask = subtasks.get(i);
+                if (i < subtasks.size() - 1 && inForkJoinPool() && request.permits.tryAcquire()) {
+                    subtask.forked = true;
+                    subtask.fork();
+                    forkedTasks.add(subtask);
+                } else {
+                    localTasks.add(subtask);
+                }
+            }
+
+            for (FolderTask subtask : localTasks) {
+                subtask.compute();
+            }
+
+            for (FolderTask forkedTask : forkedTasks) {
+                forkedTask.join();
+            }
+        }
+    }
+}
@@ -36,6 +36,7 @@ import org.apache.chemistry.opencmis.commons.definitions.PropertyDefinition;
 import org.apache.chemistry.opencmis.commons.definitions.TypeDefinition;
 import org.apache.chemistry.opencmis.commons.definitions.TypeDefinitionContainer;
 import org.apache.chemistry.opencmis.commons.definitions.TypeDefinitionList;
+import org.apache.chemistry.opencmis.commons.enums.BaseTypeId;
 import org.apache.chemistry.opencmis.commons.enums.CmisVersion;
 import org.apache.chemistry.opencmis.commons.exceptions.CmisObjectNotFoundException;
 import org.apache.chemistry.opencmis.commons.server.CallContext;
@@ -147,25 +148,85 @@ public class FileBridgeTypeManager {
 
     // --- service methods ---
 
-    public TypeDefinition getTypeDefinition(CallContext context, String typeId) {
+    // The service methods return copies. If the calling repository can
+    // query some properties, the copies are marked accordingly; the shared
+    // definitions are never changed.
+
+    /**
+     * @param queryableProperties
+     *            the properties the repository can query and order by or
+     *            <code>null</code> if it has no query support beyond
+     *            IN_FOLDER
+     */
+    public TypeDefinition getTypeDefinition(CallContext context, String typeId,
+            Collection<String> queryableProperties) {
         TypeDefinition type = typeDefinitions.get(typeId);
         if (type == null) {
             throw new CmisObjectNotFoundException("Type '" + typeId + "' is unknown!");
         }
 
-        return typeDefinitionFactory.copy(type, true, context.getCmisVersion());
+        TypeDefinition result = typeDefinitionFactory.copy(type, true, context.getCmisVersion());
+        setQueryable(result, queryableProperties);
+
+        return result;
     }
 
     public TypeDefinitionList getTypeChildren(CallContext context, String typeId, Boolean includePropertyDefinitions,
-            BigInteger maxItems, BigInteger skipCount) {
-        return typeDefinitionFactory.createTypeDefinitionList(typeDefinitions, typeId, includePropertyDefinitions,
-                maxItems, skipCount, context.getCmisVersion());
+            BigInteger maxItems, BigInteger skipCount, Collection<String> queryableProperties) {
+        TypeDefinitionList result = typeDefinitionFactory.createTypeDefinitionList(typeDefinitions, typeId,
+                includePropertyDefinitions, maxItems, skipCount, context.getCmisVersion());
+        if (result.getList() != null) {
+            for (TypeDefinition type : result.getList()) {
+                setQueryable(type, queryableProperties);
+            }
+        }
+
+        return result;
     }
 
     public List<TypeDefinitionContainer> getTypeDescendants(CallContext context, String typeId, BigInteger depth,
-            Boolean includePropertyDefinitions) {
-        return typeDefinitionFactory.createTypeDescendants(typeDefinitions, typeId, depth, includePropertyDefinitions,
-                context.getCmisVersion());
+            Boolean includePropertyDefinitions, Collection<String> queryableProperties) {
+        List<TypeDefinitionContainer> result = typeDefinitionFactory.createTypeDescendants(typeDefinitions, typeId,
+                depth, includePropertyDefinitions, context.getCmisVersion());
+        setQueryable(result, queryableProperties);
+
+        return result;
+    }
+
+    private static void setQueryable(List<TypeDefinitionContainer> containers, Collection<String> propertyIds) {
+        if (containers == null) {
+            return;
+        }
+
+        for (TypeDefinitionContainer container : containers) {
+            setQueryable(container.getTypeDefinition(), propertyIds);
+            setQueryable(container.getChildren(), propertyIds);
+        }
+    }
+
+    /**
+     * Marks a copy of a document or folder type and the given properties,
+     * inherited or not, as queryable and orderable.
+     */
+    private static void setQueryable(TypeDefinition type, Collection<String> propertyIds) {
+        if (propertyIds == null || !(type instanceof MutableTypeDefinition)
+                || (type.getBaseTypeId() != BaseTypeId.CMIS_DOCUMENT && type.getBaseTypeId() != BaseTypeId.CMIS_FOLDER)) {
+            return;
+        }
+
+        ((MutableTypeDefinition) type).setIsQueryable(true);
+
+        if (type.getPropertyDefinitions() == null) {
+            return;
+        }
+
+        for (PropertyDefinition<?> propDef : type.getPropertyDefinitions().values()) {
+            if (propertyIds.contains(propDef.getId()) && propDef instanceof MutablePropertyDefinition) {
+                MutablePropertyDefinition<?> mutablePropDef = (MutablePropertyDefinition<?>) propDef;
+                mutablePropDef.setIsQueryable(true);
+                mutablePropDef.setIsOrderable(true);
+            }
+        }
     }
 
     @Override
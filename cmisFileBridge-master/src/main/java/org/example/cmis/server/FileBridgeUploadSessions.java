@@ -0,0 +1,581 @@
+/*
+ * Copyright 2013 Florian Müller & Jay Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is based on the Apache Chemistry OpenCMIS FileShare project
+ * <http://chemistry.apache.org/java/developing/repositories/dev-repositories-fileshare.html>.
+ *
+ * It is part of a training exercise and not intended for production use!
+ *
+ */
+package org.example.cmis.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.chemistry.opencmis.commons.exceptions.CmisConstraintException;
+import org.apache.chemistry.opencmis.commons.exceptions.CmisInvalidArgumentException;
+import org.apache.chemistry.opencmis.commons.impl.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Chunked uploads in progress.
+ *
+ * Chunks of an upload are written into a staging file next to the document,
+ * which starts as a copy of the current content. Each chunk is written at its
+ * offset in the document, so chunks may arrive out of order, in parallel or
+ * more than once. Gaps are left as holes in the (sparse) staging file. When the
+ * last chunk has arrived and all gaps are filled, the staging file replaces
+ * the document. Until then, readers see the old content.
+ *
+ * Sessions are keyed by repository path. A background thread discards
+ * sessions that haven't seen a chunk for a while. A session is never discarded
+ * or published while a chunk is being written.
+ */
+public class FileBridgeUploadSessions {
+
+    /** Default idle time after which a session is discarded. */
+    public static final long DEFAULT_TIMEOUT = 60 * 60 * 1000L;
+
+    /** Longest time between two looks for idle sessions. */
+    private static final long REAP_INTERVAL = 60 * 1000L;
+
+    private static final int MAX_SESSIONS = 1000;
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileBridgeUploadSessions.class);
+
+    /**
+     * An upload in progress.
+     */
+    public static final class Session {
+        private Path staging;
+        private final FileChannel channel;
+        private final long base;
+        /** Content token of the document when the upload started. */
+        private final String baseToken;
+        /** Received byte ranges (start to end), merged. */
+        private final TreeMap<Long, Long> ranges;
+        /** End of the most recent chunk. */
+        private long next;
+        /** Total length, known after the last chunk has arrived. */
+        private long total;
+        private volatile long lastAccess;
+        private boolean closed;
+        /** Number of chunks being written. */
+        private int writers;
+        /** Set if the session has been discarded while chunks were written. */
+        private boolean discardPending;
+
+        Session(Path staging, FileChannel channel, String baseToken) throws IOException {
+            this.staging = staging;
+            this.channel = channel;
+            this.base = channel.size();
+            this.baseToken = baseToken;
+            this.ranges = new TreeMap<Long, Long>();
+            this.next = base;
+            this.total = -1;
+            this.lastAccess = System.currentTimeMillis();
+
+            if (base > 0) {
+                ranges.put(0L, base);
+            }
+        }
+
+        /**
+         * Returns the staging file.
+         */
+        public synchronized Path getStaging() {
+            return staging;
+        }
+
+        /**
+         * Returns the channel of the staging file.
+         */
+        public FileChannel getChannel() {
+            return channel;
+        }
+
+        /**
+         * Returns the length of the content the upload started with.
+         */
+        public long getBase() {
+            return base;
+        }
+
+        /**
+         * Returns the content token of the document the upload started with.
+         */
+        public String getBaseToken() {
+            return baseToken;
+        }
+
+        /**
+         * Returns the total length or -1 if the last chunk hasn't arrived
+         * yet.
+         */
+        public synchronized long getTotal() {
+            return total;
+        }
+
+        /**
+         * Returns the number of contiguous bytes from the start of the
+         * document.
+         */
+        public synchronized long getContiguousLength() {
+            Map.Entry<Long, Long> first = ranges.firstEntry();
+            return (first == null || first.getKey() > 0 ? 0 : first.getValue());
+        }
+
+        /**
+         * Checks if all bytes of the document have arrived.
+         */
+        public synchronized boolean isComplete() {
+            return total >= 0 && getContiguousLength() >= total;
+        }
+
+        /**
+         * Checks if no chunk has been written yet.
+         */
+        public synchronized boolean isEmpty() {
+            return writers == 0 && next == base && total < 0 && ranges.size() == (base > 0 ? 1 : 0);
+        }
+
+        /**
+         * Writes a chunk. Without an offset, the chunk is placed behind the
+         * most recent chunk.
+         *
+         * @return <code>true</code> if the upload is complete
+         */
+        public boolean write(Long offset, InputStream stream, boolean isLastChunk, FileBridgeBufferPool pool)
+                throws IOException {
+            lastAccess = System.currentTimeMillis();
+
+            long start;
+            synchronized (this) {
+                checkOpen();
+
+                start = (offset == null ? next : offset.longValue());
+                if (start < base) {
+                    throw new CmisInvalidArgumentException("Chunk offset " + start + " is before the end of the content ("
+                            + base + ")!");
+                }
+                if (total >= 0 && start > total) {
+                    throw new CmisInvalidArgumentException("Chunk offset " + start
+                            + " is behind the end of the upload (" + total + ")!");
+                }
+
+                writers++;
+            }
+
+            long position = start;
+            byte[] buffer = pool.acquire();
+            try {
+                ByteBuffer bb = ByteBuffer.wrap(buffer);
+                int b;
+                while ((b = stream.read(buffer)) > -1) {
+                    bb.clear();
+                    bb.limit(b);
+                    while (bb.hasRemaining()) {
+                        position += channel.write(bb, position);
+                    }
+                }
+            } finally {
+                pool.release(buffer);
+                endWrite();
+            }
+
+            synchronized (this) {
+                // discarded or published while the chunk has been written
+                checkOpen();
+
+                if (total >= 0 && position > total) {
+                    throw new CmisInvalidArgumentException("Chunk exceeds the end of the upload (" + total + ")!");
+                }
+
+                addRange(start, position);
+                next = position;
+
+                if (isLastChunk) {
+                    if (total >= 0 && total != position) {
+                        throw new CmisInvalidArgumentException("Upload has already been finished at " + total + "!");
+                    }
+                    total = position;
+                }
+
+                return isComplete();
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "Session [staging=" + staging + ", base=" + base + ", ranges=" + ranges + ", total=" + total + "]";
+        }
+
+        private void checkOpen() {
+            if (closed) {
+                throw new CmisConstraintException("Upload has already been completed or aborted!");
+            }
+        }
+
+        private void endWrite() {
+            boolean release;
+            synchronized (this) {
+                lastAccess = System.currentTimeMillis();
+                writers--;
+                if (writers > 0) {
+                    return;
+                }
+
+                notifyAll();
+                release = discardPending;
+                discardPending = false;
+            }
+
+            if (release) {
+                release();
+            }
+        }
+
+        private void addRange(long start, long end) {
+            if (end <= start) {
+                return;
+            }
+
+            // merge with overlapping or adjacent ranges
+            Map.Entry<Long, Long> floor = ranges.floorEntry(start);
+            if (floor != null && floor.getValue() >= start) {
+                start = floor.getKey();
+                end = Math.max(end, floor.getValue());
+            }
+
+            Map.Entry<Long, Long> e;
+            while ((e = ranges.ceilingEntry(start)) != null && e.getKey() <= end) {
+                end = Math.max(end, e.getValue());
+                ranges.remove(e.getKey());
+            }
+
+            ranges.put(start, end);
+        }
+
+        /**
+         * Marks the session as closed and waits for chunks that are being
+         * written. Returns <code>false</code> if it had been closed before.
+         */
+        synchronized boolean close() {
+            if (closed) {
+                return false;
+            }
+
+            closed = true;
+
+            boolean interrupted = false;
+            while (writers > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+
+            return true;
+        }
+
+        synchronized boolean isExpired(long now, long timeout) {
+            return writers == 0 && now - lastAccess > timeout;
+        }
+
+        synchronized void rebase(Path oldDir, Path newDir) {
+            if (staging.startsWith(oldDir)) {
+                staging = newDir.resolve(oldDir.relativize(staging));
+            }
+        }
+
+        /**
+         * Closes the session and deletes the staging file. If chunks are
+         * being written, the last writer does that.
+         */
+        void discard() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+
+                closed = true;
+                if (writers > 0) {
+                    discardPending = true;
+                    return;
+                }
+            }
+
+            release();
+        }
+
+        private void release() {
+            IOUtils.closeQuietly(channel);
+            try {
+                Files.deleteIfExists(getStaging());
+            } catch (IOException e) {
+                // nothing we can do
+            }
+        }
+    }
+
+    private final Map<String, Session> sessions;
+    private volatile long timeout;
+    private volatile boolean running;
+    private final Thread reaper;
+
+    public FileBridgeUploadSessions() {
+        sessions = new HashMap<String, Session>();
+        timeout = DEFAULT_TIMEOUT;
+
+        running = true;
+        reaper = new Thread("FileBridge Upload Reaper") {
+            @Override
+            public void run() {
+                runReaper();
+            }
+        };
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    /**
+     * Sets the idle time in milliseconds after which a session is discarded.
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Returns the session of a document or <code>null</code> if there is
+     * none.
+     */
+    public synchronized Session get(String path) {
+        return sessions.get(path);
+    }
+
+    /**
+     * Registers a new session for a document. If another session has been
+     * registered in the meantime, the new session is discarded and the other
+     * session is returned.
+     *
+     * @param baseToken
+     *            the content token of the document the staging file has been
+     *            copied from
+     */
+    public Session add(String path, Path staging, FileChannel channel, String baseToken) throws IOException {
+        Session session = new Session(staging, channel, baseToken);
+
+        synchronized (this) {
+            Session existing = sessions.get(path);
+            if (existing != null) {
+                session.discard();
+                return existing;
+            }
+        }
+
+        if (size() >= MAX_SESSIONS) {
+            reap();
+        }
+
+        synchronized (this) {
+            Session existing = sessions.get(path);
+            if (existing != null) {
+                session.discard();
+                return existing;
+            }
+
+            if (sessions.size() >= MAX_SESSIONS) {
+                session.discard();
+                throw new CmisConstraintException("Too many uploads in progress!");
+            }
+
+            sessions.put(path, session);
+        }
+
+        return session;
+    }
+
+    /**
+     * Discards all sessions that have been idle for longer than the timeout.
+     *
+     * @return the number of discarded sessions
+     */
+    public int reap() {
+        Map<String, Session> expired = new HashMap<String, Session>();
+
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            for (Iterator<Map.Entry<String, Session>> iter = sessions.entrySet().iterator(); iter.hasNext();) {
+                Map.Entry<String, Session> e = iter.next();
+                if (e.getValue().isExpired(now, timeout)) {
+                    expired.put(e.getKey(), e.getValue());
+                    iter.remove();
+                }
+            }
+        }
+
+        for (Map.Entry<String, Session> e : expired.entrySet()) {
+            LOG.warn("Discarded unfinished upload of {}: {}", e.getKey(), e.getValue());
+            e.getValue().discard();
+        }
+
+        return expired.size();
+    }
+
+    /**
+     * Removes a session that is about to be published. Returns
+     * <code>false</code> if the session has already been removed.
+     */
+    public boolean complete(String path, Session session) {
+        synchronized (this) {
+            if (sessions.get(path) != session) {
+                return false;
+            }
+            sessions.remove(path);
+        }
+
+        return session.close();
+    }
+
+    /**
+     * Discards a session that hasn't received any chunk, for example because
+     * its first chunk has been rejected.
+     */
+    public void abortIfEmpty(String path, Session session) {
+        synchronized (this) {
+            if (sessions.get(path) != session || !session.isEmpty()) {
+                return;
+            }
+            sessions.remove(path);
+        }
+
+        session.discard();
+    }
+
+    /**
+     * Discards the session of a document and, if requested, all sessions
+     * below the given path.
+     */
+    public void abort(String path, boolean recursive) {
+        for (Session session : remove(path, recursive).values()) {
+            session.discard();
+        }
+    }
+
+    /**
+     * Moves the sessions of a document or folder to a new path.
+     *
+     * @param oldDir
+     *            the old location of the document or folder
+     * @param newDir
+     *            the new location of the document or folder
+     */
+    public void move(String oldPath, String newPath, boolean recursive, Path oldDir, Path newDir) {
+        synchronized (this) {
+            Map<String, Session> moved = remove(oldPath, recursive);
+            for (Map.Entry<String, Session> e : moved.entrySet()) {
+                Session session = e.getValue();
+                session.rebase(oldDir, newDir);
+
+                Session replaced = sessions.put(newPath + e.getKey().substring(oldPath.length()), session);
+                if (replaced != null) {
+                    replaced.discard();
+                }
+            }
+        }
+    }
+
+    /**
+     * Discards all sessions.
+     */
+    public void clear() {
+        List<Session> all;
+        synchronized (this) {
+            all = new ArrayList<Session>(sessions.values());
+            sessions.clear();
+        }
+
+        for (Session session : all) {
+            session.discard();
+        }
+    }
+
+    /**
+     * Discards all sessions and stops the background thread.
+     */
+    public void shutdown() {
+        running = false;
+        reaper.interrupt();
+        clear();
+    }
+
+    public synchronized int size() {
+        return sessions.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "UploadSessions [sessions=" + sessions.size() + ", timeout=" + timeout + "]";
+    }
+
+    private void runReaper() {
+        while (running) {
+            try {
+                Thread.sleep(Math.max(1000, Math.min(REAP_INTERVAL, timeout / 4)));
+                reap();
+            } catch (InterruptedException e) {
+                // shutdown
+            }
+        }
+    }
+
+    private synchronized Map<String, Session> remove(String path, boolean recursive) {
+        Map<String, Session> result = new HashMap<String, Session>();
+
+        Session session = sessions.remove(path);
+        if (session != null) {
+            result.put(path, session);
+        }
+
+        if (recursive) {
+            String prefix = (path.endsWith("/") ? path : path + "/");
+            for (Iterator<Map.Entry<String, Session>> iter = sessions.entrySet().iterator(); iter.hasNext();) {
+                Map.Entry<String, Session> e = iter.next();
+                if (e.getKey().startsWith(prefix)) {
+                    result.put(e.getKey(), e.getValue());
+                    iter.remove();
+                }
+            }
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,453 @@
+/*
+ * Copyright 2013 Florian Müller & Jay Brown
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *
+ * This code is based on the Apache Chemistry OpenCMIS FileShare project
+ * <http://chemistry.apache.org/java/developing/repositories/dev-repositories-fileshare.html>.
+ *
+ * It is part of a training exercise and not intended for production use!
+ *
+ */
+package org.example.cmis.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches the repository tree for changes made by other processes and
+ * publishes them to listeners, which keep their cached data coherent.
+ *
+ * All directories are registered with one {@link WatchService} and served
+ * by a single thread, which also registers the tree when the watcher starts
+ * and new directories as they appear. If the operating system drops events
+ * of a directory, the directory is listed again: new subdirectories are
+ * registered, files changed since the last event are published, and the
+ * listeners are told that anything in the directory may have changed.
+ *
+ * Hidden files and directories (names starting with a dot) are ignored.
+ */
+public class FileBridgeWatcher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileBridgeWatcher.class);
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static final WatchEvent.Kind<Path>[] KINDS = new WatchEvent.Kind[] {
+            StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+            StandardWatchEventKinds.ENTRY_MODIFY };
+
+    /**
+     * Change kinds.
+     */
+    public enum Kind {
+        CREATED, MODIFIED, DELETED,
+        /** Events of a folder have been lost; any child may have changed. */
+        OVERFLOW
+    }
+
+    /**
+     * Receives changes. Listeners are called by the watcher thread and must
+     * return quickly.
+     */
+    public interface Listener {
+        /**
+         * A file or folder has changed.
+         *
+         * @param path
+         *            the repository path
+         * @param isFolder
+         *            <code>true</code> if the object is (or was) a folder;
+         *            the content of a deleted folder is gone as well, without
+         *            events of its own
+         */
+        void pathChanged(String path, Kind kind, boolean isFolder);
+    }
+
+    private final Path root;
+    private final List<Listener> listeners;
+    private final CountDownLatch ready;
+    private final WatchService watchService;
+    private final Thread thread;
+
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLong overflows = new AtomicLong();
+
+    // only touched by the watcher thread
+    private final Map<WatchKey, Path> keys;
+    private final TreeMap<String, WatchKey> dirs;
+    private final Map<WatchKey, Long> lastEvent;
+    /** Old paths of directories that have been moved within the tree. */
+    private final Set<String> movedAway;
+    private boolean limitReached;
+
+    private volatile boolean running;
+
+    public FileBridgeWatcher(File root) {
+        this.root = root.getAbsoluteFile().toPath();
+        this.listeners = new CopyOnWriteArrayList<Listener>();
+        this.ready = new CountDownLatch(1);
+        this.keys = new HashMap<WatchKey, Path>();
+        this.dirs = new TreeMap<String, WatchKey>();
+        this.lastEvent = new HashMap<WatchKey, Long>();
+        this.movedAway = new HashSet<String>();
+
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not watch " + root + ": " + e.getMessage(), e);
+        }
+
+        running = true;
+        thread = new Thread("FileBridge Watcher") {
+            @Override
+            public void run() {
+                runWatcher();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Waits until the tree has been registered.
+     *
+     * @return <code>false</code> if the timeout has been reached
+     */
+    public boolean awaitReady(long timeout) {
+        try {
+            return ready.await(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Stops the watcher.
+     */
+    public void shutdown() {
+        running = false;
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            // nothing we can do
+        }
+        thread.interrupt();
+    }
+
+    public long getEvents() {
+        return events.get();
+    }
+
+    public long getOverflows() {
+        return overflows.get();
+    }
+
+    @Override
+    public String toString() {
+        return "Watcher [root=" + root + ", events=" + events.get() + ", overflows=" + overflows.get() + "]";
+    }
+
+    // --- internal ---
+
+    private void runWatcher() {
+        try {
+            registerTree(root, false);
+            LOG.info("Watching {} directories below {}.", dirs.size(), root);
+        } finally {
+            ready.countDown();
+        }
+
+        while (running) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException e) {
+                continue;
+            } catch (ClosedWatchServiceException e) {
+                break;
+            }
+
+            try {
+                processKey(key);
+            } catch (RuntimeException e) {
+                LOG.warn("Could not process change events: {}", e.toString(), e);
+            }
+        }
+    }
+
+    private void processKey(WatchKey key) {
+        Path dir = keys.get(key);
+        if (dir == null) {
+            key.cancel();
+            return;
+        }
+
+        // collapse repeated events of a path
+        Map<Path, Kind> changes = new LinkedHashMap<Path, Kind>();
+        boolean overflow = false;
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflow = true;
+                continue;
+            }
+
+            Path name = (Path) event.context();
+            if (isHidden(name)) {
+                continue;
+            }
+
+            Path child = dir.resolve(name);
+            Kind kind = (event.kind() == StandardWatchEventKinds.ENTRY_CREATE ? Kind.CREATED
+                    : (event.kind() == StandardWatchEventKinds.ENTRY_DELETE ? Kind.DELETED : Kind.MODIFIED));
+
+            Kind previous = changes.remove(child);
+            if (previous == Kind.CREATED && kind == Kind.MODIFIED) {
+                kind = Kind.CREATED;
+            }
+            changes.put(child, kind);
+        }
+
+        boolean valid = key.reset();
+        lastEvent.put(key, System.currentTimeMillis());
+
+        for (Map.Entry<Path, Kind> change : changes.entrySet()) {
+            Path child = change.getKey();
+            Kind kind = change.getValue();
+
+            if (kind == Kind.DELETED) {
+                boolean wasFolder = unregisterTree(child);
+                publish(child, kind, wasFolder);
+            } else {
+                boolean isFolder = Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS);
+                publish(child, kind, isFolder);
+                if (isFolder && kind == Kind.CREATED) {
+                    // the content may have been moved in as a whole
+                    registerTree(child, true);
+                }
+            }
+        }
+
+        if (overflow) {
+            overflows.incrementAndGet();
+            rescan(key, dir);
+        }
+
+        if (!valid) {
+            // the directory is gone
+            keys.remove(key);
+            lastEvent.remove(key);
+            String path = dir.toString();
+            if (dirs.get(path) == key) {
+                dirs.remove(path);
+            }
+        }
+    }
+
+    /**
+     * Lists a directory whose events have been lost.
+     */
+    private void rescan(WatchKey key, Path dir) {
+        Long last = lastEvent.get(key);
+        long since = (last == null ? 0 : last.longValue());
+
+        publish(dir, Kind.OVERFLOW, true);
+
+        List<Path> children = new ArrayList<Path>();
+        try {
+            DirectoryStream<Path> stream = Files.newDirectoryStream(dir);
+            try {
+                for (Path child : stream) {
+                    if (!isHidden(child.getFileName())) {
+                        children.add(child);
+                    }
+                }
+            } finally {
+                stream.close();
+            }
+        } catch (IOException e) {
+            // gone in the meantime, the delete event follows
+            return;
+        }
+
+        for (Path child : children) {
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (IOException e) {
+                continue;
+            }
+
+            if (attrs.isDirectory()) {
+                if (!dirs.containsKey(child.toString())) {
+                    publish(child, Kind.CREATED, true);
+                    registerTree(child, true);
+                }
+            } else if (attrs.lastModifiedTime().toMillis() >= since - 1000) {
+                publish(child, Kind.MODIFIED, false);
+            }
+        }
+    }
+
+    /**
+     * Registers a directory and all directories below it.
+     *
+     * @param publish
+     *            if <code>true</code>, the content is published as created
+     */
+    private void registerTree(final Path start, final boolean publish) {
+        try {
+            Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    if (!dir.equals(start) && isHidden(dir.getFileName())) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+
+                    register(dir);
+
+                    if (publish && !dir.equals(start)) {
+                        publish(dir, Kind.CREATED, true);
+                    }
+
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (publish && !isHidden(file.getFileName())) {
+                        publish(file, Kind.CREATED, false);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            LOG.warn("Could not watch {}: {}", start, e.toString());
+        }
+    }
+
+    private void register(Path dir) {
+        try {
+            // an existing key is returned if the directory has been moved
+            WatchKey key = dir.register(watchService, KINDS);
+            Path oldDir = keys.put(key, dir);
+            if (oldDir != null && !oldDir.equals(dir) && dirs.get(oldDir.toString()) == key) {
+                dirs.remove(oldDir.toString());
+                // the delete event of the old path is still to come
+                movedAway.add(oldDir.toString());
+            }
+            dirs.put(dir.toString(), key);
+        } catch (ClosedWatchServiceException e) {
+            // shutting down
+        } catch (IOException e) {
+            if (!limitReached) {
+                limitReached = true;
+                LOG.warn("Could not watch {}: {} Changes below this directory will be missed.", dir, e.toString());
+            }
+        }
+    }
+
+    /**
+     * Stops watching a deleted directory and everything below it.
+     *
+     * @return <code>true</code> if the path has been a watched directory
+     */
+    private boolean unregisterTree(Path dir) {
+        String path = dir.toString();
+        WatchKey key = dirs.get(path);
+        if (key == null) {
+            return movedAway.remove(path);
+        }
+
+        Map<String, WatchKey> below = dirs.subMap(path + File.separator, path + (char) (File.separatorChar + 1));
+        List<String> paths = new ArrayList<String>(below.keySet());
+        paths.add(path);
+
+        for (String p : paths) {
+            WatchKey k = dirs.remove(p);
+            // the directory may have been moved within the tree
+            if (k != null && dir.getFileSystem().getPath(p).equals(keys.get(k)) && !Files.isDirectory(keys.get(k))) {
+                k.cancel();
+                keys.remove(k);
+                lastEvent.remove(k);
+            }
+        }
+
+        return true;
+    }
+
+    private void publish(Path path, Kind kind, boolean isFolder) {
+        events.incrementAndGet();
+
+        String repositoryPath = getRepositoryPath(path);
+        for (Listener listener : listeners) {
+            try {
+                listener.pathChanged(repositoryPath, kind, isFolder);
+            } catch (RuntimeException e) {
+                LOG.warn("Listener failed on {}: {}", repositoryPath, e.toString(), e);
+            }
+        }
+    }
+
+    private String getRepositoryPath(Path path) {
+        String result = root.relativize(path).toString().replace(File.separatorChar, '/');
+        return "/" + result;
+    }
+
+    private static boolean isHidden(Path name) {
+        return name != null && name.toString().startsWith(".");
+    }
+}